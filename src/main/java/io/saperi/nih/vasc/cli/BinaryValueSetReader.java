@@ -0,0 +1,217 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the columnar "VSB1" value set layout written by {@link BinaryValueSetWriter}.
+ * Files are memory mapped and columns are accessed in place, strings are only decoded when asked for.
+ */
+public class BinaryValueSetReader {
+
+    public interface RowVisitor {
+        /**
+         * Called per row with views over the mapped code and display bytes, the buffers are only valid for the call
+         */
+        void visit(int row, int system, ByteBuffer code, ByteBuffer display);
+    }
+
+    private final ByteBuffer buf;
+    private final int rowCount;
+    private final String[] systems;
+    private final String[] versions;
+    private final String id;
+    private final String title;
+    private final String version;
+    private final int systemOffset;
+    private final int codeOffsetsOffset;
+    private final int codeBytesOffset;
+    private final int displayOffsetsOffset;
+    private final int displayBytesOffset;
+    private final int crc;
+    private final int totalLength;
+
+    public BinaryValueSetReader(ByteBuffer buffer) throws IOException {
+        buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < BinaryValueSetWriter.HEADER_SIZE || buf.getInt(0) != BinaryValueSetWriter.MAGIC) {
+            throw new IOException("Not a binary valueset file");
+        }
+        if (buf.getShort(4) != BinaryValueSetWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported binary valueset version " + buf.getShort(4));
+        }
+        rowCount = buf.getInt(8);
+        int systemCount = buf.getInt(12);
+        int metaOffset = buf.getInt(16);
+        int dictOffset = buf.getInt(20);
+        systemOffset = buf.getInt(24);
+        codeOffsetsOffset = buf.getInt(28);
+        codeBytesOffset = buf.getInt(32);
+        displayOffsetsOffset = buf.getInt(36);
+        displayBytesOffset = buf.getInt(40);
+        totalLength = buf.getInt(44);
+        crc = buf.getInt(48);
+        if (totalLength != buf.limit()) {
+            throw new IOException("Binary valueset is truncated");
+        }
+
+        int pos = metaOffset;
+        String[] meta = new String[3];
+        for (int i = 0; i < meta.length; i++) {
+            int len = buf.getInt(pos);
+            meta[i] = decode(pos + 4, len);
+            pos += 4 + len;
+        }
+        id = meta[0];
+        title = meta[1];
+        version = meta[2];
+
+        //The dictionary is tiny, decode it once
+        systems = new String[systemCount];
+        versions = new String[systemCount];
+        pos = dictOffset;
+        for (int i = 0; i < systemCount; i++) {
+            int len = buf.getInt(pos);
+            systems[i] = decode(pos + 4, len);
+            pos += 4 + len;
+            len = buf.getInt(pos);
+            versions[i] = decode(pos + 4, len);
+            pos += 4 + len;
+        }
+    }
+
+    public static BinaryValueSetReader open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            //The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BinaryValueSetReader(mapped);
+        }
+    }
+
+    public boolean verify() {
+        CRC32 check = new CRC32();
+        ByteBuffer body = buf.duplicate();
+        body.position(BinaryValueSetWriter.HEADER_SIZE);
+        body.limit(totalLength);
+        check.update(body);
+        return (int) check.getValue() == crc;
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int getSystemCount() {
+        return systems.length;
+    }
+
+    public int getSystemIndex(int row) {
+        return buf.getShort(systemOffset + 2 * row) & 0xffff;
+    }
+
+    public String getSystem(int row) {
+        return systems[getSystemIndex(row)];
+    }
+
+    public String getSystemVersion(int row) {
+        return versions[getSystemIndex(row)];
+    }
+
+    public String getCode(int row) {
+        int start = buf.getInt(codeOffsetsOffset + 4 * row);
+        int end = buf.getInt(codeOffsetsOffset + 4 * (row + 1));
+        return decode(codeBytesOffset + start, end - start);
+    }
+
+    public String getDisplay(int row) {
+        int start = buf.getInt(displayOffsetsOffset + 4 * row);
+        int end = buf.getInt(displayOffsetsOffset + 4 * (row + 1));
+        return decode(displayBytesOffset + start, end - start);
+    }
+
+    /**
+     * Scan every row without decoding, the visitor sees slices of the mapped buffer
+     */
+    public void scan(RowVisitor visitor) {
+        ByteBuffer code = buf.duplicate();
+        ByteBuffer display = buf.duplicate();
+        for (int row = 0; row < rowCount; row++) {
+            int cs = buf.getInt(codeOffsetsOffset + 4 * row);
+            int ce = buf.getInt(codeOffsetsOffset + 4 * (row + 1));
+            int ds = buf.getInt(displayOffsetsOffset + 4 * row);
+            int de = buf.getInt(displayOffsetsOffset + 4 * (row + 1));
+            code.limit(codeBytesOffset + ce).position(codeBytesOffset + cs);
+            display.limit(displayBytesOffset + de).position(displayBytesOffset + ds);
+            visitor.visit(row, getSystemIndex(row), code, display);
+        }
+    }
+
+    /**
+     * Binary search for a code within a system (any version), returns the row or -1
+     */
+    public int find(String system, String code) {
+        byte[] key = code.getBytes(StandardCharsets.UTF_8);
+        for (int s = 0; s < systems.length; s++) {
+            if (!systems[s].equals(system)) {
+                continue;
+            }
+            int lo = 0;
+            int hi = rowCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = getSystemIndex(mid) - s;
+                if (cmp == 0) {
+                    cmp = compareCode(mid, key);
+                }
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int compareCode(int row, byte[] key) {
+        int start = buf.getInt(codeOffsetsOffset + 4 * row);
+        int end = buf.getInt(codeOffsetsOffset + 4 * (row + 1));
+        int len = Math.min(end - start, key.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (buf.get(codeBytesOffset + start + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return (end - start) - key.length;
+    }
+
+    private String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buf.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,182 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes a value set in the columnar "VSB1" layout read by {@link BinaryValueSetReader}.
+ *
+ * <pre>
+ * header   56 bytes: magic, format version, flags, row count, system count,
+ *          section offsets, total length, CRC32 of everything after the header
+ * meta     value set id, title, version (int length + UTF-8)
+ * dict     system count x (uri, version), sorted
+ * systems  row count x unsigned short dictionary index, padded to 4 bytes
+ * codes    (row count + 1) x int offsets followed by the UTF-8 code bytes
+ * displays (row count + 1) x int offsets followed by the UTF-8 display bytes
+ * </pre>
+ * Rows are sorted by system, version then code so a code can be found by binary search.
+ */
+public class BinaryValueSetWriter {
+
+    public static final int MAGIC = 0x31425356;  // "VSB1" little endian
+    public static final short FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 56;
+
+    public static byte[] write(SvsValueSet vs) {
+        return write(vs, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public static byte[] write(SvsValueSet vs, CodeSystemRegistry codeSystems) {
+        //Build the system|version dictionary
+        TreeMap<String, String[]> dictByKey = new TreeMap<>();
+        List<Row> rows = new ArrayList<>(vs.getConcepts().size());
+        for (SvsConcept concept : vs.getConcepts()) {
+            String system = codeSystems.getFHIRCodeSystem(concept.getCodeSystem());
+            String key = system + "|" + concept.getCodeSystemVersion();
+            dictByKey.putIfAbsent(key, new String[]{system, concept.getCodeSystemVersion()});
+            rows.add(new Row(key, concept.getCode(), concept.getDisplayName()));
+        }
+        if (dictByKey.size() > 0xffff) {
+            throw new IllegalArgumentException("Too many code systems in value set " + vs.getId());
+        }
+        Map<String, Integer> dictIndex = new HashMap<>();
+        for (String key : dictByKey.keySet()) {
+            dictIndex.put(key, dictIndex.size());
+        }
+        for (Row row : rows) {
+            row.system = dictIndex.get(row.key);
+            row.codeBytes = row.code.getBytes(StandardCharsets.UTF_8);
+        }
+        rows.sort(Comparator.comparingInt((Row r) -> r.system).thenComparing(r -> r.codeBytes, BinaryValueSetWriter::compareBytes));
+
+        //Size each section
+        byte[][] meta = new byte[][]{utf8(vs.getId()), utf8(vs.getDisplayName()), utf8(vs.getVersion())};
+        int metaSize = 0;
+        for (byte[] m : meta) {
+            metaSize += 4 + m.length;
+        }
+        List<byte[]> dictEntries = new ArrayList<>();
+        int dictSize = 0;
+        for (String[] entry : dictByKey.values()) {
+            byte[] uri = utf8(entry[0]);
+            byte[] version = utf8(entry[1]);
+            dictEntries.add(uri);
+            dictEntries.add(version);
+            dictSize += 8 + uri.length + version.length;
+        }
+        int n = rows.size();
+        int codeBytes = 0;
+        int displayBytes = 0;
+        byte[][] displays = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            codeBytes += rows.get(i).codeBytes.length;
+            displays[i] = utf8(rows.get(i).display);
+            displayBytes += displays[i].length;
+        }
+
+        int metaOffset = HEADER_SIZE;
+        int dictOffset = align(metaOffset + metaSize);
+        int systemOffset = align(dictOffset + dictSize);
+        int codeOffsetsOffset = align(systemOffset + 2 * n);
+        int codeBytesOffset = codeOffsetsOffset + 4 * (n + 1);
+        int displayOffsetsOffset = align(codeBytesOffset + codeBytes);
+        int displayBytesOffset = displayOffsetsOffset + 4 * (n + 1);
+        int total = displayBytesOffset + displayBytes;
+
+        ByteBuffer buf = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(metaOffset);
+        for (byte[] m : meta) {
+            buf.putInt(m.length).put(m);
+        }
+        buf.position(dictOffset);
+        for (byte[] d : dictEntries) {
+            buf.putInt(d.length).put(d);
+        }
+        buf.position(systemOffset);
+        for (Row row : rows) {
+            buf.putShort((short) row.system);
+        }
+        buf.position(codeOffsetsOffset);
+        int offset = 0;
+        for (Row row : rows) {
+            buf.putInt(offset);
+            offset += row.codeBytes.length;
+        }
+        buf.putInt(offset);
+        for (Row row : rows) {
+            buf.put(row.codeBytes);
+        }
+        buf.position(displayOffsetsOffset);
+        offset = 0;
+        for (byte[] d : displays) {
+            buf.putInt(offset);
+            offset += d.length;
+        }
+        buf.putInt(offset);
+        for (byte[] d : displays) {
+            buf.put(d);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_SIZE, total - HEADER_SIZE);
+
+        buf.position(0);
+        buf.putInt(MAGIC);
+        buf.putShort(FORMAT_VERSION);
+        buf.putShort((short) 0);
+        buf.putInt(n);
+        buf.putInt(dictByKey.size());
+        buf.putInt(metaOffset);
+        buf.putInt(dictOffset);
+        buf.putInt(systemOffset);
+        buf.putInt(codeOffsetsOffset);
+        buf.putInt(codeBytesOffset);
+        buf.putInt(displayOffsetsOffset);
+        buf.putInt(displayBytesOffset);
+        buf.putInt(total);
+        buf.putInt((int) crc.getValue());
+        buf.putInt(0);
+        return buf.array();
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class Row {
+        String key;
+        String code;
+        String display;
+        int system;
+        byte[] codeBytes;
+
+        Row(String key, String code, String display) {
+            this.key = key;
+            this.code = code;
+            this.display = display;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The codes of one code system release compiled to a "VCR1" file: a sorted array of numeric code keys followed
+ * by a bitset of which are active. The file is memory mapped and codes are looked up with a binary search,
+ * nothing but the mapping is held on the heap.
+ *
+ * <pre>
+ * header (32 bytes, little endian)
+ *   0  int   magic "VCR1"
+ *   4  short format version
+ *   6  short release kind ordinal
+ *   8  int   code count
+ *   12 int   reserved
+ *   16 long  source file length
+ *   24 long  source file last modified
+ * keys    count longs, ascending
+ * active  (count + 63) / 64 longs, bit i set when key i is active
+ * </pre>
+ */
+public class CodeRelease {
+
+    static final int MAGIC = 0x31524356;
+    static final short FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    public enum Status {
+        ACTIVE, INACTIVE, UNKNOWN, MALFORMED
+    }
+
+    /**
+     * The release files understood, each with the canonical system from {@link FHIRCodeSystemMapper} and the
+     * mapping of its codes to a numeric key
+     */
+    public enum Kind {
+        SNOMED("http://snomed.info/sct", "SNOMED CT"),
+        LOINC("http://loinc.org", "LOINC"),
+        RXNORM("http://www.nlm.nih.gov/research/umls/rxnorm", "RxNorm");
+
+        private final String system;
+        private final String title;
+
+        Kind(String system, String title) {
+            this.system = system;
+            this.title = title;
+        }
+
+        public String getSystem() {
+            return system;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        /**
+         * Recognize a release file by its distributed name, e.g. sct2_Concept_Snapshot_INT_20210131.txt,
+         * Loinc.csv or RXNCONSO.RRF
+         */
+        public static Kind forFileName(String name) {
+            String lower = name.toLowerCase();
+            if (lower.startsWith("sct2_concept_") && lower.contains("snapshot") && lower.endsWith(".txt")) {
+                return SNOMED;
+            }
+            if ((lower.equals("loinc.csv") || lower.startsWith("loinctable")) && lower.endsWith(".csv")) {
+                return LOINC;
+            }
+            if (lower.equals("rxnconso.rrf")) {
+                return RXNORM;
+            }
+            return null;
+        }
+
+        /**
+         * SNOMED concept ids and RxNorm RXCUIs are plain numbers, LOINC numbers are digits and a check digit
+         * after a dash, kept as digits * 10 + check. Returns -1 when the code can not be a code of this system.
+         */
+        public long key(CharSequence code) {
+            int len = code.length();
+            int digits = this == LOINC ? len - 2 : len;
+            if (digits < 1 || digits > (this == LOINC ? 17 : 18)) {
+                return -1;
+            }
+            long key = 0;
+            for (int i = 0; i < digits; i++) {
+                char c = code.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                key = key * 10 + (c - '0');
+            }
+            if (this == LOINC) {
+                char check = code.charAt(len - 1);
+                if (code.charAt(len - 2) != '-' || check < '0' || check > '9') {
+                    return -1;
+                }
+                key = key * 10 + (check - '0');
+            }
+            return key;
+        }
+    }
+
+    private final Kind kind;
+    private final LongBuffer keys;
+    private final LongBuffer active;
+    private final int count;
+    private final long sourceLength;
+    private final long sourceModified;
+
+    public CodeRelease(ByteBuffer buffer) throws IOException {
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled code release");
+        }
+        if (buf.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported code release version " + buf.getShort(4));
+        }
+        int ordinal = buf.getShort(6);
+        if (ordinal < 0 || ordinal >= Kind.values().length) {
+            throw new IOException("Unknown code release kind " + ordinal);
+        }
+        kind = Kind.values()[ordinal];
+        count = buf.getInt(8);
+        sourceLength = buf.getLong(16);
+        sourceModified = buf.getLong(24);
+        int words = (count + 63) / 64;
+        if (buf.limit() != HEADER_SIZE + 8L * (count + words)) {
+            throw new IOException("Compiled code release is truncated");
+        }
+        buf.position(HEADER_SIZE);
+        keys = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        buf.position(HEADER_SIZE + 8 * count);
+        active = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    public static CodeRelease open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CodeRelease(mapped);
+        }
+    }
+
+    /**
+     * Open the compiled form of a release file, compiling it first when it is missing or the source has changed
+     */
+    public static CodeRelease load(Kind kind, File source, File compiled) throws IOException {
+        if (compiled.isFile()) {
+            try {
+                CodeRelease release = open(compiled);
+                if (release.kind == kind && release.sourceLength == source.length() && release.sourceModified == source.lastModified()) {
+                    return release;
+                }
+            } catch (IOException e) {
+                //Unreadable, compile it again
+            }
+        }
+        compile(kind, source, compiled);
+        return open(compiled);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Status lookup(CharSequence code) {
+        long key = kind.key(code);
+        if (key < 0) {
+            return Status.MALFORMED;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = keys.get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return (active.get(mid >>> 6) & (1L << mid)) != 0 ? Status.ACTIVE : Status.INACTIVE;
+            }
+        }
+        return Status.UNKNOWN;
+    }
+
+    /**
+     * Read the release file and write the sorted keys and active bits to target
+     */
+    public static void compile(Kind kind, File source, File target) throws IOException {
+        LongList all = new LongList();
+        LongList activeKeys = new LongList();
+        switch (kind) {
+            case SNOMED:
+                readSnomed(source, all, activeKeys);
+                break;
+            case LOINC:
+                readLoinc(source, all, activeKeys);
+                break;
+            case RXNORM:
+                readRxNorm(source, all, activeKeys);
+                break;
+        }
+        long[] keys = all.toSortedUnique();
+        long[] activeSorted = activeKeys.toSortedUnique();
+        long[] bits = new long[(keys.length + 63) / 64];
+        //A code is active when any of its rows is, both lists are sorted so one merge pass sets the bits
+        for (int i = 0, j = 0; i < keys.length && j < activeSorted.length; ) {
+            if (keys[i] < activeSorted[j]) {
+                i++;
+            } else if (keys[i] > activeSorted[j]) {
+                j++;
+            } else {
+                bits[i >>> 6] |= 1L << i;
+                i++;
+                j++;
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 8 * (keys.length + bits.length)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putShort(FORMAT_VERSION);
+        out.putShort((short) kind.ordinal());
+        out.putInt(keys.length);
+        out.putInt(0);
+        out.putLong(source.length());
+        out.putLong(source.lastModified());
+        out.asLongBuffer().put(keys).put(bits);
+
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir.getPath());
+        }
+        File tmp = File.createTempFile(target.getName(), ".tmp", dir);
+        try {
+            Files.write(tmp.toPath(), out.array());
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * RF2 concept file, tab separated: id, effectiveTime, active, moduleId, definitionStatusId
+     */
+    private static void readSnomed(File source, LongList all, LongList activeKeys) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 65536)) {
+            String line = in.readLine();
+            while ((line = in.readLine()) != null) {
+                int idEnd = line.indexOf('\t');
+                int timeEnd = idEnd < 0 ? -1 : line.indexOf('\t', idEnd + 1);
+                if (timeEnd < 0 || timeEnd + 1 >= line.length()) {
+                    continue;
+                }
+                long key = Kind.SNOMED.key(line.subSequence(0, idEnd));
+                if (key < 0) {
+                    continue;
+                }
+                all.add(key);
+                if (line.charAt(timeEnd + 1) == '1') {
+                    activeKeys.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * LOINC table csv, every code but the deprecated ones is in use
+     */
+    private static void readLoinc(File source, LongList all, LongList activeKeys) throws IOException {
+        try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 65536)) {
+            for (CSVRecord record : CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in)) {
+                long key = Kind.LOINC.key(record.get("LOINC_NUM"));
+                if (key < 0) {
+                    continue;
+                }
+                all.add(key);
+                if (!"DEPRECATED".equalsIgnoreCase(record.get("STATUS"))) {
+                    activeKeys.add(key);
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Invalid LOINC table " + source.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * RXNCONSO.RRF, pipe separated, RXCUI is field 0, SAB field 11 and SUPPRESS field 16. Retired RXCUIs are not
+     * listed at all, suppressed ones are kept as inactive.
+     */
+    private static void readRxNorm(File source, LongList all, LongList activeKeys) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8), 65536)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int[] bars = new int[17];
+                int found = 0;
+                for (int i = line.indexOf('|'); i >= 0 && found < bars.length; i = line.indexOf('|', i + 1)) {
+                    bars[found++] = i;
+                }
+                if (found < bars.length || !line.regionMatches(bars[10] + 1, "RXNORM|", 0, 7)) {
+                    continue;
+                }
+                long key = Kind.RXNORM.key(line.subSequence(0, bars[0]));
+                if (key < 0) {
+                    continue;
+                }
+                all.add(key);
+                if (bars[16] - bars[15] == 2 && line.charAt(bars[15] + 1) == 'N') {
+                    activeKeys.add(key);
+                }
+            }
+        }
+    }
+
+    private static class LongList {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toSortedUnique() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (unique == 0 || sorted[i] != sorted[unique - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, unique);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Maps the OIDs, VSAC names and URIs a code system is known by to its canonical FHIR URI. Systems come from a csv
+ * of uri, oids and names, lists separated by |, lines starting with # are comments.
+ *
+ * The aliases are compiled into a minimal perfect hash (hash and displace): keys land in buckets by their hash,
+ * each bucket stores the displacement that puts all its keys on free slots of a table exactly as large as the key
+ * set. A lookup is two mixes of the cached String hash code, one array probe and one equals, there is no chaining.
+ * Every alias of a system returns the same URI instance. The registry is immutable once built.
+ */
+public class CodeSystemRegistry {
+
+    public static final String RESOURCE = "/codesystems.csv";
+
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+
+    private final int[] displacements;
+    private final String[] keys;
+    private final String[] systems;
+    // Keys whose String hash code equals another key's can not be separated by the table
+    private final Map<String, String> overflow;
+    private final int systemCount;
+
+    private CodeSystemRegistry(int[] displacements, String[] keys, String[] systems, Map<String, String> overflow, int systemCount) {
+        this.displacements = displacements;
+        this.keys = keys;
+        this.systems = systems;
+        this.overflow = overflow;
+        this.systemCount = systemCount;
+    }
+
+    /**
+     * The registry bundled in the jar
+     */
+    public static CodeSystemRegistry loadDefault() throws IOException {
+        return build(readBundled());
+    }
+
+    /**
+     * The bundled registry with the systems in file added, an alias listed in file maps to the URI file gives it
+     */
+    public static CodeSystemRegistry load(File file) throws IOException {
+        Map<String, String> aliases = readBundled();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            aliases.putAll(read(in, file.getPath()));
+        }
+        return build(aliases);
+    }
+
+    private static Map<String, String> readBundled() throws IOException {
+        InputStream bundled = CodeSystemRegistry.class.getResourceAsStream(RESOURCE);
+        if (bundled == null) {
+            throw new IOException("Code system registry " + RESOURCE + " is missing from the classpath");
+        }
+        try (Reader in = new InputStreamReader(bundled, StandardCharsets.UTF_8)) {
+            return read(in, RESOURCE);
+        }
+    }
+
+    /**
+     * Alias to URI for every row, the URI itself and urn:oid: forms of the OIDs included
+     */
+    static Map<String, String> read(Reader in, String source) throws IOException {
+        Map<String, String> aliases = new LinkedHashMap<>();
+        try {
+            for (CSVRecord record : CSVFormat.RFC4180.withCommentMarker('#').withFirstRecordAsHeader()
+                    .withIgnoreEmptyLines().withTrim().parse(in)) {
+                String uri = record.get("uri");
+                if (uri.isEmpty()) {
+                    throw new IOException("Missing uri on line " + record.getRecordNumber() + " of " + source);
+                }
+                aliases.put(uri, uri);
+                for (String oid : split(record.get("oids"))) {
+                    aliases.put(oid, uri);
+                    aliases.put("urn:oid:" + oid, uri);
+                }
+                for (String name : split(record.get("names"))) {
+                    aliases.put(name, uri);
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Invalid code system registry " + source + ": " + e.getMessage(), e);
+        }
+        return aliases;
+    }
+
+    private static List<String> split(String list) {
+        List<String> out = new ArrayList<>();
+        for (String item : list.split("\\|")) {
+            if (!item.trim().isEmpty()) {
+                out.add(item.trim());
+            }
+        }
+        return out;
+    }
+
+    public static CodeSystemRegistry build(Map<String, String> aliases) {
+        //One shared instance per URI
+        Map<String, String> interned = new HashMap<>();
+        Map<Integer, List<String>> byHash = new HashMap<>();
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            interned.computeIfAbsent(alias.getValue(), uri -> uri);
+            byHash.computeIfAbsent(alias.getKey().hashCode(), h -> new ArrayList<>()).add(alias.getKey());
+        }
+        Map<String, String> overflow = new HashMap<>();
+        List<String> tableKeys = new ArrayList<>();
+        for (List<String> same : byHash.values()) {
+            tableKeys.add(same.get(0));
+            for (int i = 1; i < same.size(); i++) {
+                overflow.put(same.get(i), interned.get(aliases.get(same.get(i))));
+            }
+        }
+
+        int n = Math.max(1, tableKeys.size());
+        List<List<String>> buckets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (String key : tableKeys) {
+            buckets.get(slot(key.hashCode(), 0, n)).add(key);
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        //Largest buckets first, while the table is still empty enough to find them room
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        int[] displacements = new int[n];
+        String[] keys = new String[n];
+        String[] systems = new String[n];
+        int[] taken = new int[n];
+        int next = 0;
+        for (int b : order) {
+            List<String> bucket = buckets.get(b);
+            if (bucket.size() == 1) {
+                //Singles go straight to a free slot, stored as -(slot + 1)
+                while (keys[next] != null) {
+                    next++;
+                }
+                place(bucket.get(0), next, keys, systems, aliases, interned);
+                displacements[b] = -(next + 1);
+                continue;
+            }
+            if (bucket.isEmpty()) {
+                continue;
+            }
+            for (int d = 1; ; d++) {
+                if (d > MAX_DISPLACEMENT) {
+                    throw new IllegalStateException("No displacement found for a bucket of " + bucket.size() + " code system aliases");
+                }
+                int placed = 0;
+                for (String key : bucket) {
+                    int s = slot(key.hashCode(), d, n);
+                    if (keys[s] != null || taken[s] == d) {
+                        break;
+                    }
+                    taken[s] = d;
+                    placed++;
+                }
+                if (placed < bucket.size()) {
+                    continue;
+                }
+                for (String key : bucket) {
+                    place(key, slot(key.hashCode(), d, n), keys, systems, aliases, interned);
+                }
+                displacements[b] = d;
+                break;
+            }
+        }
+        return new CodeSystemRegistry(displacements, keys, systems, overflow, interned.size());
+    }
+
+    private static void place(String key, int slot, String[] keys, String[] systems, Map<String, String> aliases, Map<String, String> interned) {
+        keys[slot] = key;
+        systems[slot] = interned.get(aliases.get(key));
+    }
+
+    private static int slot(int hash, int displacement, int n) {
+        //murmur3 finalizer over the hash code and displacement
+        int h = hash ^ (displacement * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % n;
+    }
+
+    /**
+     * The canonical URI for a system alias, or null when the alias is not known
+     */
+    public String lookup(String codeSystem) {
+        int hash = codeSystem.hashCode();
+        int n = keys.length;
+        int d = displacements[slot(hash, 0, n)];
+        int s = d < 0 ? -d - 1 : slot(hash, d, n);
+        String key = keys[s];
+        if (key != null && (key == codeSystem || key.equals(codeSystem))) {
+            return systems[s];
+        }
+        return overflow.isEmpty() ? null : overflow.get(codeSystem);
+    }
+
+    /**
+     * The canonical URI for a system alias, systems the registry does not know pass through unchanged
+     */
+    public String getFHIRCodeSystem(String codeSystem) {
+        if (codeSystem == null) {
+            return null;
+        }
+        String system = lookup(codeSystem);
+        return system != null ? system : codeSystem;
+    }
+
+    public int size() {
+        int size = overflow.size();
+        for (String key : keys) {
+            if (key != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public int getSystemCount() {
+        return systemCount;
+    }
+
+    /**
+     * Heap held by the table arrays, the key and URI strings are counted separately as they are shared
+     */
+    public long getTableBytes() {
+        //Array headers of 16 bytes, 4 byte compressed references
+        return 3 * 16L + 4L * displacements.length + 4L * keys.length + 4L * systems.length;
+    }
+}
@@ -0,0 +1,202 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.CodeIssue;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks converted concepts against the code system releases actually deployed. Release files found under a
+ * directory are compiled once to {@link CodeRelease} files kept next to them, concepts of other systems are
+ * counted as unchecked. Validation is thread safe, workers report their counts per value set.
+ */
+@Slf4j
+public class CodeValidator {
+
+    public static final String COMPILED_DIRECTORY = ".compiled";
+    private static final int SEARCH_DEPTH = 6;
+
+    // Per system counters: checked, inactive, unknown, malformed
+    private static final int CHECKED = 0;
+    private static final int INACTIVE = 1;
+    private static final int UNKNOWN = 2;
+    private static final int MALFORMED = 3;
+
+    private final Map<String, CodeRelease> releases = new LinkedHashMap<>();
+    private final Map<String, long[]> counts = new TreeMap<>();
+    private final Map<String, Long> unchecked = new TreeMap<>();
+    private final List<CodeIssue> issues = new ArrayList<>();
+    private final CodeSystemRegistry codeSystems;
+    private int valueSets = 0;
+    private long lookupNanos = 0;
+
+    public CodeValidator() {
+        this(FHIRCodeSystemMapper.getRegistry());
+    }
+
+    /**
+     * A validator matching concept systems to the releases through codeSystems
+     */
+    public CodeValidator(CodeSystemRegistry codeSystems) {
+        this.codeSystems = codeSystems;
+    }
+
+    public static CodeValidator load(File releaseDir) throws IOException {
+        return load(releaseDir, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    /**
+     * Find the SNOMED RF2 concept snapshot, LOINC table and RXNCONSO files under releaseDir and open their
+     * compiled forms. When more than one file of a kind is found the last by name wins, release names carry a date.
+     */
+    public static CodeValidator load(File releaseDir, CodeSystemRegistry codeSystems) throws IOException {
+        if (!releaseDir.isDirectory()) {
+            throw new IOException("Release directory " + releaseDir.getPath() + " does not exist");
+        }
+        Map<CodeRelease.Kind, File> sources = new EnumMap<>(CodeRelease.Kind.class);
+        try (Stream<Path> paths = Files.walk(releaseDir.toPath(), SEARCH_DEPTH)) {
+            for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                CodeRelease.Kind kind = CodeRelease.Kind.forFileName(path.getFileName().toString());
+                if (kind == null) {
+                    continue;
+                }
+                File previous = sources.get(kind);
+                if (previous != null) {
+                    log.warn("Found more than one " + kind.getTitle() + " release file: " + previous + ", " + path);
+                }
+                if (previous == null || previous.getName().compareTo(path.getFileName().toString()) < 0) {
+                    sources.put(kind, path.toFile());
+                }
+            }
+        }
+        if (sources.isEmpty()) {
+            throw new IOException("No SNOMED CT, LOINC or RxNorm release files found in " + releaseDir.getPath());
+        }
+        CodeValidator validator = new CodeValidator(codeSystems);
+        File compiledDir = new File(releaseDir, COMPILED_DIRECTORY);
+        for (Map.Entry<CodeRelease.Kind, File> source : sources.entrySet()) {
+            File compiled = new File(compiledDir, source.getKey().name().toLowerCase() + ".codes");
+            validator.add(CodeRelease.load(source.getKey(), source.getValue(), compiled));
+        }
+        return validator;
+    }
+
+    public void add(CodeRelease release) {
+        releases.put(release.getKind().getSystem(), release);
+    }
+
+    public Collection<CodeRelease> getReleases() {
+        return releases.values();
+    }
+
+    public void validate(String valueSetId, SvsValueSet svs) {
+        Map<String, long[]> local = new HashMap<>();
+        Map<String, Long> localUnchecked = new HashMap<>();
+        List<CodeIssue> found = new ArrayList<>();
+        long start = System.nanoTime();
+        //Concepts come grouped by system, only map the system again when it changes
+        String lastCodeSystem = null;
+        String system = null;
+        CodeRelease release = null;
+        long[] tally = null;
+        for (SvsConcept concept : svs.getConcepts()) {
+            if (lastCodeSystem == null || !lastCodeSystem.equals(concept.getCodeSystem())) {
+                lastCodeSystem = concept.getCodeSystem();
+                system = String.valueOf(codeSystems.getFHIRCodeSystem(lastCodeSystem));
+                release = releases.get(system);
+                tally = release == null ? null : local.computeIfAbsent(system, s -> new long[4]);
+            }
+            if (release == null) {
+                localUnchecked.merge(system, 1L, Long::sum);
+                continue;
+            }
+            tally[CHECKED]++;
+            String code = concept.getCode() == null ? "" : concept.getCode();
+            CodeRelease.Status status = release.lookup(code);
+            switch (status) {
+                case ACTIVE:
+                    continue;
+                case INACTIVE:
+                    tally[INACTIVE]++;
+                    break;
+                case UNKNOWN:
+                    tally[UNKNOWN]++;
+                    break;
+                case MALFORMED:
+                    tally[MALFORMED]++;
+                    break;
+            }
+            found.add(new CodeIssue(valueSetId, system, code, concept.getDisplayName(), status.name().toLowerCase()));
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            valueSets++;
+            lookupNanos += elapsed;
+            for (Map.Entry<String, long[]> entry : local.entrySet()) {
+                long[] total = counts.computeIfAbsent(entry.getKey(), s -> new long[4]);
+                for (int i = 0; i < total.length; i++) {
+                    total[i] += entry.getValue()[i];
+                }
+            }
+            localUnchecked.forEach((key, count) -> unchecked.merge(key, count, Long::sum));
+            issues.addAll(found);
+        }
+    }
+
+    /**
+     * Issues ordered by value set, system and code
+     */
+    public synchronized List<CodeIssue> getIssues() {
+        List<CodeIssue> sorted = new ArrayList<>(issues);
+        sorted.sort(Comparator.comparing(CodeIssue::getValueSetId).thenComparing(CodeIssue::getSystem).thenComparing(CodeIssue::getCode));
+        return sorted;
+    }
+
+    public synchronized long getChecked() {
+        long checked = 0;
+        for (long[] tally : counts.values()) {
+            checked += tally[CHECKED];
+        }
+        return checked;
+    }
+
+    public synchronized String getSummary() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("Validated ").append(valueSets).append(" valuesets, ").append(getChecked()).append(" codes");
+        if (lookupNanos > 0) {
+            bld.append(String.format(" at %.1f million codes/s", getChecked() / (lookupNanos / 1e9) / 1e6));
+        }
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            long[] tally = entry.getValue();
+            bld.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(": ")
+                    .append(tally[CHECKED]).append(" checked, ")
+                    .append(tally[INACTIVE]).append(" inactive, ")
+                    .append(tally[UNKNOWN]).append(" unknown, ")
+                    .append(tally[MALFORMED]).append(" malformed");
+        }
+        for (Map.Entry<String, Long> entry : unchecked.entrySet()) {
+            bld.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append(" not checked, no release loaded");
+        }
+        return bld.toString();
+    }
+
+    public void writeReport(OutputStream out, char delimiter, boolean bom) throws IOException {
+        CsvWriter csv = CsvWriter.open(out, delimiter, bom);
+        csv.writeRecord("ValueSet", "System", "Code", "Display", "Status");
+        for (CodeIssue issue : getIssues()) {
+            csv.writeRecord(issue.getValueSetId(), issue.getSystem(), issue.getCode(), issue.getDisplay(), issue.getStatus());
+        }
+        csv.flush();
+    }
+}
@@ -0,0 +1,515 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.google.common.base.Charsets;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The state of one convert or validate run and the sinks each value set goes to: code validation, the search
+ * index, the history store and then a database, a package or one file per value set, with the shard journal
+ * recording the outcome. Built once per run and shared by all converting threads, closing it writes the index
+ * and the validation report and closes the rest. Fetching and reading the source are left to the caller.
+ */
+@Slf4j
+public class ConversionRun implements Closeable {
+
+    private final String format;
+    private final ValueSetConverter converter;
+    private final File outputDirectory;
+    private final File outputFile;
+    private final boolean validateOnly;
+    private final HashedFileWriter fileWriter;
+    private final MemoryBudget memoryBudget;
+    private final Shard shard;
+    private final Map<String, String> shardKeys;
+    private final boolean redo;
+    private final Consumer<String> detail;
+
+    private ShardJournal journal;
+    private SearchIndexWriter searchIndex;
+    private HistoryStore historyStore;
+    private CodeValidator codeValidator;
+    private DatabaseWriter databaseWriter;
+    private FhirPackageWriter packageWriter;
+    private File validationReport;
+    private boolean closed;
+
+    private ConversionRun(Builder builder) {
+        format = builder.format;
+        converter = builder.converter;
+        outputDirectory = builder.outputDirectory;
+        outputFile = builder.outputFile;
+        validateOnly = builder.validateOnly;
+        fileWriter = new HashedFileWriter(builder.force);
+        memoryBudget = builder.memoryBudget;
+        shard = builder.shard;
+        shardKeys = builder.shardKeys;
+        redo = builder.redo;
+        detail = builder.detail;
+        codeValidator = builder.codeValidator;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Formats that collect every value set into one package or database
+     */
+    public static boolean isSingleOutput(String format) {
+        return "package".equals(format) || "db".equals(format);
+    }
+
+    public static String getSuffix(String format) {
+        switch (format) {
+            case "fhir+json":
+                return "json";
+            case "fhir+xml":
+                return "xml";
+            default:
+                return format;
+        }
+    }
+
+    private void open(Builder builder) throws IOException {
+        if (shard != null) {
+            journal = ShardJournal.open(getDirectory(), shard);
+        }
+        if (validateOnly) {
+            return;
+        }
+        if (builder.searchIndex) {
+            searchIndex = SearchIndexWriter.load(getSearchIndexFile(), converter.getCodeSystems());
+        }
+        if (builder.history) {
+            historyStore = HistoryStore.open(getHistoryDirectory());
+        }
+        if ("package".equals(format)) {
+            packageWriter = new FhirPackageWriter(getOutputFile("package", "tgz"), builder.packageName, builder.packageVersion);
+        } else if ("db".equals(format)) {
+            //Default to an embedded H2 file, vsac.mv.db in the output directory
+            String url = builder.databaseUrl;
+            if (url == null) {
+                String path = getOutputFile("vsac", "db").getAbsolutePath();
+                path = path.endsWith(".mv.db") ? path.substring(0, path.length() - 6) : path.endsWith(".db") ? path.substring(0, path.length() - 3) : path;
+                url = "jdbc:h2:file:" + path;
+            }
+            databaseWriter = new DatabaseWriter(url, builder.batchSize, converter.getCodeSystems());
+            detail.accept((databaseWriter.isBulk() ? "Bulk loading new database " : "Updating database ") + url);
+        }
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public boolean isValidateOnly() {
+        return validateOnly;
+    }
+
+    public Shard getShard() {
+        return shard;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public HashedFileWriter getFileWriter() {
+        return fileWriter;
+    }
+
+    public HistoryStore getHistoryStore() {
+        return historyStore;
+    }
+
+    public CodeValidator getCodeValidator() {
+        return codeValidator;
+    }
+
+    public DatabaseWriter getDatabaseWriter() {
+        return databaseWriter;
+    }
+
+    public FhirPackageWriter getPackageWriter() {
+        return packageWriter;
+    }
+
+    /**
+     * Where close wrote the validation report, null until then or without code validation
+     */
+    public File getValidationReport() {
+        return validationReport;
+    }
+
+    /**
+     * Whether more than one value set may be converted, only package and db output or validation collect
+     * everything when a single output file is given
+     */
+    public boolean acceptsMany() {
+        return outputFile == null || isSingleOutput(format) || validateOnly;
+    }
+
+    /**
+     * Whether this run's shard owns the value set and has not already completed it in an earlier run
+     */
+    public boolean isSelected(String valueSetId) {
+        if (shard == null) {
+            return true;
+        }
+        if (!shard.owns(shardKeys.getOrDefault(valueSetId, valueSetId))) {
+            return false;
+        }
+        if (journal.isCompleted(valueSetId) && !redo) {
+            detail.accept("Skipping " + valueSetId + ", already completed by shard " + shard);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send one raw SVS response to the sinks, parsed once unless it only goes to an xml file as it is
+     */
+    public void write(String vs, String valueSetId) throws IOException {
+        //Raw output, no need to parse
+        boolean raw = "xml".equals(format);
+        if (raw && searchIndex == null && historyStore == null && codeValidator == null) {
+            writeFile(valueSetId, out -> out.write(vs.getBytes(Charsets.UTF_8)));
+            return;
+        }
+        SvsValueSet svs = ValueSetConverter.parse(vs, valueSetId);
+        if (!record(valueSetId, svs)) {
+            return;
+        }
+        if (raw) {
+            writeFile(valueSetId, out -> out.write(vs.getBytes(Charsets.UTF_8)));
+        } else {
+            store(valueSetId, svs);
+        }
+    }
+
+    /**
+     * Send a value set that is already parsed, or built by the caller, to the sinks
+     */
+    public void write(String valueSetId, SvsValueSet svs) throws IOException {
+        if (record(valueSetId, svs)) {
+            store(valueSetId, svs);
+        }
+    }
+
+    /**
+     * Write a FHIR value set built by the caller to the package or a fhir+json or fhir+xml file, it is neither
+     * validated nor indexed
+     */
+    public void write(ValueSet hvs) throws IOException {
+        if (packageWriter != null) {
+            writeToPackage(hvs);
+        } else if (format.startsWith("fhir+")) {
+            writeFile(hvs.getIdElement().getIdPart(), out -> ValueSetConverter.write(hvs, format, out));
+        } else {
+            throw new IllegalStateException("Can not write a FHIR valueset as " + format);
+        }
+    }
+
+    /**
+     * Validate, index and keep the history of a value set, false when it goes no further
+     */
+    private boolean record(String valueSetId, SvsValueSet svs) throws IOException {
+        if (codeValidator != null) {
+            codeValidator.validate(valueSetId, svs);
+            if (validateOnly) {
+                return false;
+            }
+        }
+        if (searchIndex != null) {
+            searchIndex.add(valueSetId, svs);
+        }
+        if (historyStore != null && historyStore.record(valueSetId, svs)) {
+            detail.accept("Recorded new version of " + valueSetId + " in history");
+        }
+        return true;
+    }
+
+    private void store(String valueSetId, SvsValueSet svs) throws IOException {
+        if (databaseWriter != null) {
+            if (!databaseWriter.write(valueSetId, svs)) {
+                detail.accept("Unchanged " + valueSetId + " in database");
+            }
+        } else if (packageWriter != null) {
+            if (converter.isFastFhir()) {
+                writeToPackage(svs, valueSetId);
+            } else {
+                writeToPackage(ValueSetConverter.toFhir(svs, valueSetId, converter.getCodeSystems()));
+            }
+        } else {
+            writeFile(valueSetId, out -> converter.write(svs, valueSetId, format, out));
+        }
+    }
+
+    private void writeFile(String valueSetId, HashedFileWriter.Content content) throws IOException {
+        File file = getOutputFile(valueSetId, getSuffix(format));
+        if (!fileWriter.write(file, content)) {
+            detail.accept("Unchanged " + file.getPath());
+        }
+    }
+
+    private void writeToPackage(ValueSet hvs) throws IOException {
+        byte[] json = ValueSetConverter.getFhirContext().newJsonParser().encodeResourceToString(hvs).getBytes(Charsets.UTF_8);
+        packageWriter.addValueSet(hvs.getIdElement().getIdPart(), hvs.getUrl(), hvs.getVersion(), json);
+    }
+
+    private void writeToPackage(SvsValueSet svs, String valueSetId) throws IOException {
+        String url = ValueSetConverter.VALUESET_BASE + valueSetId;
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new FhirValueSetStreamWriter(svs, valueSetId, url, converter.getCodeSystems()).writeJson(json, false);
+        String version = svs.getVersion() == null || svs.getVersion().trim().isEmpty() ? null : svs.getVersion();
+        packageWriter.addValueSet(valueSetId, url, version, json.toByteArray());
+    }
+
+    public void recordSuccess(String valueSetId, long bytes, long millis) throws IOException {
+        if (journal != null) {
+            journal.recordSuccess(valueSetId, getOutputFile(valueSetId, getSuffix(format)).getPath(), bytes, millis);
+        }
+    }
+
+    public void recordFailure(String valueSetId, Exception e, long millis) {
+        if (journal != null) {
+            try {
+                journal.recordFailure(valueSetId, e.getMessage(), millis);
+            } catch (IOException ioe) {
+                log.error("Error writing shard journal", ioe);
+            }
+        }
+    }
+
+    public File getOutputFile(String valueSetId, String suffix) {
+        return outputFile != null ? outputFile : new File(outputDirectory, valueSetId + "." + suffix);
+    }
+
+    private File getDirectory() {
+        return outputDirectory != null ? outputDirectory : new File(".");
+    }
+
+    private String getShardSuffix() {
+        return shard == null ? "" : "-" + shard.getIndex() + "-of-" + shard.getCount();
+    }
+
+    private File getSearchIndexFile() {
+        //Shards share the output directory, each keeps its own index and search reads them all
+        return new File(getDirectory(), "search" + getShardSuffix() + ".vsi");
+    }
+
+    private File getHistoryDirectory() {
+        return new File(getDirectory(), "history");
+    }
+
+    /**
+     * Close every sink even when one fails, the first failure is thrown with the others suppressed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Closeable step : new Closeable[]{packageWriter, databaseWriter, journal, this::closeSearchIndex, historyStore, this::closeValidator}) {
+            try {
+                if (step != null) {
+                    step.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void closeSearchIndex() throws IOException {
+        if (searchIndex != null && searchIndex.isChanged()) {
+            searchIndex.write(getSearchIndexFile());
+            detail.accept("Updated search index, " + searchIndex.getValueSetCount() + " valuesets");
+        }
+    }
+
+    private void closeValidator() throws IOException {
+        if (codeValidator == null) {
+            return;
+        }
+        //Convert keeps -o for its own output, the report always goes next to it
+        File report = validateOnly && outputFile != null ? outputFile : new File(getDirectory(), ShardJournal.VALIDATION_REPORT_PREFIX + getShardSuffix() + ".csv");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(report))) {
+            codeValidator.writeReport(out, converter.getCsvDelimiter(), converter.isCsvBom());
+        }
+        validationReport = report;
+    }
+
+    public static class Builder {
+        private String format = "csv";
+        private ValueSetConverter converter = new ValueSetConverter();
+        private File outputDirectory;
+        private File outputFile;
+        private boolean force;
+        private boolean validateOnly;
+        private MemoryBudget memoryBudget = MemoryBudget.unlimited();
+        private Shard shard;
+        private Map<String, String> shardKeys = Collections.emptyMap();
+        private boolean redo;
+        private boolean searchIndex = true;
+        private boolean history = true;
+        private String packageName = "vsac.valuesets";
+        private String packageVersion = "0.1.0";
+        private String databaseUrl;
+        private int batchSize = DatabaseWriter.DEFAULT_BATCH_SIZE;
+        private CodeValidator codeValidator;
+        private Consumer<String> detail = log::debug;
+
+        private Builder() {
+        }
+
+        /**
+         * One of the converter formats, package or db
+         */
+        public Builder format(String format) {
+            this.format = format;
+            return this;
+        }
+
+        public Builder converter(ValueSetConverter converter) {
+            this.converter = converter;
+            return this;
+        }
+
+        /**
+         * Where output files, the search index, history, journals and reports go, the working directory when not set
+         */
+        public Builder outputDirectory(File outputDirectory) {
+            this.outputDirectory = outputDirectory;
+            return this;
+        }
+
+        /**
+         * A single file taking the output of every value set, the package or the database
+         */
+        public Builder outputFile(File outputFile) {
+            this.outputFile = outputFile;
+            return this;
+        }
+
+        /**
+         * Rewrite output files even when their content is unchanged
+         */
+        public Builder force(boolean force) {
+            this.force = force;
+            return this;
+        }
+
+        /**
+         * Only check codes, nothing but the validation report and the shard journal is written
+         */
+        public Builder validateOnly(boolean validateOnly) {
+            this.validateOnly = validateOnly;
+            return this;
+        }
+
+        public Builder memoryBudget(MemoryBudget memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * Convert only the value sets the shard owns, hashing the key given for a value set or else its id. Value
+         * sets the shard journal records as completed are skipped unless redo is set.
+         */
+        public Builder shard(Shard shard, Map<String, String> shardKeys, boolean redo) {
+            this.shard = shard;
+            this.shardKeys = new HashMap<>(shardKeys);
+            this.redo = redo;
+            return this;
+        }
+
+        public Builder searchIndex(boolean searchIndex) {
+            this.searchIndex = searchIndex;
+            return this;
+        }
+
+        public Builder history(boolean history) {
+            this.history = history;
+            return this;
+        }
+
+        public Builder packageId(String name, String version) {
+            this.packageName = name;
+            this.packageVersion = version;
+            return this;
+        }
+
+        /**
+         * JDBC url and batch size for db output, an H2 file vsac.mv.db in the output directory when the url is null
+         */
+        public Builder database(String url, int batchSize) {
+            this.databaseUrl = url;
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Check every value set's codes against these releases, the report is written on close
+         */
+        public Builder codeValidator(CodeValidator codeValidator) {
+            this.codeValidator = codeValidator;
+            return this;
+        }
+
+        /**
+         * Receives progress lines about single value sets, logged at debug when not set
+         */
+        public Builder detail(Consumer<String> detail) {
+            this.detail = detail;
+            return this;
+        }
+
+        /**
+         * Open the sinks, a package or database can not be sharded since every shard would write the same file
+         */
+        public ConversionRun build() throws IOException {
+            if (shard != null && isSingleOutput(format)) {
+                throw new IllegalArgumentException("Package and db output can not be sharded, convert to files and load after merge");
+            }
+            ConversionRun run = new ConversionRun(this);
+            try {
+                run.open(this);
+            } catch (IOException | RuntimeException e) {
+                //Nothing was converted, there is no report to write
+                run.codeValidator = null;
+                try {
+                    run.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            return run;
+        }
+    }
+}
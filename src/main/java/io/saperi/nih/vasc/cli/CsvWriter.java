@@ -0,0 +1,166 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CSV encoder writing UTF-8 into a byte buffer over the sink. Quoting follows RFC 4180: fields are only quoted
+ * when they contain the delimiter, a quote or a line break and embedded quotes are doubled. Record separators do
+ * not, records end in LF rather than CRLF and there is no line break after the last one, the layout the converter
+ * has always written, so unquoted output stays byte for byte the same as earlier releases.
+ */
+public class CsvWriter implements Closeable, Flushable {
+
+    private static final byte QUOTE = '"';
+    private static final int CACHED_COLUMNS = 8;
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private final OutputStream out;
+    private final char delimiter;
+    //ASCII bytes that force a field to be quoted, UTF-8 never reuses them inside a multi byte sequence
+    private final boolean[] special = new boolean[0x80];
+    private final byte[] buf = new byte[8192];
+    private int pos = 0;
+    private boolean firstField = true;
+    private boolean firstRecord = true;
+    //Systems and versions repeat row after row as the same instance, keep the encoding of the last value per column
+    private int column = 0;
+    private final String[] lastValue = new String[CACHED_COLUMNS];
+    private final byte[][] lastBytes = new byte[CACHED_COLUMNS][];
+    private final boolean[] lastQuoted = new boolean[CACHED_COLUMNS];
+
+    public CsvWriter(OutputStream out, char delimiter) {
+        if (delimiter >= 0x80 || delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("Invalid csv delimiter");
+        }
+        this.out = out;
+        this.delimiter = delimiter;
+        special[delimiter] = true;
+        special['"'] = true;
+        special['\n'] = true;
+        special['\r'] = true;
+    }
+
+    /**
+     * Open a writer over a stream, optionally starting with a UTF-8 byte order mark for spreadsheet tools
+     */
+    public static CsvWriter open(OutputStream stream, char delimiter, boolean bom) throws IOException {
+        CsvWriter writer = new CsvWriter(stream, delimiter);
+        if (bom) {
+            writer.put(BOM, 0, BOM.length);
+        }
+        return writer;
+    }
+
+    public CsvWriter field(String value) throws IOException {
+        if (firstField) {
+            if (!firstRecord) {
+                put((byte) '\n');
+            }
+            firstRecord = false;
+            firstField = false;
+            column = 0;
+        } else {
+            put((byte) delimiter);
+            column++;
+        }
+        if (value == null || value.isEmpty()) {
+            return this;
+        }
+        byte[] bytes;
+        boolean quote;
+        if (column < CACHED_COLUMNS && value == lastValue[column]) {
+            bytes = lastBytes[column];
+            quote = lastQuoted[column];
+        } else {
+            //The JDK encoder is a straight copy for the usual all ASCII string
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+            quote = needsQuote(bytes);
+            if (column < CACHED_COLUMNS) {
+                lastValue[column] = value;
+                lastBytes[column] = bytes;
+                lastQuoted[column] = quote;
+            }
+        }
+        if (!quote) {
+            put(bytes, 0, bytes.length);
+            return this;
+        }
+        put(QUOTE);
+        //Copy runs between quotes, doubling each embedded quote
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == QUOTE) {
+                put(bytes, start, i + 1 - start);
+                put(QUOTE);
+                start = i + 1;
+            }
+        }
+        put(bytes, start, bytes.length - start);
+        put(QUOTE);
+        return this;
+    }
+
+    public CsvWriter endRecord() {
+        //The line break is written ahead of the next record
+        firstField = true;
+        return this;
+    }
+
+    public void writeRecord(String... fields) throws IOException {
+        for (String f : fields) {
+            field(f);
+        }
+        endRecord();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void put(byte b) throws IOException {
+        if (pos == buf.length) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+        buf[pos++] = b;
+    }
+
+    private void put(byte[] bytes, int off, int len) throws IOException {
+        if (len > buf.length - pos) {
+            out.write(buf, 0, pos);
+            pos = 0;
+            if (len > buf.length) {
+                out.write(bytes, off, len);
+                return;
+            }
+        }
+        System.arraycopy(bytes, off, buf, pos, len);
+        pos += len;
+    }
+
+    private boolean needsQuote(byte[] bytes) {
+        boolean[] special = this.special;
+        for (byte b : bytes) {
+            if (b >= 0 && special[b]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,384 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Loads value sets into a relational database through JDBC, by default an embedded H2 file. The schema is
+ * normalized into valueset, code_system, concept and membership tables. Rows go through batched prepared
+ * statements with one transaction per value set, so a value set is always replaced as a whole. A new database
+ * is bulk loaded without indexes and indexed on close, later runs upsert: unchanged value sets are skipped by
+ * content hash, changed ones have their membership replaced and concept displays updated.
+ * Safe to call from multiple conversion threads, writes are serialized.
+ */
+@Slf4j
+public class DatabaseWriter implements Closeable {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final String[] TABLES = {
+            "CREATE TABLE valueset (oid VARCHAR(256) NOT NULL, title VARCHAR(1024), version VARCHAR(256), "
+                    + "concept_count INTEGER NOT NULL, content_hash CHAR(64) NOT NULL, loaded_on TIMESTAMP NOT NULL)",
+            "CREATE TABLE code_system (id INTEGER NOT NULL, url VARCHAR(512) NOT NULL, version VARCHAR(256) NOT NULL)",
+            "CREATE TABLE concept (id BIGINT NOT NULL, system_id INTEGER NOT NULL, code VARCHAR(256) NOT NULL, display VARCHAR(4000))",
+            "CREATE TABLE membership (valueset_oid VARCHAR(256) NOT NULL, concept_id BIGINT NOT NULL)",
+            "CREATE TABLE schema_info (name VARCHAR(64) NOT NULL, value VARCHAR(256) NOT NULL)"
+    };
+    private static final String[] INDEXES = {
+            "CREATE UNIQUE INDEX valueset_oid ON valueset (oid)",
+            "CREATE UNIQUE INDEX code_system_id ON code_system (id)",
+            "CREATE UNIQUE INDEX code_system_url ON code_system (url, version)",
+            "CREATE UNIQUE INDEX concept_id ON concept (id)",
+            "CREATE UNIQUE INDEX concept_code ON concept (system_id, code)",
+            "CREATE UNIQUE INDEX membership_valueset ON membership (valueset_oid, concept_id)",
+            "CREATE INDEX membership_concept ON membership (concept_id)"
+    };
+
+    private final Connection connection;
+    private final String url;
+    private final int batchSize;
+    private final boolean bulk;
+    private final CodeSystemRegistry codeSystems;
+
+    private final PreparedStatement insertValueSet;
+    private final PreparedStatement updateValueSet;
+    private final PreparedStatement insertSystem;
+    private final PreparedStatement insertConcept;
+    private final PreparedStatement updateConcept;
+    private final PreparedStatement deleteMembership;
+    private final PreparedStatement insertMembership;
+
+    // What is committed, so a value set only writes what changed
+    private final Map<String, String> valueSetStates = new HashMap<>();
+    private final Map<String, Integer> systemIds = new HashMap<>();
+    private final Map<String, ConceptRef> concepts = new HashMap<>();
+    private int nextSystemId = 1;
+    private long nextConceptId = 1;
+
+    private int written = 0;
+    private int unchanged = 0;
+    private long newConcepts = 0;
+    private long updatedConcepts = 0;
+    private long memberships = 0;
+    private long rows = 0;
+    private long writeNanos = 0;
+    private long indexMillis = -1;
+
+    public DatabaseWriter(String url, int batchSize) throws IOException {
+        this(url, batchSize, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public DatabaseWriter(String url, int batchSize, CodeSystemRegistry codeSystems) throws IOException {
+        this.url = url;
+        this.codeSystems = codeSystems;
+        this.batchSize = Math.max(1, batchSize);
+        try {
+            connection = DriverManager.getConnection(url);
+            connection.setAutoCommit(false);
+            bulk = createSchema();
+            insertValueSet = connection.prepareStatement("INSERT INTO valueset (oid, title, version, concept_count, content_hash, loaded_on) VALUES (?, ?, ?, ?, ?, ?)");
+            updateValueSet = connection.prepareStatement("UPDATE valueset SET title = ?, version = ?, concept_count = ?, content_hash = ?, loaded_on = ? WHERE oid = ?");
+            insertSystem = connection.prepareStatement("INSERT INTO code_system (id, url, version) VALUES (?, ?, ?)");
+            insertConcept = connection.prepareStatement("INSERT INTO concept (id, system_id, code, display) VALUES (?, ?, ?, ?)");
+            updateConcept = connection.prepareStatement("UPDATE concept SET display = ? WHERE id = ?");
+            deleteMembership = connection.prepareStatement("DELETE FROM membership WHERE valueset_oid = ?");
+            insertMembership = connection.prepareStatement("INSERT INTO membership (valueset_oid, concept_id) VALUES (?, ?)");
+            loadKeys();
+        } catch (SQLException e) {
+            throw new IOException("Unable to open database " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Create the tables of a new database, returns true when the indexes still have to be built
+     */
+    private boolean createSchema() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            if (hasTable("schema_info")) {
+                try (ResultSet rs = stmt.executeQuery("SELECT value FROM schema_info WHERE name = 'indexed'")) {
+                    //A run that died before indexing left the tables without indexes
+                    return !rs.next();
+                }
+            }
+            for (String ddl : TABLES) {
+                stmt.execute(ddl);
+            }
+            stmt.execute("INSERT INTO schema_info (name, value) VALUES ('version', '1')");
+            connection.commit();
+            return true;
+        }
+    }
+
+    private boolean hasTable(String name) throws SQLException {
+        //Databases differ in the case they keep unquoted names in
+        try (ResultSet rs = connection.getMetaData().getTables(null, null, "%", new String[]{"TABLE"})) {
+            while (rs.next()) {
+                if (name.equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void loadKeys() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT oid, content_hash, title, version FROM valueset")) {
+                while (rs.next()) {
+                    valueSetStates.put(rs.getString(1), state(rs.getString(2), rs.getString(3), rs.getString(4)));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT id, url, version FROM code_system")) {
+                while (rs.next()) {
+                    systemIds.put(systemKey(rs.getString(2), rs.getString(3)), rs.getInt(1));
+                    nextSystemId = Math.max(nextSystemId, rs.getInt(1) + 1);
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT id, system_id, code, display FROM concept")) {
+                while (rs.next()) {
+                    concepts.put(conceptKey(rs.getInt(2), rs.getString(3)), new ConceptRef(rs.getLong(1), rs.getString(4)));
+                    nextConceptId = Math.max(nextConceptId, rs.getLong(1) + 1);
+                }
+            }
+        }
+        connection.commit();
+    }
+
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * Insert or replace one value set in its own transaction, returns false when it is already loaded unchanged
+     */
+    public synchronized boolean write(String valueSetId, SvsValueSet svs) throws IOException {
+        long start = System.nanoTime();
+        String hash = HistoryStore.hash(svs.getConcepts());
+        String state = state(hash, svs.getDisplayName(), svs.getVersion());
+        String previous = valueSetStates.get(valueSetId);
+        if (state.equals(previous)) {
+            unchanged++;
+            return false;
+        }
+        //Keys are only published to the maps once the transaction commits
+        Map<String, Integer> addedSystems = new HashMap<>();
+        Map<String, ConceptRef> addedConcepts = new HashMap<>();
+        Set<Long> members = new LinkedHashSet<>();
+        long conceptId = nextConceptId;
+        int systemId = nextSystemId;
+        long valueSetRows = 0;
+        long inserted = 0;
+        long updated = 0;
+        try {
+            Pending conceptInserts = new Pending(insertConcept);
+            Pending conceptUpdates = new Pending(updateConcept);
+            for (SvsConcept concept : svs.getConcepts()) {
+                String system = nullToEmpty(codeSystems.getFHIRCodeSystem(concept.getCodeSystem()));
+                String systemKey = systemKey(system, nullToEmpty(concept.getCodeSystemVersion()));
+                Integer sid = systemIds.get(systemKey);
+                if (sid == null) {
+                    sid = addedSystems.get(systemKey);
+                }
+                if (sid == null) {
+                    sid = systemId++;
+                    addedSystems.put(systemKey, sid);
+                    insertSystem.setInt(1, sid);
+                    insertSystem.setString(2, system);
+                    insertSystem.setString(3, nullToEmpty(concept.getCodeSystemVersion()));
+                    insertSystem.executeUpdate();
+                    valueSetRows++;
+                }
+                String code = nullToEmpty(concept.getCode());
+                String conceptKey = conceptKey(sid, code);
+                ConceptRef ref = addedConcepts.get(conceptKey);
+                if (ref == null) {
+                    ref = concepts.get(conceptKey);
+                    if (ref == null) {
+                        ref = new ConceptRef(conceptId++, concept.getDisplayName());
+                        insertConcept.setLong(1, ref.id);
+                        insertConcept.setInt(2, sid);
+                        insertConcept.setString(3, code);
+                        insertConcept.setString(4, concept.getDisplayName());
+                        conceptInserts.add();
+                        addedConcepts.put(conceptKey, ref);
+                        inserted++;
+                    } else if (!Objects.equals(ref.display, concept.getDisplayName())) {
+                        ref = new ConceptRef(ref.id, concept.getDisplayName());
+                        updateConcept.setString(1, concept.getDisplayName());
+                        updateConcept.setLong(2, ref.id);
+                        conceptUpdates.add();
+                        addedConcepts.put(conceptKey, ref);
+                        updated++;
+                    }
+                }
+                members.add(ref.id);
+            }
+            conceptInserts.flush();
+            conceptUpdates.flush();
+
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            if (previous != null) {
+                deleteMembership.setString(1, valueSetId);
+                deleteMembership.executeUpdate();
+                updateValueSet.setString(1, svs.getDisplayName());
+                updateValueSet.setString(2, svs.getVersion());
+                updateValueSet.setInt(3, members.size());
+                updateValueSet.setString(4, hash);
+                updateValueSet.setTimestamp(5, now);
+                updateValueSet.setString(6, valueSetId);
+                updateValueSet.executeUpdate();
+            } else {
+                insertValueSet.setString(1, valueSetId);
+                insertValueSet.setString(2, svs.getDisplayName());
+                insertValueSet.setString(3, svs.getVersion());
+                insertValueSet.setInt(4, members.size());
+                insertValueSet.setString(5, hash);
+                insertValueSet.setTimestamp(6, now);
+                insertValueSet.executeUpdate();
+            }
+            Pending membershipInserts = new Pending(insertMembership);
+            for (long member : members) {
+                insertMembership.setString(1, valueSetId);
+                insertMembership.setLong(2, member);
+                membershipInserts.add();
+            }
+            membershipInserts.flush();
+            connection.commit();
+            valueSetRows += 1 + inserted + updated + members.size();
+        } catch (SQLException e) {
+            try {
+                //Rows batched but not yet executed would otherwise go out with the next value set
+                insertConcept.clearBatch();
+                updateConcept.clearBatch();
+                insertMembership.clearBatch();
+                connection.rollback();
+            } catch (SQLException re) {
+                log.error("Rollback failed", re);
+            }
+            throw new IOException("Unable to write valueset " + valueSetId + " to database: " + e.getMessage(), e);
+        }
+        valueSetStates.put(valueSetId, state);
+        systemIds.putAll(addedSystems);
+        concepts.putAll(addedConcepts);
+        nextSystemId = systemId;
+        nextConceptId = conceptId;
+        written++;
+        newConcepts += inserted;
+        updatedConcepts += updated;
+        memberships += members.size();
+        rows += valueSetRows;
+        writeNanos += System.nanoTime() - start;
+        return true;
+    }
+
+    public synchronized int getWritten() {
+        return written;
+    }
+
+    public synchronized int getUnchanged() {
+        return unchanged;
+    }
+
+    public synchronized String getReport() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("Loaded ").append(written).append(" valuesets (").append(unchanged).append(" unchanged) into ").append(url);
+        bld.append(System.lineSeparator()).append("  ").append(memberships).append(" memberships, ")
+                .append(newConcepts).append(" new concepts, ").append(updatedConcepts).append(" updated displays, ")
+                .append(rows).append(" rows in ").append(writeNanos / 1000000).append(" ms");
+        if (writeNanos > 0) {
+            bld.append(String.format(" (%.0f rows/s)", rows / (writeNanos / 1e9)));
+        }
+        if (indexMillis >= 0) {
+            bld.append(System.lineSeparator()).append("  Built indexes in ").append(indexMillis).append(" ms");
+        }
+        return bld.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (bulk) {
+                //Indexes are cheaper to build once over the loaded rows than to maintain row by row
+                long start = System.currentTimeMillis();
+                try (Statement stmt = connection.createStatement()) {
+                    for (String ddl : INDEXES) {
+                        stmt.execute(ddl);
+                    }
+                    stmt.execute("INSERT INTO schema_info (name, value) VALUES ('indexed', 'true')");
+                }
+                connection.commit();
+                indexMillis = System.currentTimeMillis() - start;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Unable to index database " + url + ": " + e.getMessage(), e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.error("Error closing database", e);
+            }
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * What decides whether a loaded value set is unchanged: its concepts, title and version
+     */
+    private static String state(String hash, String title, String version) {
+        return hash + "|" + version + "|" + title;
+    }
+
+    private static String systemKey(String url, String version) {
+        return url + "|" + version;
+    }
+
+    private static String conceptKey(int systemId, String code) {
+        return systemId + "|" + code;
+    }
+
+    private static class ConceptRef {
+        final long id;
+        final String display;
+
+        ConceptRef(long id, String display) {
+            this.id = id;
+            this.display = display;
+        }
+    }
+
+    /**
+     * Counts rows added to a statement's batch and executes it every batchSize rows
+     */
+    private class Pending {
+        private final PreparedStatement stmt;
+        private int count = 0;
+
+        Pending(PreparedStatement stmt) {
+            this.stmt = stmt;
+        }
+
+        void add() throws SQLException {
+            stmt.addBatch();
+            if (++count == batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws SQLException {
+            if (count > 0) {
+                stmt.executeBatch();
+                count = 0;
+            }
+        }
+    }
+}
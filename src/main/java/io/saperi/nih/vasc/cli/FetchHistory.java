@@ -0,0 +1,125 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.FetchTiming;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per value set response sizes and fetch/convert durations from previous runs, used to order the
+ * work queue longest-processing-time first so the largest value sets do not start last.
+ */
+@Slf4j
+public class FetchHistory {
+
+    // Weight of the newest observation, older runs decay
+    private static final double SMOOTHING = 0.5;
+
+    private final File file;
+    private final Map<String, FetchTiming> timings = new ConcurrentHashMap<>();
+
+    public FetchHistory(File file) {
+        this.file = file;
+    }
+
+    public static FetchHistory load(File file) {
+        FetchHistory history = new FetchHistory(file);
+        if (file.isFile()) {
+            try {
+                ObjectMapper objectMapper = new ObjectMapper();
+                Map<String, FetchTiming> stored = objectMapper.readValue(file, new TypeReference<Map<String, FetchTiming>>() {});
+                history.timings.putAll(stored);
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable fetch history " + file.getPath(), e);
+            }
+        }
+        return history;
+    }
+
+    public void save() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.writeValue(file, new TreeMap<>(timings));
+    }
+
+    public void record(String valueSetId, long bytes, long fetchMillis, long convertMillis) {
+        timings.compute(valueSetId, (id, old) -> {
+            FetchTiming t = new FetchTiming();
+            t.setBytes(bytes);
+            t.setFetchMillis(old == null ? fetchMillis : smooth(old.getFetchMillis(), fetchMillis));
+            t.setConvertMillis(old == null ? convertMillis : smooth(old.getConvertMillis(), convertMillis));
+            t.setLastRun(new Date());
+            return t;
+        });
+    }
+
+    /**
+     * Response size seen last time, 0 when the value set was never fetched
+     */
+    public long getBytes(String valueSetId) {
+        FetchTiming t = timings.get(valueSetId);
+        return t == null ? 0 : t.getBytes();
+    }
+
+    public boolean isEmpty() {
+        return timings.isEmpty();
+    }
+
+    /**
+     * Expected fetch + convert time, unknown value sets are assumed to be typical (the median of known ones)
+     */
+    public long getExpectedMillis(String valueSetId, long fallback) {
+        FetchTiming t = timings.get(valueSetId);
+        return t == null ? fallback : t.getFetchMillis() + t.getConvertMillis();
+    }
+
+    public long getFallbackMillis() {
+        if (timings.isEmpty()) {
+            return 0;
+        }
+        long[] all = new long[timings.size()];
+        int i = 0;
+        for (FetchTiming t : timings.values()) {
+            all[i++] = t.getFetchMillis() + t.getConvertMillis();
+        }
+        Arrays.sort(all);
+        return all[all.length / 2];
+    }
+
+    /**
+     * Longest processing time first, ties keep their input order
+     */
+    public List<String> schedule(List<String> valueSetIds) {
+        long fallback = getFallbackMillis();
+        List<String> out = new ArrayList<>(valueSetIds);
+        out.sort(Comparator.comparingLong((String id) -> getExpectedMillis(id, fallback)).reversed());
+        return out;
+    }
+
+    /**
+     * Simulated makespan of running the value sets in order on a pool of workers, each job going to the first free worker
+     */
+    public long getExpectedMakespan(List<String> order, int workers) {
+        long fallback = getFallbackMillis();
+        PriorityQueue<Long> free = new PriorityQueue<>();
+        for (int i = 0; i < workers; i++) {
+            free.add(0L);
+        }
+        long makespan = 0;
+        for (String id : order) {
+            long end = free.poll() + getExpectedMillis(id, fallback);
+            makespan = Math.max(makespan, end);
+            free.add(end);
+        }
+        return makespan;
+    }
+
+    private static long smooth(long old, long latest) {
+        return Math.round(old * (1 - SMOOTHING) + latest * SMOOTHING);
+    }
+}
@@ -0,0 +1,81 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams ValueSets into a FHIR NPM package (package.tgz). Resources are written as they are added,
+ * only the small per resource index entries are kept until the .index.json is written on close.
+ * Safe to call from multiple conversion threads.
+ */
+public class FhirPackageWriter implements Closeable {
+
+    private static final String FHIR_VERSION = "4.0.1";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final TarArchiveWriter tar;
+    private final List<IndexEntry> index = new ArrayList<>();
+    private int count = 0;
+
+    public FhirPackageWriter(File file, String name, String version) throws IOException {
+        tar = new TarArchiveWriter(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536)));
+        ObjectNode pkg = mapper.createObjectNode();
+        pkg.put("name", name);
+        pkg.put("version", version);
+        pkg.put("description", "ValueSets converted from VSAC");
+        pkg.putArray("fhirVersions").add(FHIR_VERSION);
+        pkg.putObject("dependencies").put("hl7.fhir.r4.core", FHIR_VERSION);
+        tar.addEntry("package/package.json", mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(pkg));
+    }
+
+    public synchronized void addValueSet(String id, String url, String version, byte[] json) throws IOException {
+        String fileName = "ValueSet-" + id + ".json";
+        tar.addEntry("package/" + fileName, json);
+        index.add(new IndexEntry(fileName, id, url, version));
+        count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ObjectNode root = mapper.createObjectNode();
+        root.put("index-version", 1);
+        ArrayNode files = root.putArray("files");
+        for (IndexEntry entry : index) {
+            ObjectNode file = files.addObject();
+            file.put("filename", entry.fileName);
+            file.put("resourceType", "ValueSet");
+            file.put("id", entry.id);
+            file.put("url", entry.url);
+            if (entry.version != null && !entry.version.isEmpty()) {
+                file.put("version", entry.version);
+            }
+        }
+        tar.addEntry("package/.index.json", mapper.writeValueAsBytes(root));
+        tar.close();
+    }
+
+    class IndexEntry {
+        public String fileName;
+        public String id;
+        public String url;
+        public String version;
+
+        IndexEntry(String fileName, String id, String url, String version) {
+            this.fileName = fileName;
+            this.id = id;
+            this.url = url;
+            this.version = version;
+        }
+    }
+}
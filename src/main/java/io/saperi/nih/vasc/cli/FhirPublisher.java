@@ -0,0 +1,402 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.PublishRecord;
+import io.saperi.nih.vasc.cli.data.PublishResult;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends value sets to a FHIR server as batch or transaction Bundles of PUTs, several bundles at a time. Value sets
+ * whose resource is the same as last published to that server are not sent, changed ones carry an If-Match on the
+ * version the server gave them so an edit made on the server in between is reported as a conflict instead of
+ * being overwritten. Value sets are queued from one thread, bundles are sent from a pool.
+ */
+@Slf4j
+public class FhirPublisher implements Closeable {
+
+    public static final int DEFAULT_BUNDLE_SIZE = 50;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ContentType FHIR_JSON = ContentType.create("application/fhir+json", StandardCharsets.UTF_8);
+
+    private final String target;
+    private final int bundleSize;
+    private final boolean transaction;
+    private final boolean republish;
+    private final PublishState state;
+    private final ExecutorService pool;
+    private final Semaphore inFlight;
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient httpClient;
+    private final long start = System.nanoTime();
+
+    private final List<Future<?>> sends = new ArrayList<>();
+    private List<Entry> pending = new ArrayList<>();
+
+    private final List<PublishResult> results = new ArrayList<>();
+    private final List<Long> bundleLatencies = new ArrayList<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private long elapsedNanos = -1;
+
+    private static class Entry {
+        final String valueSetId;
+        final String json;
+        final String sha256;
+        final String ifMatch;
+
+        Entry(String valueSetId, String json, String sha256, String ifMatch) {
+            this.valueSetId = valueSetId;
+            this.json = json;
+            this.sha256 = sha256;
+            this.ifMatch = ifMatch;
+        }
+    }
+
+    /**
+     * @param target FHIR base URL, bundles are posted to it
+     * @param republish send every value set, unconditionally, even when unchanged since the last publish
+     */
+    public FhirPublisher(String target, int bundleSize, int parallelism, boolean transaction, boolean republish, PublishState state, long timeoutMillis) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        this.bundleSize = Math.max(1, bundleSize);
+        this.transaction = transaction;
+        this.republish = republish;
+        this.state = state;
+        int threads = Math.max(1, parallelism);
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fhir-publish");
+            t.setDaemon(true);
+            return t;
+        });
+        //Bundles built and waiting for a sender are bounded, the queueing thread blocks beyond that
+        inFlight = new Semaphore(threads * 2);
+        connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(threads);
+        connections.setDefaultMaxPerRoute(threads);
+        int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMillis);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        httpClient = HttpClients.custom().setConnectionManager(connections).setDefaultRequestConfig(config).build();
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public void publish(String valueSetId, SvsValueSet svs) throws IOException {
+        publish(valueSetId, svs, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public void publish(String valueSetId, SvsValueSet svs, CodeSystemRegistry codeSystems) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FhirValueSetStreamWriter(svs, valueSetId, ValueSetConverter.VALUESET_BASE + valueSetId, codeSystems).writeJson(out, false);
+        publish(valueSetId, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queue a ValueSet resource in compact json, a full bundle is handed to a sender
+     */
+    public synchronized void publish(String valueSetId, String json) throws IOException {
+        String sha256 = Sha256.hex(json);
+        PublishRecord last = state.get(target, valueSetId);
+        if (!republish && last != null && sha256.equals(last.getSha256())) {
+            addResult(new PublishResult(valueSetId, "unchanged", 0, last.getVersionId(), "not sent, same as last published"));
+            return;
+        }
+        pending.add(new Entry(valueSetId, json, sha256, republish || last == null ? null : last.getVersionId()));
+        if (pending.size() >= bundleSize) {
+            dispatch();
+        }
+    }
+
+    private void dispatch() throws IOException {
+        List<Entry> bundle = pending;
+        pending = new ArrayList<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a bundle to be sent");
+        }
+        try {
+            sends.add(pool.submit(() -> {
+                try {
+                    send(bundle);
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw new IOException("Publisher is closed", e);
+        }
+    }
+
+    private void send(List<Entry> bundle) {
+        long sendStart = System.nanoTime();
+        try {
+            byte[] body = encodeBundle(bundle);
+            HttpPost post = new HttpPost(target);
+            post.setHeader("Accept", "application/fhir+json");
+            post.setEntity(new ByteArrayEntity(body, FHIR_JSON));
+            httpClient.execute(post, response -> {
+                bytesSent.addAndGet(body.length);
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                String text = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+                if (status >= 200 && status < 300) {
+                    readResponse(bundle, text);
+                } else {
+                    String message = (transaction ? "Transaction rejected: " : "Batch rejected: ") + response.getStatusLine();
+                    String detail = getDiagnostics(text);
+                    failAll(bundle, status, detail.isEmpty() ? message : message + ", " + detail);
+                }
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            log.error("Error sending bundle to " + target, e);
+            failAll(bundle, 0, e.getMessage());
+        } finally {
+            synchronized (results) {
+                bundleLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendStart));
+            }
+        }
+    }
+
+    byte[] encodeBundle(List<Entry> bundle) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //Writer based so resource json passes through unchanged, it is already valid json
+        try (JsonGenerator gen = JSON.createGenerator(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536))) {
+            gen.writeStartObject();
+            gen.writeStringField("resourceType", "Bundle");
+            gen.writeStringField("type", transaction ? "transaction" : "batch");
+            gen.writeArrayFieldStart("entry");
+            for (Entry entry : bundle) {
+                gen.writeStartObject();
+                gen.writeStringField("fullUrl", target + "/ValueSet/" + entry.valueSetId);
+                gen.writeFieldName("resource");
+                gen.writeRawValue(entry.json);
+                gen.writeObjectFieldStart("request");
+                gen.writeStringField("method", "PUT");
+                gen.writeStringField("url", "ValueSet/" + entry.valueSetId);
+                if (entry.ifMatch != null) {
+                    gen.writeStringField("ifMatch", "W/\"" + entry.ifMatch + "\"");
+                }
+                gen.writeEndObject();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Outcomes of a batch-response or transaction-response, entries answer the request entries in order
+     */
+    private void readResponse(List<Entry> bundle, String text) throws IOException {
+        JsonNode entries = MAPPER.readTree(text).path("entry");
+        for (int i = 0; i < bundle.size(); i++) {
+            Entry entry = bundle.get(i);
+            JsonNode response = entries.path(i).path("response");
+            if (response.isMissingNode()) {
+                addResult(new PublishResult(entry.valueSetId, "failed", 0, null, "No response entry"));
+                continue;
+            }
+            int status = getStatus(response.path("status").asText(""));
+            String versionId = getVersionId(response);
+            String message = getDiagnostics(response.path("outcome"));
+            if (status == 200 || status == 201) {
+                String outcome = status == 201 ? "created" : entry.ifMatch != null && entry.ifMatch.equals(versionId) ? "unchanged" : "updated";
+                state.put(target, entry.valueSetId, new PublishRecord(entry.sha256, versionId, new Date()));
+                addResult(new PublishResult(entry.valueSetId, outcome, status, versionId, message));
+            } else if (status == 412 || status == 409) {
+                addResult(new PublishResult(entry.valueSetId, "conflict", status, versionId,
+                        message.isEmpty() ? "changed on the server since version " + entry.ifMatch + " was published" : message));
+            } else {
+                addResult(new PublishResult(entry.valueSetId, "failed", status, versionId, message));
+            }
+        }
+    }
+
+    private static int getStatus(String status) {
+        //"201 Created"
+        int end = 0;
+        while (end < status.length() && Character.isDigit(status.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? 0 : Integer.parseInt(status.substring(0, end));
+    }
+
+    /**
+     * The version from the etag, W/"3", or else from the location, ValueSet/1.2.3/_history/3
+     */
+    static String getVersionId(JsonNode response) {
+        String etag = response.path("etag").asText("");
+        int open = etag.indexOf('"');
+        int close = etag.lastIndexOf('"');
+        if (open >= 0 && close > open) {
+            return etag.substring(open + 1, close);
+        }
+        if (!etag.isEmpty()) {
+            return etag;
+        }
+        String location = response.path("location").asText("");
+        int history = location.indexOf("/_history/");
+        if (history >= 0) {
+            String version = location.substring(history + 10);
+            return version.contains("/") ? version.substring(0, version.indexOf('/')) : version;
+        }
+        return null;
+    }
+
+    private static String getDiagnostics(String text) {
+        try {
+            return text.isEmpty() ? "" : getDiagnostics(MAPPER.readTree(text));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static String getDiagnostics(JsonNode outcome) {
+        StringBuilder bld = new StringBuilder();
+        for (JsonNode issue : outcome.path("issue")) {
+            String diagnostics = issue.path("diagnostics").asText("");
+            if (!diagnostics.isEmpty()) {
+                bld.append(bld.length() > 0 ? "; " : "").append(diagnostics);
+            }
+        }
+        return bld.toString();
+    }
+
+    private void failAll(List<Entry> bundle, int status, String message) {
+        for (Entry entry : bundle) {
+            addResult(new PublishResult(entry.valueSetId, "failed", status, null, message));
+        }
+    }
+
+    private void addResult(PublishResult result) {
+        synchronized (results) {
+            results.add(result);
+        }
+        if (!"unchanged".equals(result.getOutcome()) || result.getStatus() != 0) {
+            log.debug(result.getValueSetId() + " " + result.getOutcome() + " " + result.getStatus());
+        }
+    }
+
+    /**
+     * Send what is queued and wait for every bundle
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                if (!pending.isEmpty()) {
+                    dispatch();
+                }
+            }
+            for (Future<?> send : sends) {
+                try {
+                    send.get();
+                } catch (ExecutionException e) {
+                    log.error("Error sending bundle", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for bundles to be sent");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            httpClient.close();
+            connections.close();
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Results ordered by value set id
+     */
+    public List<PublishResult> getResults() {
+        List<PublishResult> sorted;
+        synchronized (results) {
+            sorted = new ArrayList<>(results);
+        }
+        sorted.sort(Comparator.comparing(PublishResult::getValueSetId));
+        return sorted;
+    }
+
+    public int getCount(String outcome) {
+        synchronized (results) {
+            int count = 0;
+            for (PublishResult result : results) {
+                if (outcome.equals(result.getOutcome())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public String getReport() {
+        long nanos = elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - start;
+        double seconds = nanos / 1e9;
+        List<Long> latencies;
+        int total;
+        synchronized (results) {
+            latencies = new ArrayList<>(bundleLatencies);
+            total = results.size();
+        }
+        StringBuilder bld = new StringBuilder();
+        bld.append("Published ").append(total).append(" valuesets to ").append(target).append(" in ")
+                .append(latencies.size()).append(latencies.size() == 1 ? " bundle, " : " bundles, ")
+                .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms: ")
+                .append(getCount("created")).append(" created, ")
+                .append(getCount("updated")).append(" updated, ")
+                .append(getCount("unchanged")).append(" unchanged, ")
+                .append(getCount("conflict")).append(" conflicts, ")
+                .append(getCount("failed")).append(" failed");
+        bld.append(System.lineSeparator()).append(String.format("  %.1f valuesets/s, %.2f MB sent at %.1f MB/s", total / seconds,
+                bytesSent.get() / 1e6, bytesSent.get() / seconds / 1e6));
+        if (!latencies.isEmpty()) {
+            bld.append(", bundle latency p50 ").append(HedgedRequests.percentile(latencies, 50)).append(" ms")
+                    .append(", p95 ").append(HedgedRequests.percentile(latencies, 95)).append(" ms")
+                    .append(", max ").append(HedgedRequests.percentile(latencies, 100)).append(" ms");
+        }
+        return bld.toString();
+    }
+
+    public void writeReport(OutputStream out, char delimiter, boolean bom) throws IOException {
+        CsvWriter csv = CsvWriter.open(out, delimiter, bom);
+        csv.writeRecord("ValueSet", "Outcome", "Status", "Version", "Message");
+        for (PublishResult result : getResults()) {
+            csv.writeRecord(result.getValueSetId(), result.getOutcome(), result.getStatus() == 0 ? "" : Integer.toString(result.getStatus()),
+                    result.getVersionId(), result.getMessage());
+        }
+        csv.flush();
+    }
+}
@@ -0,0 +1,277 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the FHIR ValueSet produced by the converter straight from the parsed concepts, without building the
+ * HAPI object graph. The output matches what HAPI encodes for the same resource byte for byte: the same element
+ * order, blank values left out, HAPI's pretty printing for JSON and its 3 space indented XML.
+ */
+public class FhirValueSetStreamWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String XML_INDENT = "   ";
+    private static final String LINE_FEED = DefaultIndenter.SYS_LF;
+
+    private final SvsValueSet svs;
+    private final String valueSetId;
+    private final String url;
+    private final CodeSystemRegistry codeSystems;
+    private final Map<String, List<SvsConcept>> includes = new LinkedHashMap<>();
+
+    public FhirValueSetStreamWriter(SvsValueSet svs, String valueSetId, String url) {
+        this(svs, valueSetId, url, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public FhirValueSetStreamWriter(SvsValueSet svs, String valueSetId, String url, CodeSystemRegistry codeSystems) {
+        this.svs = svs;
+        this.valueSetId = valueSetId;
+        this.url = url;
+        this.codeSystems = codeSystems;
+        //One include per (system, version) in first seen order, the same grouping as the HAPI converter
+        for (SvsConcept concept : svs.getConcepts()) {
+            String key = codeSystems.getFHIRCodeSystem(concept.getCodeSystem()) + "|" + concept.getCodeSystemVersion();
+            includes.computeIfAbsent(key, k -> new ArrayList<>()).add(concept);
+        }
+    }
+
+    public void writeJson(OutputStream out, boolean pretty) throws IOException {
+        //A writer based generator like HAPI's, the UTF-8 byte generator would escape characters outside the BMP
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        JsonGenerator json = JSON_FACTORY.createGenerator(writer);
+        if (pretty) {
+            json.setPrettyPrinter(new HapiPrettyPrinter());
+        }
+        json.writeStartObject();
+        json.writeStringField("resourceType", "ValueSet");
+        writeField(json, "id", valueSetId);
+        writeField(json, "url", url);
+        writeField(json, "version", getVersion());
+        writeField(json, "title", getTitle());
+        json.writeStringField("status", "active");
+        if (hasIncludes()) {
+            json.writeObjectFieldStart("compose");
+            json.writeArrayFieldStart("include");
+            for (List<SvsConcept> concepts : includes.values()) {
+                SvsConcept first = concepts.get(0);
+                if (isEmpty(first, concepts)) {
+                    continue;
+                }
+                json.writeStartObject();
+                writeField(json, "system", codeSystems.getFHIRCodeSystem(first.getCodeSystem()));
+                writeField(json, "version", first.getCodeSystemVersion());
+                if (hasConcepts(concepts)) {
+                    json.writeArrayFieldStart("concept");
+                    for (SvsConcept concept : concepts) {
+                        if (isBlank(concept.getCode()) && isBlank(concept.getDisplayName())) {
+                            continue;
+                        }
+                        json.writeStartObject();
+                        writeField(json, "code", concept.getCode());
+                        writeField(json, "display", concept.getDisplayName());
+                        json.writeEndObject();
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.flush();
+        writer.flush();
+    }
+
+    public void writeXml(OutputStream out, boolean pretty) throws IOException {
+        Writer xml = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        xml.write("<ValueSet xmlns=\"http://hl7.org/fhir\">");
+        writeElement(xml, pretty, 1, "id", valueSetId);
+        writeElement(xml, pretty, 1, "url", url);
+        writeElement(xml, pretty, 1, "version", getVersion());
+        writeElement(xml, pretty, 1, "title", getTitle());
+        writeElement(xml, pretty, 1, "status", "active");
+        if (hasIncludes()) {
+            startElement(xml, pretty, 1, "compose");
+            for (List<SvsConcept> concepts : includes.values()) {
+                SvsConcept first = concepts.get(0);
+                if (isEmpty(first, concepts)) {
+                    continue;
+                }
+                startElement(xml, pretty, 2, "include");
+                writeElement(xml, pretty, 3, "system", codeSystems.getFHIRCodeSystem(first.getCodeSystem()));
+                writeElement(xml, pretty, 3, "version", first.getCodeSystemVersion());
+                for (SvsConcept concept : concepts) {
+                    if (isBlank(concept.getCode()) && isBlank(concept.getDisplayName())) {
+                        continue;
+                    }
+                    startElement(xml, pretty, 3, "concept");
+                    writeElement(xml, pretty, 4, "code", concept.getCode());
+                    writeElement(xml, pretty, 4, "display", concept.getDisplayName());
+                    endElement(xml, pretty, 3, "concept");
+                }
+                endElement(xml, pretty, 2, "include");
+            }
+            endElement(xml, pretty, 1, "compose");
+        }
+        newLine(xml, pretty, 0);
+        xml.write("</ValueSet>");
+        xml.flush();
+    }
+
+    private String getVersion() {
+        return svs.getVersion();
+    }
+
+    private String getTitle() {
+        //The HAPI converter only sets a title for value sets that carried an id
+        return svs.getId() != null ? svs.getDisplayName() : null;
+    }
+
+    private boolean hasIncludes() {
+        for (List<SvsConcept> concepts : includes.values()) {
+            if (!isEmpty(concepts.get(0), concepts)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasConcepts(List<SvsConcept> concepts) {
+        for (SvsConcept concept : concepts) {
+            if (!isBlank(concept.getCode()) || !isBlank(concept.getDisplayName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isEmpty(SvsConcept first, List<SvsConcept> concepts) {
+        return isBlank(codeSystems.getFHIRCodeSystem(first.getCodeSystem())) && isBlank(first.getCodeSystemVersion())
+                && !hasConcepts(concepts);
+    }
+
+    /**
+     * HAPI treats blank primitives as absent and leaves them out
+     */
+    private static boolean isBlank(String s) {
+        if (s == null) {
+            return true;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeField(JsonGenerator json, String name, String value) throws IOException {
+        if (!isBlank(value)) {
+            json.writeStringField(name, value);
+        }
+    }
+
+    private static void newLine(Writer xml, boolean pretty, int depth) throws IOException {
+        if (pretty) {
+            xml.write(LINE_FEED);
+            for (int i = 0; i < depth; i++) {
+                xml.write(XML_INDENT);
+            }
+        }
+    }
+
+    private static void startElement(Writer xml, boolean pretty, int depth, String name) throws IOException {
+        newLine(xml, pretty, depth);
+        xml.write('<');
+        xml.write(name);
+        xml.write('>');
+    }
+
+    private static void endElement(Writer xml, boolean pretty, int depth, String name) throws IOException {
+        newLine(xml, pretty, depth);
+        xml.write("</");
+        xml.write(name);
+        xml.write('>');
+    }
+
+    private static void writeElement(Writer xml, boolean pretty, int depth, String name, String value) throws IOException {
+        if (isBlank(value)) {
+            return;
+        }
+        newLine(xml, pretty, depth);
+        xml.write('<');
+        xml.write(name);
+        xml.write(" value=\"");
+        escapeAttribute(xml, value);
+        xml.write("\"></");
+        xml.write(name);
+        xml.write('>');
+    }
+
+    private static void escapeAttribute(Writer xml, String value) throws IOException {
+        int start = 0;
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            String replacement;
+            switch (value.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    continue;
+            }
+            xml.write(value, start, i - start);
+            xml.write(replacement);
+            start = i + 1;
+        }
+        xml.write(value, start, len - start);
+    }
+
+    /**
+     * HAPI's JSON layout: two space indented objects, arrays opened inline and no space before the colon
+     */
+    private static class HapiPrettyPrinter extends DefaultPrettyPrinter {
+        private static final long serialVersionUID = 1L;
+
+        HapiPrettyPrinter() {
+            _objectIndenter = new DefaultIndenter("  ", LINE_FEED);
+        }
+
+        HapiPrettyPrinter(HapiPrettyPrinter base) {
+            super(base);
+        }
+
+        @Override
+        public DefaultPrettyPrinter createInstance() {
+            return new HapiPrettyPrinter(this);
+        }
+
+        @Override
+        public void writeObjectFieldValueSeparator(JsonGenerator g) throws IOException {
+            g.writeRaw(": ");
+        }
+    }
+}
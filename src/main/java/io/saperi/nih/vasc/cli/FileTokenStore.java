@@ -0,0 +1,61 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.TokenInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Tokens kept as json in a file, .vsacTokens in the working directory by default. Saves replace the file
+ * atomically so a concurrent run never reads half a file. Further accounts are listed under credentials, each
+ * keeps its own TGT:
+ *
+ * <pre>
+ * {"apikey":"...","tokenGrantingTicket":null,"tokenGrantedOn":null,
+ *  "credentials":[{"name":"research","apikey":"..."},{"name":"quality","apikey":"..."}]}
+ * </pre>
+ */
+public class FileTokenStore implements TokenStore {
+
+    public static final String DEFAULT_FILE = ".vsacTokens";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File file;
+
+    public FileTokenStore() {
+        this(new File(DEFAULT_FILE));
+    }
+
+    public FileTokenStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized TokenInfo load() throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Token file " + file.getPath() + " does not exist, create it with 'init token' and set the apikey");
+        }
+        return MAPPER.readValue(file, TokenInfo.class);
+    }
+
+    @Override
+    public synchronized void save(TokenInfo tok) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            MAPPER.writeValue(tmp, tok);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes output files only when their content changed. The encoded output is hashed as it streams to a
+ * temporary file and compared with a streaming hash of the existing file, matching files are left untouched so
+ * timestamps, file watchers and diffs stay quiet. Safe to share between conversion threads.
+ */
+public class HashedFileWriter {
+
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final boolean force;
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public HashedFileWriter(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Returns true if the file was written, false if the existing file already had this content. The output
+     * goes to a temporary file next to the target, which replaces the target in one atomic move, so a failed
+     * or interrupted encode never leaves a truncated file behind.
+     */
+    public boolean write(File target, Content content) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        FileUtils.forceMkdir(dir);
+        File tmp = File.createTempFile("." + target.getName(), ".tmp", dir);
+        try {
+            MessageDigest digest = Sha256.newDigest();
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536), digest)) {
+                content.writeTo(out);
+            }
+            if (!force && target.isFile() && target.length() == tmp.length()
+                    && Arrays.equals(digest.digest(), hash(target))) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written.incrementAndGet();
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    public int getWritten() {
+        return written.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public static byte[] hash(File file) throws IOException {
+        MessageDigest digest = Sha256.newDigest();
+        byte[] buf = new byte[65536];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,261 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs requests with an overall deadline and hedging. When an attempt has not answered by the observed
+ * p95 latency a second attempt is started, the first to succeed wins and the other is aborted. Hedges are
+ * capped at a fraction of the requests made so a slow server never sees more than that much extra load.
+ */
+@Slf4j
+public class HedgedRequests implements Closeable {
+
+    public interface Attempt<T> {
+        /**
+         * Run one attempt, handing its request to the control before executing it so a losing attempt can be cancelled
+         */
+        T run(Control control) throws IOException;
+    }
+
+    public interface Control {
+        void abortable(HttpRequestBase request);
+
+        /**
+         * The server has answered, a slow read from here on is not a reason to hedge
+         */
+        void responded();
+
+        /**
+         * Time the attempt spent waiting on the caller rather than the server, left out of the latency samples
+         */
+        void paused(long nanos);
+    }
+
+    // Latency samples needed before the p95 is trusted as a hedge delay
+    private static final int MIN_SAMPLES = 10;
+    // The hedge delay follows the latest attempts so it adapts when the server speeds up or slows down
+    private static final int HEDGE_WINDOW = 1000;
+    private static final long MIN_HEDGE_DELAY = 50;
+
+    private final long deadlineMillis;
+    private final double hedgeFraction;
+    private final ExecutorService attempts = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "vsac-fetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LatencyHistogram attemptLatencies = new LatencyHistogram(HEDGE_WINDOW);
+    private final LatencyHistogram callLatencies = new LatencyHistogram();
+    private final LatencyHistogram primaryLatencies = new LatencyHistogram();
+    private int requests = 0;
+    private int hedges = 0;
+    private int hedgeWins = 0;
+    private int timeouts = 0;
+
+    public HedgedRequests(long deadlineMillis, double hedgeFraction) {
+        this.deadlineMillis = deadlineMillis;
+        this.hedgeFraction = hedgeFraction;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public <T> T execute(Attempt<T> attempt) throws IOException {
+        if (attempts.isShutdown()) {
+            throw new IOException("Requests already closed");
+        }
+        long start = System.nanoTime();
+        synchronized (this) {
+            requests++;
+        }
+        CompletionService<T> done = new ExecutorCompletionService<>(attempts);
+        Running<T> primary = new Running<>(done, attempt);
+        Running<T> hedge = null;
+        int pending = 1;
+        IOException failure = null;
+        try {
+            long hedgeDelay = getHedgeDelay();
+            Future<T> first = hedgeDelay >= 0 && hedgeDelay < deadlineMillis
+                    ? done.poll(hedgeDelay, TimeUnit.MILLISECONDS) : null;
+            if (first == null && !primary.responded && hedgeDelay >= 0 && hedgeDelay < deadlineMillis && tryAcquireHedge()) {
+                log.debug("Hedging request after " + hedgeDelay + " ms");
+                hedge = new Running<>(done, attempt);
+                pending++;
+            }
+            while (pending > 0) {
+                Future<T> next = first != null ? first : done.poll(remaining(start), TimeUnit.NANOSECONDS);
+                first = null;
+                if (next == null) {
+                    synchronized (this) {
+                        timeouts++;
+                    }
+                    throw new SocketTimeoutException("No response within " + deadlineMillis + " ms");
+                }
+                pending--;
+                Running<T> finished = next == primary.future ? primary : hedge;
+                try {
+                    T result = next.get();
+                    recordSuccess(start, finished, primary);
+                    return result;
+                } catch (ExecutionException e) {
+                    //Keep waiting on the other attempt if there is one
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } finally {
+            primary.abort();
+            if (hedge != null) {
+                hedge.abort();
+            }
+        }
+    }
+
+    private long remaining(long start) {
+        return Math.max(0, TimeUnit.MILLISECONDS.toNanos(deadlineMillis) - (System.nanoTime() - start));
+    }
+
+    /**
+     * The p95 of the latest completed attempts, or -1 while hedging is off or there is not enough history
+     */
+    public synchronized long getHedgeDelay() {
+        if (hedgeFraction <= 0 || attemptLatencies.getCount() < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_HEDGE_DELAY, attemptLatencies.percentile(95));
+    }
+
+    private synchronized boolean tryAcquireHedge() {
+        if (hedges + 1 > hedgeFraction * requests) {
+            return false;
+        }
+        hedges++;
+        return true;
+    }
+
+    private synchronized <T> void recordSuccess(long start, Running<T> winner, Running<T> primary) {
+        long now = System.nanoTime();
+        attemptLatencies.record(TimeUnit.NANOSECONDS.toMillis(now - winner.start - winner.paused));
+        callLatencies.record(TimeUnit.NANOSECONDS.toMillis(now - start - winner.paused));
+        //Without hedging the call would have taken at least as long as the primary ran, a lower bound when it lost
+        primaryLatencies.record(TimeUnit.NANOSECONDS.toMillis(now - primary.start - primary.paused));
+        if (winner != primary) {
+            hedgeWins++;
+        }
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getHedges() {
+        return hedges;
+    }
+
+    public synchronized int getHedgeWins() {
+        return hedgeWins;
+    }
+
+    public synchronized String getReport() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("Fetch latency over ").append(callLatencies.getCount()).append(" requests: ");
+        appendPercentiles(bld, callLatencies);
+        bld.append(", hedged ").append(hedges).append(" (").append(hedgeWins).append(" won)");
+        if (timeouts > 0) {
+            bld.append(", ").append(timeouts).append(" timed out");
+        }
+        if (hedges > 0) {
+            bld.append(System.lineSeparator()).append("Without hedging (at least): ");
+            appendPercentiles(bld, primaryLatencies);
+        }
+        return bld.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder bld, LatencyHistogram samples) {
+        bld.append("p50 ").append(samples.percentile(50)).append(" ms");
+        bld.append(", p95 ").append(samples.percentile(95)).append(" ms");
+        bld.append(", p99 ").append(samples.percentile(99)).append(" ms");
+        bld.append(", max ").append(samples.percentile(100)).append(" ms");
+    }
+
+    /**
+     * Nearest rank percentile
+     */
+    static long percentile(List<Long> samples, int p) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+
+    /**
+     * Stop the attempt threads, any attempt still running is interrupted
+     */
+    @Override
+    public void close() {
+        attempts.shutdownNow();
+    }
+
+    private static class Running<T> implements Control {
+        final long start = System.nanoTime();
+        final Future<T> future;
+        volatile HttpRequestBase request;
+        volatile boolean aborted;
+        volatile boolean responded;
+        //Only the attempt's own thread adds to it
+        volatile long paused;
+
+        Running(CompletionService<T> done, Attempt<T> attempt) {
+            future = done.submit(() -> attempt.run(this));
+        }
+
+        @Override
+        public void abortable(HttpRequestBase r) {
+            request = r;
+            if (aborted) {
+                r.abort();
+            }
+        }
+
+        @Override
+        public void responded() {
+            responded = true;
+        }
+
+        @Override
+        public void paused(long nanos) {
+            paused += nanos;
+        }
+
+        void abort() {
+            if (future.isDone()) {
+                return;
+            }
+            aborted = true;
+            HttpRequestBase r = request;
+            if (r != null) {
+                r.abort();
+            }
+            future.cancel(true);
+        }
+    }
+}
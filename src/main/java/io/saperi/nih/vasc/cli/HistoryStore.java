@@ -0,0 +1,416 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.HistoryEntry;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append only log of every distinct expansion seen per value set. A new version is stored as a deflated
+ * delta against the previous one (removed positions plus inserted concepts), every few versions a full
+ * snapshot bounds the chain a reconstruction has to replay. history.log holds the records, each
+ * [int length][byte type][payload][int crc32], history.idx one JSON line per version pointing into the log.
+ * The log is always written before the index so a crash can only leave an unreferenced record behind.
+ * Shards on a shared volume append to the same files, each record and its index line are written under
+ * an exclusive lock on the log so writers in other processes never interleave.
+ */
+@Slf4j
+public class HistoryStore implements Closeable {
+
+    public static final String LOG_FILE = "history.log";
+    public static final String INDEX_FILE = "history.idx";
+
+    // Longest delta chain before a full snapshot is written
+    private static final int SNAPSHOT_INTERVAL = 8;
+    private static final byte SNAPSHOT = 0;
+    private static final byte DELTA = 1;
+    // File locks belong to the whole JVM, stores in one process on the same log take turns on a shared monitor first
+    private static final Map<String, Object> APPEND_LOCKS = new ConcurrentHashMap<>();
+
+    private final File logFile;
+    private final File indexFile;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, List<HistoryEntry>> entries = new TreeMap<>();
+    private Object appendLock;
+    private RandomAccessFile records;
+    private Writer index;
+    private int appended = 0;
+
+    private HistoryStore(File dir) {
+        logFile = new File(dir, LOG_FILE);
+        indexFile = new File(dir, INDEX_FILE);
+    }
+
+    public static HistoryStore open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create history directory " + dir.getPath());
+        }
+        HistoryStore store = new HistoryStore(dir);
+        store.appendLock = APPEND_LOCKS.computeIfAbsent(store.logFile.getCanonicalPath(), k -> new Object());
+        store.records = new RandomAccessFile(store.logFile, "rw");
+        store.loadIndex();
+        store.index = new OutputStreamWriter(new FileOutputStream(store.indexFile, true), StandardCharsets.UTF_8);
+        return store;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        long logLength = records.length();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    HistoryEntry entry = objectMapper.readValue(line, HistoryEntry.class);
+                    if (entry.getOffset() + entry.getLength() <= logLength) {
+                        entries.computeIfAbsent(entry.getOid(), k -> new ArrayList<>()).add(entry);
+                    }
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable history index line");
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the expansion if it differs from the latest one recorded for the value set, returns true if it was added
+     */
+    public synchronized boolean record(String valueSetId, SvsValueSet vs) throws IOException {
+        String hash = hash(vs.getConcepts());
+        List<HistoryEntry> versions = entries.computeIfAbsent(valueSetId, k -> new ArrayList<>());
+        HistoryEntry last = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        if (last != null && last.getSha256().equals(hash) && Objects.equals(last.getVersion(), vs.getVersion())) {
+            return false;
+        }
+
+        byte[] full = encodeSnapshot(vs.getConcepts());
+        byte type = SNAPSHOT;
+        byte[] payload = full;
+        if (last != null && getChainLength(versions) < SNAPSHOT_INTERVAL) {
+            List<SvsConcept> previous = reconstruct(versions, versions.size() - 1);
+            byte[] delta = encodeDelta(previous, vs.getConcepts());
+            //Only keep the delta if it replays exactly and is actually smaller
+            if (delta != null && delta.length < full.length / 2
+                    && hash(applyDelta(previous, delta)).equals(hash)) {
+                type = DELTA;
+                payload = delta;
+            }
+        }
+
+        HistoryEntry entry = new HistoryEntry();
+        entry.setOid(valueSetId);
+        entry.setVersion(vs.getVersion());
+        entry.setTitle(vs.getDisplayName());
+        entry.setRecordedOn(new Date());
+        entry.setSnapshot(type == SNAPSHOT);
+        entry.setConceptCount(vs.getConcepts().size());
+        entry.setFullBytes(inflatedSize(full));
+        entry.setSha256(hash);
+        synchronized (appendLock) {
+            FileLock lock = records.getChannel().lock();
+            try {
+                //Another writer may have appended since, the offset is only known once the lock is held
+                entry.setOffset(records.length());
+                entry.setLength(append(type, payload));
+                index.write(objectMapper.writeValueAsString(entry));
+                index.write('\n');
+                index.flush();
+            } finally {
+                lock.release();
+            }
+        }
+        versions.add(entry);
+        appended++;
+        return true;
+    }
+
+    public synchronized List<HistoryEntry> getVersions(String valueSetId) {
+        return new ArrayList<>(entries.getOrDefault(valueSetId, Collections.emptyList()));
+    }
+
+    /**
+     * The version recorded with this SVS version string, or failing that the latest one recorded on or before the date
+     */
+    public synchronized HistoryEntry find(String valueSetId, String versionOrDate) {
+        List<HistoryEntry> versions = entries.getOrDefault(valueSetId, Collections.emptyList());
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            if (versionOrDate.equals(versions.get(i).getVersion())) {
+                return versions.get(i);
+            }
+        }
+        Date at = parseDate(versionOrDate);
+        if (at == null) {
+            return null;
+        }
+        HistoryEntry found = null;
+        for (HistoryEntry entry : versions) {
+            if (!entry.getRecordedOn().after(at)) {
+                found = entry;
+            }
+        }
+        return found;
+    }
+
+    public synchronized SvsValueSet load(HistoryEntry entry) throws IOException {
+        List<HistoryEntry> versions = entries.get(entry.getOid());
+        int pos = versions == null ? -1 : versions.indexOf(entry);
+        if (pos < 0) {
+            throw new IllegalArgumentException("Unknown history entry for " + entry.getOid());
+        }
+        SvsValueSet vs = new SvsValueSet();
+        vs.setId(entry.getOid());
+        vs.setDisplayName(entry.getTitle());
+        vs.setVersion(entry.getVersion());
+        vs.setConcepts(reconstruct(versions, pos));
+        if (!hash(vs.getConcepts()).equals(entry.getSha256())) {
+            throw new IOException("History for " + entry.getOid() + " does not match its recorded hash");
+        }
+        return vs;
+    }
+
+    /**
+     * Bytes in the log against the size of keeping every version as a full uncompressed copy
+     */
+    public synchronized long[] getSizes() {
+        long stored = 0;
+        long full = 0;
+        for (List<HistoryEntry> versions : entries.values()) {
+            for (HistoryEntry entry : versions) {
+                stored += entry.getLength();
+                full += entry.getFullBytes();
+            }
+        }
+        return new long[]{stored, full};
+    }
+
+    public synchronized int getAppended() {
+        return appended;
+    }
+
+    public synchronized int getValueSetCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            records.close();
+        }
+    }
+
+    static Date parseDate(String s) {
+        String[] patterns = {"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"};
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(s, position);
+            if (date != null && position.getIndex() == s.length()) {
+                //A bare date means anything recorded that day
+                return pattern.equals("yyyy-MM-dd") ? new Date(date.getTime() + 24L * 3600 * 1000 - 1) : date;
+            }
+        }
+        return null;
+    }
+
+    private int getChainLength(List<HistoryEntry> versions) {
+        int chain = 0;
+        for (int i = versions.size() - 1; i >= 0 && !versions.get(i).isSnapshot(); i--) {
+            chain++;
+        }
+        return chain;
+    }
+
+    private List<SvsConcept> reconstruct(List<HistoryEntry> versions, int pos) throws IOException {
+        int base = pos;
+        while (!versions.get(base).isSnapshot()) {
+            base--;
+        }
+        List<SvsConcept> concepts = decodeSnapshot(read(versions.get(base), SNAPSHOT));
+        for (int i = base + 1; i <= pos; i++) {
+            concepts = applyDelta(concepts, read(versions.get(i), DELTA));
+        }
+        return concepts;
+    }
+
+    private int append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 9);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+        records.seek(records.length());
+        records.write(record.toByteArray());
+        return record.size();
+    }
+
+    private byte[] read(HistoryEntry entry, byte expectedType) throws IOException {
+        byte[] record = new byte[entry.getLength()];
+        records.seek(entry.getOffset());
+        records.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte[] payload = new byte[in.readInt()];
+        byte type = in.readByte();
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        if (type != expectedType || in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Corrupt history record for " + entry.getOid() + " at " + entry.getOffset());
+        }
+        return payload;
+    }
+
+    private static byte[] encodeSnapshot(List<SvsConcept> concepts) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = deflate(buf)) {
+            out.writeInt(concepts.size());
+            for (SvsConcept concept : concepts) {
+                writeConcept(out, concept);
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    private static List<SvsConcept> decodeSnapshot(byte[] payload) throws IOException {
+        try (DataInputStream in = inflate(payload)) {
+            int n = in.readInt();
+            List<SvsConcept> concepts = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                concepts.add(readConcept(in));
+            }
+            return concepts;
+        }
+    }
+
+    /**
+     * Positions of the previous concepts that are gone followed by the new concepts with their final positions
+     */
+    private static byte[] encodeDelta(List<SvsConcept> previous, List<SvsConcept> current) throws IOException {
+        Set<SvsConcept> currentSet = new HashSet<>(current);
+        Set<SvsConcept> previousSet = new HashSet<>(previous);
+        if (currentSet.size() != current.size() || previousSet.size() != previous.size()) {
+            //Duplicate rows can not be addressed by content
+            return null;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = deflate(buf)) {
+            List<Integer> removed = new ArrayList<>();
+            for (int i = 0; i < previous.size(); i++) {
+                if (!currentSet.contains(previous.get(i))) {
+                    removed.add(i);
+                }
+            }
+            out.writeInt(removed.size());
+            for (int i : removed) {
+                out.writeInt(i);
+            }
+            List<Integer> added = new ArrayList<>();
+            for (int i = 0; i < current.size(); i++) {
+                if (!previousSet.contains(current.get(i))) {
+                    added.add(i);
+                }
+            }
+            out.writeInt(added.size());
+            for (int i : added) {
+                out.writeInt(i);
+                writeConcept(out, current.get(i));
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    private static List<SvsConcept> applyDelta(List<SvsConcept> previous, byte[] payload) throws IOException {
+        try (DataInputStream in = inflate(payload)) {
+            boolean[] removed = new boolean[previous.size()];
+            int removedCount = in.readInt();
+            for (int i = 0; i < removedCount; i++) {
+                removed[in.readInt()] = true;
+            }
+            List<SvsConcept> out = new ArrayList<>(previous.size());
+            for (int i = 0; i < previous.size(); i++) {
+                if (!removed[i]) {
+                    out.add(previous.get(i));
+                }
+            }
+            //Inserting in ascending final position puts every new concept exactly where it was
+            int addedCount = in.readInt();
+            for (int i = 0; i < addedCount; i++) {
+                int pos = in.readInt();
+                out.add(pos, readConcept(in));
+            }
+            return out;
+        }
+    }
+
+    private static void writeConcept(DataOutputStream out, SvsConcept concept) throws IOException {
+        out.writeUTF(nullToEmpty(concept.getCodeSystem()));
+        out.writeUTF(nullToEmpty(concept.getCodeSystemVersion()));
+        out.writeUTF(nullToEmpty(concept.getCode()));
+        out.writeUTF(nullToEmpty(concept.getDisplayName()));
+    }
+
+    private static SvsConcept readConcept(DataInputStream in) throws IOException {
+        return new SvsConcept(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+    }
+
+    private static DataOutputStream deflate(OutputStream out) {
+        return new DataOutputStream(new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION), true));
+    }
+
+    private static DataInputStream inflate(byte[] payload) {
+        return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    private static long inflatedSize(byte[] payload) throws IOException {
+        long size = 0;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(payload))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                size += n;
+            }
+        }
+        return size;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    static String hash(List<SvsConcept> concepts) {
+        MessageDigest digest = Sha256.newDigest();
+        for (SvsConcept concept : concepts) {
+            for (String field : new String[]{concept.getCodeSystem(), concept.getCodeSystemVersion(), concept.getCode(), concept.getDisplayName()}) {
+                digest.update(nullToEmpty(field).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+        }
+        return Sha256.hex(digest.digest());
+    }
+}
@@ -0,0 +1,98 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+/**
+ * Latency samples in milliseconds counted in log linear buckets, exact below 32 ms and 16 buckets per doubling
+ * above, so a percentile is at most 1/16 above the true value. The memory is fixed however many samples are
+ * recorded and a percentile is one pass over the buckets. Given a window only the latest samples count, the
+ * oldest is taken out as each new one goes in. Not thread safe, the owner synchronizes.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = SUB_BITS + 1;
+    private static final int BUCKETS = LINEAR + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final int[] counts = new int[BUCKETS];
+    // Bucket of each sample in the window, oldest at next once full
+    private final int[] window;
+    private int next = 0;
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Every sample recorded
+     */
+    public LatencyHistogram() {
+        window = null;
+    }
+
+    /**
+     * The latest size samples
+     */
+    public LatencyHistogram(int size) {
+        window = new int[size];
+    }
+
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        int bucket = bucket(millis);
+        if (window != null) {
+            if (count == window.length) {
+                counts[window[next]]--;
+                count--;
+            }
+            window[next] = bucket;
+            next = (next + 1) % window.length;
+        }
+        counts[bucket]++;
+        count++;
+        max = Math.max(max, millis);
+    }
+
+    /**
+     * Samples counted, at most the window size
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Nearest rank percentile, the upper end of the bucket holding it and never more than the largest sample
+     */
+    public long percentile(int p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upper(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucket(long millis) {
+        if (millis < LINEAR) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int sub = (int) (millis >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long upper(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + LINEAR_BITS;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,218 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Admission control for concurrent conversions. Each value set reserves its estimated working set
+ * before it is read, callers block while the budget is exhausted which pushes back on the fetch stage.
+ * A single value set larger than the whole budget is admitted on its own.
+ */
+public class MemoryBudget {
+
+    // Raw XML, the parsed concepts and the encoded output are all live at once
+    private static final int WORKING_SET_FACTOR = 6;
+    private static final long MIN_ESTIMATE = 64 * 1024;
+
+    private final long limit;
+    private long inUse = 0;
+    private long peakInUse = 0;
+    private long peakHeap = 0;
+    private long stallNanos = 0;
+    private int stalls = 0;
+    private int admitted = 0;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit <= 0 ? Long.MAX_VALUE : limit;
+        sampleHeap();
+    }
+
+    public static MemoryBudget unlimited() {
+        return new MemoryBudget(0);
+    }
+
+    /**
+     * Parse sizes like 512m, 2g, 65536k or a plain byte count
+     */
+    public static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("b")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        if (s.endsWith("k")) {
+            unit = 1024;
+        } else if (s.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s.trim()) * unit;
+    }
+
+    /**
+     * Estimated working set of converting a value set from the size of its SVS response
+     */
+    public static long estimate(long responseBytes) {
+        return Math.max(MIN_ESTIMATE, responseBytes * WORKING_SET_FACTOR);
+    }
+
+    public boolean isLimited() {
+        return limit != Long.MAX_VALUE;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Block until the bytes fit in the budget, returns the amount reserved which must be passed to release
+     */
+    public synchronized long acquire(long bytes) throws InterruptedIOException {
+        long reserve = Math.min(bytes, limit);
+        if (inUse + reserve > limit) {
+            long start = System.nanoTime();
+            stalls++;
+            try {
+                //Managed so a fork join pool running the conversions can add a worker while this one waits
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        if (!isReleasable()) {
+                            MemoryBudget.this.wait();
+                        }
+                        return isReleasable();
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return inUse + reserve <= limit;
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for memory budget");
+            } finally {
+                stallNanos += System.nanoTime() - start;
+            }
+        }
+        inUse += reserve;
+        admitted++;
+        peakInUse = Math.max(peakInUse, inUse);
+        sampleHeap();
+        return reserve;
+    }
+
+    /**
+     * Reserve for one value set, the reservation grows with {@link Reservation#ensure} once the real size is known
+     */
+    public Reservation reserve(long bytes) throws InterruptedIOException {
+        Reservation reservation = new Reservation();
+        reservation.ensure(bytes);
+        return reservation;
+    }
+
+    public synchronized void release(long reserved) {
+        if (reserved > 0) {
+            sampleHeap();
+            inUse -= reserved;
+            notifyAll();
+        }
+    }
+
+    public synchronized long getPeakInUse() {
+        return peakInUse;
+    }
+
+    public synchronized long getStallMillis() {
+        return stallNanos / 1000000;
+    }
+
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    public synchronized int getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Largest heap in use seen by this budget, sampled as value sets are admitted and released. The JVM wide pool
+     * peaks are left alone, resetting them would disturb anything else in the process reading them.
+     */
+    public synchronized long getPeakHeap() {
+        sampleHeap();
+        return peakHeap;
+    }
+
+    private synchronized void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    public String getReport() {
+        StringBuilder bld = new StringBuilder();
+        bld.append("Memory budget ");
+        bld.append(isLimited() ? toMB(limit) : "unlimited");
+        bld.append(": admitted ").append(getAdmitted());
+        bld.append(", peak reserved ").append(toMB(getPeakInUse()));
+        bld.append(", peak heap ").append(toMB(getPeakHeap()));
+        bld.append(", stalled ").append(getStallMillis()).append(" ms over ").append(getStalls()).append(" waits");
+        return bld.toString();
+    }
+
+    private static String toMB(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * The bytes one value set holds against the budget, taken before its fetch starts so a wait for memory
+     * never runs inside a request and every attempt of a hedged request reads under the same reservation.
+     * Attempts of a hedged request may grow it from their own threads.
+     */
+    public class Reservation implements AutoCloseable {
+        private long reserved = 0;
+        private long waitNanos = 0;
+        private boolean closed = false;
+
+        /**
+         * Grow the reservation to at least bytes. What is held is given back before waiting for more,
+         * two growing value sets each holding part of the budget would otherwise wait on each other forever.
+         */
+        public synchronized void ensure(long bytes) throws InterruptedIOException {
+            if (closed || Math.min(bytes, limit) <= reserved) {
+                return;
+            }
+            release(reserved);
+            reserved = 0;
+            long start = System.nanoTime();
+            try {
+                reserved = acquire(bytes);
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        public synchronized long getReserved() {
+            return reserved;
+        }
+
+        /**
+         * Time spent in {@link #ensure}, waiting for the budget or not
+         */
+        public synchronized long getWaitMillis() {
+            return waitNanos / 1000000;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            release(reserved);
+            reserved = 0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.ApiCredential;
+import io.saperi.nih.vasc.cli.data.TokenInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tokens held in memory only, for services that get the API keys from their own configuration. The TGTs are
+ * requested again after a restart.
+ */
+public class MemoryTokenStore implements TokenStore {
+
+    private TokenInfo token;
+
+    /**
+     * @param more further API keys pooled with the first one
+     */
+    public MemoryTokenStore(String apikey, String... more) {
+        token = new TokenInfo();
+        token.setApikey(apikey);
+        if (more.length > 0) {
+            List<ApiCredential> credentials = new ArrayList<>();
+            for (String key : more) {
+                credentials.add(new ApiCredential(null, key, null, null));
+            }
+            token.setCredentials(credentials);
+        }
+    }
+
+    @Override
+    public synchronized TokenInfo load() {
+        return copy(token);
+    }
+
+    @Override
+    public synchronized void save(TokenInfo tok) {
+        token = copy(tok);
+    }
+
+    private static TokenInfo copy(TokenInfo tok) {
+        TokenInfo copy = new TokenInfo();
+        copy.setApikey(tok.getApikey());
+        copy.setTokenGrantingTicket(tok.getTokenGrantingTicket());
+        copy.setTokenGrantedOn(tok.getTokenGrantedOn());
+        if (tok.getCredentials() != null) {
+            List<ApiCredential> credentials = new ArrayList<>();
+            for (ApiCredential credential : tok.getCredentials()) {
+                credentials.add(new ApiCredential(credential.getName(), credential.getApikey(),
+                        credential.getTokenGrantingTicket(), credential.getTokenGrantedOn()));
+            }
+            copy.setCredentials(credentials);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,76 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.PublishRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What was last published to each FHIR server: per value set the hash of the resource sent and the version the
+ * server gave it. Unchanged value sets are not sent again, changed ones are updated only if the server still has
+ * that version.
+ */
+@Slf4j
+public class PublishState {
+
+    private final File file;
+    private final Map<String, Map<String, PublishRecord>> targets = new ConcurrentHashMap<>();
+
+    public PublishState(File file) {
+        this.file = file;
+    }
+
+    public static PublishState load(File file) {
+        PublishState state = new PublishState(file);
+        if (file.isFile()) {
+            try {
+                ObjectMapper objectMapper = new ObjectMapper();
+                Map<String, Map<String, PublishRecord>> stored = objectMapper.readValue(file, new TypeReference<Map<String, Map<String, PublishRecord>>>() {});
+                stored.forEach((target, records) -> state.targets.put(target, new ConcurrentHashMap<>(records)));
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable publish state " + file.getPath(), e);
+            }
+        }
+        return state;
+    }
+
+    public void save() throws IOException {
+        Map<String, Map<String, PublishRecord>> sorted = new TreeMap<>();
+        targets.forEach((target, records) -> sorted.put(target, new TreeMap<>(records)));
+        //Written aside and moved over the old state so an interrupted save never leaves it truncated
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.writeValue(tmp, sorted);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    public PublishRecord get(String target, String valueSetId) {
+        Map<String, PublishRecord> records = targets.get(target);
+        return records == null ? null : records.get(valueSetId);
+    }
+
+    public void put(String target, String valueSetId, PublishRecord record) {
+        targets.computeIfAbsent(target, t -> new ConcurrentHashMap<>()).put(valueSetId, record);
+    }
+
+    public void remove(String target, String valueSetId) {
+        Map<String, PublishRecord> records = targets.get(target);
+        if (records != null) {
+            records.remove(valueSetId);
+        }
+    }
+}
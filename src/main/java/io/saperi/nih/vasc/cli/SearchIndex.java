@@ -0,0 +1,285 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SearchHit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Memory mapped display name index written by {@link SearchIndexWriter}. Every query word matches the
+ * index terms it is a prefix of, a row must match all words. Whole word matches outrank prefix matches and
+ * short displays mostly made of the query outrank long ones that merely mention it.
+ */
+public class SearchIndex {
+
+    public interface RowConsumer {
+        void accept(String oid, String system, String code, String display);
+    }
+
+    private final ByteBuffer buf;
+    private final int rowCount;
+    private final int termCount;
+    private final String[] oids;
+    private final String[] systems;
+    private final int rowOffset;
+    private final int codeOffsetsOffset;
+    private final int codeBytesOffset;
+    private final int displayOffsetsOffset;
+    private final int displayBytesOffset;
+    private final int termOffsetsOffset;
+    private final int termBytesOffset;
+    private final int postingOffsetsOffset;
+    private final int postingsOffset;
+
+    public SearchIndex(ByteBuffer buffer) throws IOException {
+        buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < SearchIndexWriter.HEADER_SIZE || buf.getInt(0) != SearchIndexWriter.MAGIC) {
+            throw new IOException("Not a search index file");
+        }
+        if (buf.getShort(4) != SearchIndexWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported search index version " + buf.getShort(4));
+        }
+        rowCount = buf.getInt(8);
+        int oidCount = buf.getInt(12);
+        int systemCount = buf.getInt(16);
+        termCount = buf.getInt(20);
+        int oidOffset = buf.getInt(24);
+        int systemOffset = buf.getInt(28);
+        rowOffset = buf.getInt(32);
+        codeOffsetsOffset = buf.getInt(36);
+        codeBytesOffset = buf.getInt(40);
+        displayOffsetsOffset = buf.getInt(44);
+        displayBytesOffset = buf.getInt(48);
+        termOffsetsOffset = buf.getInt(52);
+        termBytesOffset = buf.getInt(56);
+        postingOffsetsOffset = buf.getInt(60);
+        postingsOffset = buf.getInt(64);
+        if (buf.getInt(68) != buf.limit()) {
+            throw new IOException("Search index is truncated");
+        }
+        oids = readStrings(oidOffset, oidCount);
+        systems = readStrings(systemOffset, systemCount);
+    }
+
+    public static SearchIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SearchIndex(mapped);
+        }
+    }
+
+    /**
+     * Lower case words of letters and digits with accents removed, shared by indexing and querying
+     */
+    public static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) {
+            return out;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                text = Normalizer.normalize(text, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && word.length() > 0) {
+                out.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            out.add(word.toString());
+        }
+        return out;
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public int getValueSetCount() {
+        return oids.length;
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    public String getOid(int row) {
+        return oids[buf.getInt(rowOffset + 16 * row)];
+    }
+
+    public String getSystem(int row) {
+        return systems[buf.getInt(rowOffset + 16 * row + 4)];
+    }
+
+    public String getCode(int row) {
+        return getString(codeOffsetsOffset, codeBytesOffset, row);
+    }
+
+    public String getDisplay(int row) {
+        return getString(displayOffsetsOffset, displayBytesOffset, row);
+    }
+
+    public void forEachRow(RowConsumer consumer) {
+        for (int row = 0; row < rowCount; row++) {
+            consumer.accept(getOid(row), getSystem(row), getCode(row), getDisplay(row));
+        }
+    }
+
+    public List<SearchHit> search(String query, int limit) {
+        List<SearchHit> hits = new ArrayList<>();
+        search(query, limit, hits);
+        return hits;
+    }
+
+    /**
+     * Add the best limit rows matching every word of the query to hits, returns how many rows matched in all
+     */
+    public int search(String query, int limit, List<SearchHit> hits) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (words.isEmpty() || rowCount == 0) {
+            return 0;
+        }
+        //matched[row] counts the query words the row matched so far, a row only stays a candidate
+        //when it matched every earlier word, which gives AND semantics without intersecting sets
+        float[] score = new float[rowCount];
+        float[] wordScore = new float[rowCount];
+        int[] matched = new int[rowCount];
+        for (int w = 0; w < words.size(); w++) {
+            byte[] prefix = words.get(w).getBytes(StandardCharsets.UTF_8);
+            for (int t = lowerBound(prefix); t < termCount && termStartsWith(t, prefix); t++) {
+                int termLength = termEnd(t) - termStart(t);
+                //A whole word scores 1, a prefix scores by how much of the word it covers
+                float s = termLength == prefix.length ? 1f : 0.5f * prefix.length / termLength;
+                int end = buf.getInt(postingOffsetsOffset + 4 * (t + 1));
+                for (int p = buf.getInt(postingOffsetsOffset + 4 * t); p < end; p++) {
+                    int row = buf.getInt(postingsOffset + 4 * p);
+                    if (matched[row] == w) {
+                        matched[row] = w + 1;
+                        wordScore[row] = s;
+                        score[row] += s;
+                    } else if (matched[row] == w + 1 && s > wordScore[row]) {
+                        score[row] += s - wordScore[row];
+                        wordScore[row] = s;
+                    }
+                }
+            }
+        }
+
+        //Rank from the stored word counts and first words, strings are only decoded for the rows returned
+        byte[] first = words.get(0).getBytes(StandardCharsets.UTF_8);
+        List<Integer> candidates = new ArrayList<>();
+        for (int row = 0; row < rowCount; row++) {
+            if (matched[row] != words.size()) {
+                continue;
+            }
+            int wordCount = buf.getInt(rowOffset + 16 * row + 8);
+            int firstTerm = buf.getInt(rowOffset + 16 * row + 12);
+            score[row] += (float) words.size() / Math.max(1, wordCount);
+            if (firstTerm >= 0 && termStartsWith(firstTerm, first)) {
+                score[row] += 0.5f;
+            }
+            candidates.add(row);
+        }
+        //Rows are stored by oid, so the row number breaks ties deterministically
+        candidates.sort(Comparator.comparingDouble((Integer row) -> -score[row])
+                .thenComparingInt(this::getDisplayLength)
+                .thenComparingInt(row -> row));
+        for (int row : candidates.subList(0, Math.min(limit, candidates.size()))) {
+            hits.add(new SearchHit(getOid(row), getSystem(row), getCode(row), getDisplay(row), score[row]));
+        }
+        return candidates.size();
+    }
+
+    private int getDisplayLength(int row) {
+        return buf.getInt(displayOffsetsOffset + 4 * (row + 1)) - buf.getInt(displayOffsetsOffset + 4 * row);
+    }
+
+    private int lowerBound(byte[] key) {
+        int lo = 0;
+        int hi = termCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareTerm(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int compareTerm(int term, byte[] key) {
+        int start = termStart(term);
+        int len = termEnd(term) - start;
+        int n = Math.min(len, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buf.get(termBytesOffset + start + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return len - key.length;
+    }
+
+    private boolean termStartsWith(int term, byte[] prefix) {
+        int start = termStart(term);
+        if (termEnd(term) - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(termBytesOffset + start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int termStart(int term) {
+        return buf.getInt(termOffsetsOffset + 4 * term);
+    }
+
+    private int termEnd(int term) {
+        return buf.getInt(termOffsetsOffset + 4 * (term + 1));
+    }
+
+    private String getString(int offsetsOffset, int bytesOffset, int row) {
+        int start = buf.getInt(offsetsOffset + 4 * row);
+        int end = buf.getInt(offsetsOffset + 4 * (row + 1));
+        return decode(bytesOffset + start, end - start);
+    }
+
+    private String[] readStrings(int offset, int count) {
+        String[] out = new String[count];
+        int pos = offset;
+        for (int i = 0; i < count; i++) {
+            int len = buf.getInt(pos);
+            out[i] = decode(pos + 4, len);
+            pos += 4 + len;
+        }
+        return out;
+    }
+
+    private String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buf.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,290 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Maintains the "VSI1" display name index read by {@link SearchIndex}. The rows of an existing index are
+ * loaded, each converted value set replaces its own rows and the file is rewritten only when something changed.
+ * A write is a full rebuild from every row held in memory, so its cost follows the size of the index and
+ * not the number of value sets converted.
+ *
+ * <pre>
+ * header   72 bytes: magic, format version, flags, row, oid, system and term counts,
+ *          section offsets and total length
+ * oids     oid count x (int length + UTF-8)
+ * systems  system count x (int length + UTF-8)
+ * rows     row count x (int oid index, int system index, int display word count, int first word term)
+ * codes    (row count + 1) x int offsets followed by the UTF-8 code bytes
+ * displays (row count + 1) x int offsets followed by the UTF-8 display bytes
+ * terms    (term count + 1) x int offsets followed by the UTF-8 term bytes, sorted by bytes
+ * postings (term count + 1) x int offsets followed by the ascending row ids of each term
+ * </pre>
+ */
+@Slf4j
+public class SearchIndexWriter {
+
+    public static final int MAGIC = 0x31495356;  // "VSI1" little endian
+    public static final short FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 72;
+
+    // Value set id to its concepts, with the code system already mapped to its FHIR uri
+    private final Map<String, List<SvsConcept>> valueSets = new TreeMap<>();
+    private final CodeSystemRegistry codeSystems;
+    private boolean changed = false;
+
+    public SearchIndexWriter() {
+        this(FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public SearchIndexWriter(CodeSystemRegistry codeSystems) {
+        this.codeSystems = codeSystems;
+    }
+
+    public static SearchIndexWriter load(File file) {
+        return load(file, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    /**
+     * Start from the rows of an existing index, a missing or unreadable index starts empty
+     */
+    public static SearchIndexWriter load(File file, CodeSystemRegistry codeSystems) {
+        SearchIndexWriter writer = new SearchIndexWriter(codeSystems);
+        if (file.isFile()) {
+            try {
+                SearchIndex index = SearchIndex.open(file);
+                index.forEachRow((oid, system, code, display) ->
+                        writer.valueSets.computeIfAbsent(oid, k -> new ArrayList<>()).add(new SvsConcept(system, "", code, display)));
+            } catch (IOException e) {
+                log.warn("Rebuilding unreadable search index " + file.getPath(), e);
+                writer.changed = true;
+            }
+        }
+        return writer;
+    }
+
+    public synchronized void add(String valueSetId, SvsValueSet vs) {
+        List<SvsConcept> rows = new ArrayList<>(vs.getConcepts().size());
+        for (SvsConcept concept : vs.getConcepts()) {
+            rows.add(new SvsConcept(codeSystems.getFHIRCodeSystem(concept.getCodeSystem()), "", concept.getCode(), concept.getDisplayName()));
+        }
+        if (!rows.equals(valueSets.put(valueSetId, rows))) {
+            changed = true;
+        }
+    }
+
+    public synchronized boolean isChanged() {
+        return changed;
+    }
+
+    public synchronized int getValueSetCount() {
+        return valueSets.size();
+    }
+
+    /**
+     * Write to a temporary file and move it into place so concurrent searches see the old or the new index
+     */
+    public void write(File file) throws IOException {
+        byte[] bytes = toBytes();
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir.getPath());
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            Files.write(tmp.toPath(), bytes);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        synchronized (this) {
+            changed = false;
+        }
+    }
+
+    public synchronized byte[] toBytes() {
+        List<String> oids = new ArrayList<>(valueSets.keySet());
+        Map<String, Integer> systemIndex = new TreeMap<>();
+        int n = 0;
+        for (List<SvsConcept> rows : valueSets.values()) {
+            for (SvsConcept row : rows) {
+                systemIndex.putIfAbsent(row.getCodeSystem(), 0);
+            }
+            n += rows.size();
+        }
+        List<String> systems = new ArrayList<>(systemIndex.keySet());
+        for (int i = 0; i < systems.size(); i++) {
+            systemIndex.put(systems.get(i), i);
+        }
+
+        //Encode the row columns and collect the postings of every term, rows are added in order so postings stay sorted
+        int[] rowOids = new int[n];
+        int[] rowSystems = new int[n];
+        int[] rowWords = new int[n];
+        String[] rowFirstWords = new String[n];
+        byte[][] codes = new byte[n][];
+        byte[][] displays = new byte[n][];
+        Map<String, IntList> postings = new HashMap<>();
+        int row = 0;
+        for (int o = 0; o < oids.size(); o++) {
+            for (SvsConcept concept : valueSets.get(oids.get(o))) {
+                rowOids[row] = o;
+                rowSystems[row] = systemIndex.get(concept.getCodeSystem());
+                codes[row] = utf8(concept.getCode());
+                displays[row] = utf8(concept.getDisplayName());
+                List<String> words = SearchIndex.tokenize(concept.getDisplayName());
+                rowWords[row] = words.size();
+                rowFirstWords[row] = words.isEmpty() ? null : words.get(0);
+                for (String term : new LinkedHashSet<>(words)) {
+                    postings.computeIfAbsent(term, k -> new IntList()).add(row);
+                }
+                row++;
+            }
+        }
+        List<byte[]> terms = new ArrayList<>(postings.size());
+        List<IntList> termPostings = new ArrayList<>(postings.size());
+        Map<String, Integer> termIds = new HashMap<>();
+        List<Map.Entry<String, IntList>> sorted = new ArrayList<>(postings.entrySet());
+        sorted.sort(Comparator.comparing(e -> utf8(e.getKey()), BinaryValueSetWriter::compareBytes));
+        for (Map.Entry<String, IntList> e : sorted) {
+            termIds.put(e.getKey(), terms.size());
+            terms.add(utf8(e.getKey()));
+            termPostings.add(e.getValue());
+        }
+
+        //Size each section
+        int oidSize = 0;
+        byte[][] oidBytes = new byte[oids.size()][];
+        for (int i = 0; i < oidBytes.length; i++) {
+            oidBytes[i] = utf8(oids.get(i));
+            oidSize += 4 + oidBytes[i].length;
+        }
+        int systemSize = 0;
+        byte[][] systemBytes = new byte[systems.size()][];
+        for (int i = 0; i < systemBytes.length; i++) {
+            systemBytes[i] = utf8(systems.get(i));
+            systemSize += 4 + systemBytes[i].length;
+        }
+        int codeBytes = 0;
+        int displayBytes = 0;
+        for (int i = 0; i < n; i++) {
+            codeBytes += codes[i].length;
+            displayBytes += displays[i].length;
+        }
+        int termBytes = 0;
+        int postingCount = 0;
+        for (int t = 0; t < terms.size(); t++) {
+            termBytes += terms.get(t).length;
+            postingCount += termPostings.get(t).size;
+        }
+
+        int oidOffset = HEADER_SIZE;
+        int systemOffset = align(oidOffset + oidSize);
+        int rowOffset = align(systemOffset + systemSize);
+        int codeOffsetsOffset = rowOffset + 16 * n;
+        int codeBytesOffset = codeOffsetsOffset + 4 * (n + 1);
+        int displayOffsetsOffset = align(codeBytesOffset + codeBytes);
+        int displayBytesOffset = displayOffsetsOffset + 4 * (n + 1);
+        int termOffsetsOffset = align(displayBytesOffset + displayBytes);
+        int termBytesOffset = termOffsetsOffset + 4 * (terms.size() + 1);
+        int postingOffsetsOffset = align(termBytesOffset + termBytes);
+        int postingsOffset = postingOffsetsOffset + 4 * (terms.size() + 1);
+        int total = postingsOffset + 4 * postingCount;
+
+        ByteBuffer buf = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(oidOffset);
+        for (byte[] b : oidBytes) {
+            buf.putInt(b.length).put(b);
+        }
+        buf.position(systemOffset);
+        for (byte[] b : systemBytes) {
+            buf.putInt(b.length).put(b);
+        }
+        buf.position(rowOffset);
+        for (int i = 0; i < n; i++) {
+            buf.putInt(rowOids[i]).putInt(rowSystems[i]).putInt(rowWords[i]);
+            buf.putInt(rowFirstWords[i] == null ? -1 : termIds.get(rowFirstWords[i]));
+        }
+        putStrings(buf, codeOffsetsOffset, codes);
+        putStrings(buf, displayOffsetsOffset, displays);
+        putStrings(buf, termOffsetsOffset, terms.toArray(new byte[0][]));
+        buf.position(postingOffsetsOffset);
+        int offset = 0;
+        for (IntList list : termPostings) {
+            buf.putInt(offset);
+            offset += list.size;
+        }
+        buf.putInt(offset);
+        for (IntList list : termPostings) {
+            for (int i = 0; i < list.size; i++) {
+                buf.putInt(list.values[i]);
+            }
+        }
+
+        buf.position(0);
+        buf.putInt(MAGIC);
+        buf.putShort(FORMAT_VERSION);
+        buf.putShort((short) 0);
+        buf.putInt(n);
+        buf.putInt(oids.size());
+        buf.putInt(systems.size());
+        buf.putInt(terms.size());
+        buf.putInt(oidOffset);
+        buf.putInt(systemOffset);
+        buf.putInt(rowOffset);
+        buf.putInt(codeOffsetsOffset);
+        buf.putInt(codeBytesOffset);
+        buf.putInt(displayOffsetsOffset);
+        buf.putInt(displayBytesOffset);
+        buf.putInt(termOffsetsOffset);
+        buf.putInt(termBytesOffset);
+        buf.putInt(postingOffsetsOffset);
+        buf.putInt(postingsOffset);
+        buf.putInt(total);
+        return buf.array();
+    }
+
+    private static void putStrings(ByteBuffer buf, int offsetsOffset, byte[][] values) {
+        buf.position(offsetsOffset);
+        int offset = 0;
+        for (byte[] v : values) {
+            buf.putInt(offset);
+            offset += v.length;
+        }
+        buf.putInt(offset);
+        for (byte[] v : values) {
+            buf.put(v);
+        }
+    }
+
+    private static int align(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
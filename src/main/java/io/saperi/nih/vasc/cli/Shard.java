@@ -0,0 +1,66 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One of n slices of a load list. Value sets are assigned by a stable FNV-1a hash of their key so every
+ * worker derives the same split on its own, independent of list order, JVM or platform.
+ */
+public class Shard {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parse i/n with shards numbered from 1
+     */
+    public static Shard parse(String spec) {
+        String[] parts = spec.trim().split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid shard " + spec + ", expected i/n");
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard " + spec + ", expected i/n");
+        }
+    }
+
+    public static int shardOf(String key, int count) {
+        long hash = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return (int) Long.remainderUnsigned(hash, count) + 1;
+    }
+
+    public boolean owns(String key) {
+        return shardOf(key, count) == index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
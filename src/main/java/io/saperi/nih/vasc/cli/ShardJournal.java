@@ -0,0 +1,238 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.saperi.nih.vasc.cli.data.ShardJournalEntry;
+import io.saperi.nih.vasc.cli.data.ShardManifest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append only JSON lines journal of the value sets one shard has processed, written next to the
+ * output so shards sharing a volume never touch each other's files. A rerun of the same shard skips
+ * value sets it already completed, merge combines every shard's journal into a single manifest and their
+ * validation reports into a single report.
+ */
+@Slf4j
+public class ShardJournal implements Closeable {
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_FAILED = "failed";
+    public static final String MANIFEST = "manifest.json";
+    public static final String VALIDATION_REPORT_PREFIX = "validation";
+
+    private static final Pattern JOURNAL_NAME = Pattern.compile("shard-(\\d+)-of-(\\d+)\\.journal");
+
+    private final Shard shard;
+    private final Writer out;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Set<String> completed = new HashSet<>();
+
+    private ShardJournal(Shard shard, File file) throws IOException {
+        this.shard = shard;
+        if (file.isFile()) {
+            for (ShardJournalEntry entry : read(file, objectMapper)) {
+                //Later entries win, a failure after a success means it has to be redone
+                if (STATUS_OK.equals(entry.getStatus())) {
+                    completed.add(entry.getOid());
+                } else {
+                    completed.remove(entry.getOid());
+                }
+            }
+        }
+        out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    }
+
+    public static ShardJournal open(File dir, Shard shard) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + dir.getPath());
+        }
+        return new ShardJournal(shard, new File(dir, getFileName(shard)));
+    }
+
+    public static String getFileName(Shard shard) {
+        return "shard-" + shard.getIndex() + "-of-" + shard.getCount() + ".journal";
+    }
+
+    public boolean isCompleted(String valueSetId) {
+        synchronized (completed) {
+            return completed.contains(valueSetId);
+        }
+    }
+
+    public void recordSuccess(String valueSetId, String file, long bytes, long millis) throws IOException {
+        ShardJournalEntry entry = newEntry(valueSetId, STATUS_OK, millis);
+        entry.setFile(file);
+        entry.setBytes(bytes);
+        append(entry);
+    }
+
+    public void recordFailure(String valueSetId, String error, long millis) throws IOException {
+        ShardJournalEntry entry = newEntry(valueSetId, STATUS_FAILED, millis);
+        entry.setError(error);
+        append(entry);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private ShardJournalEntry newEntry(String valueSetId, String status, long millis) {
+        ShardJournalEntry entry = new ShardJournalEntry();
+        entry.setOid(valueSetId);
+        entry.setShard(shard.getIndex());
+        entry.setStatus(status);
+        entry.setMillis(millis);
+        entry.setTime(new Date());
+        return entry;
+    }
+
+    private synchronized void append(ShardJournalEntry entry) throws IOException {
+        //One flushed line per value set so a killed worker loses at most the one in progress
+        out.write(objectMapper.writeValueAsString(entry));
+        out.write('\n');
+        out.flush();
+        synchronized (completed) {
+            if (STATUS_OK.equals(entry.getStatus())) {
+                completed.add(entry.getOid());
+            } else {
+                completed.remove(entry.getOid());
+            }
+        }
+    }
+
+    private static List<ShardJournalEntry> read(File file, ObjectMapper objectMapper) throws IOException {
+        List<ShardJournalEntry> entries = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    entries.add(objectMapper.readValue(line, ShardJournalEntry.class));
+                } catch (IOException e) {
+                    //A worker killed mid write leaves a torn last line
+                    log.warn("Skipping unreadable journal line in " + file.getPath());
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Combine the journals of every shard found in a directory, keeping the latest entry per value set
+     */
+    public static ShardManifest merge(File dir) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new FileNotFoundException("Journal directory " + dir.getPath() + " not found");
+        }
+        Arrays.sort(files);
+        int shardCount = 0;
+        Set<Integer> present = new HashSet<>();
+        Map<String, ShardJournalEntry> latest = new TreeMap<>();
+        for (File file : files) {
+            Matcher m = JOURNAL_NAME.matcher(file.getName());
+            if (!m.matches()) {
+                continue;
+            }
+            int count = Integer.parseInt(m.group(2));
+            if (shardCount != 0 && count != shardCount) {
+                throw new IOException("Journals from different shard counts (" + shardCount + " and " + count + ") in " + dir.getPath());
+            }
+            shardCount = count;
+            present.add(Integer.parseInt(m.group(1)));
+            for (ShardJournalEntry entry : read(file, objectMapper)) {
+                ShardJournalEntry prev = latest.get(entry.getOid());
+                if (prev == null || !entry.getTime().before(prev.getTime())) {
+                    latest.put(entry.getOid(), entry);
+                }
+            }
+        }
+
+        ShardManifest manifest = new ShardManifest();
+        manifest.setShardCount(shardCount);
+        manifest.setMergedOn(new Date());
+        for (int i = 1; i <= shardCount; i++) {
+            if (!present.contains(i)) {
+                manifest.getMissingShards().add(i);
+            }
+        }
+        for (ShardJournalEntry entry : latest.values()) {
+            manifest.getValueSets().add(entry);
+            if (STATUS_OK.equals(entry.getStatus())) {
+                manifest.setConverted(manifest.getConverted() + 1);
+            } else {
+                manifest.setFailed(manifest.getFailed() + 1);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Concatenate the validation reports of the shards, in shard order, into the single report an unsharded run writes.
+     * The header and byte order mark are kept from the first report only. Returns the merged report, or null when no
+     * shard wrote one.
+     */
+    public static File mergeValidationReports(File dir, int shardCount) throws IOException {
+        List<File> reports = new ArrayList<>();
+        for (int i = 1; i <= shardCount; i++) {
+            File report = new File(dir, VALIDATION_REPORT_PREFIX + "-" + i + "-of-" + shardCount + ".csv");
+            if (report.isFile()) {
+                reports.add(report);
+            }
+        }
+        if (reports.isEmpty()) {
+            return null;
+        }
+        File merged = new File(dir, VALIDATION_REPORT_PREFIX + ".csv");
+        byte[] buf = new byte[8192];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(merged))) {
+            boolean first = true;
+            for (File report : reports) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(report))) {
+                    if (!first && !skipHeader(in)) {
+                        //Header only, the shard found nothing
+                        continue;
+                    }
+                    //Reports have no line break after the last record
+                    if (!first) {
+                        out.write('\n');
+                    }
+                    first = false;
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        out.write(buf, 0, n);
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Skip an optional byte order mark and the header line, false when there is nothing after it
+     */
+    private static boolean skipHeader(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void writeManifest(File dir, ShardManifest manifest) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(dir, MANIFEST), manifest);
+    }
+}
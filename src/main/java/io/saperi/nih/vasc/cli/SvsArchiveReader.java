@@ -0,0 +1,229 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Discovers raw SVS RetrieveValueSet responses (VSAC_[oid].xml or [oid].xml) in a directory,
+ * a zip file or a (optionally gzipped) tar file.
+ */
+public class SvsArchiveReader {
+
+    private static final int TAR_BLOCK = 512;
+
+    public interface EntryHandler {
+        /**
+         * Called before the entry is read with its size from the archive header, -1 if the header does not
+         * give it. The content is read by {@link EntryContent#read}, an entry left unread is skipped.
+         */
+        void handle(String valueSetId, long size, EntryContent content) throws IOException;
+    }
+
+    public interface EntryContent {
+        byte[] read() throws IOException;
+    }
+
+    public static List<File> listSvsFiles(File dir) {
+        List<File> out = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return out;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.isDirectory()) {
+                out.addAll(listSvsFiles(f));
+            } else if (getValueSetId(f.getName()) != null) {
+                out.add(f);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Derive the value set id from a file or entry name, returns null if the name is not a raw SVS file. The name
+     * only selects candidates, the parser rejects content that is not an SVS response
+     */
+    public static String getValueSetId(String name) {
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        if (slash != -1) {
+            name = name.substring(slash + 1);
+        }
+        if (!name.toLowerCase().endsWith(".xml")) {
+            return null;
+        }
+        name = name.substring(0, name.length() - 4);
+        if (name.startsWith("VSAC_")) {
+            name = name.substring(5);
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    public static void readArchive(File archive, EntryHandler handler) throws IOException {
+        String name = archive.getName().toLowerCase();
+        if (name.endsWith(".zip")) {
+            readZip(archive, handler);
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(archive))) {
+            if (name.endsWith(".tar")) {
+                readTar(in, handler);
+            } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+                readTar(new GZIPInputStream(in), handler);
+            } else {
+                throw new IOException("Unsupported archive type " + archive.getName());
+            }
+        }
+    }
+
+    private static void readZip(File archive, EntryHandler handler) throws IOException {
+        //The central directory has every entry size, a local header written by a streaming zip may not
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String valueSetId = entry.isDirectory() ? null : getValueSetId(entry.getName());
+                if (valueSetId != null) {
+                    handler.handle(valueSetId, entry.getSize(), () -> {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            return readFully(in);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private static void readTar(InputStream in, EntryHandler handler) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (readBlock(in, header)) {
+            if (isZeroBlock(header)) {
+                //End of archive marker
+                break;
+            }
+            String entryName = longName != null ? longName : getTarName(header);
+            longName = null;
+            long size = parseOctal(header, 124, 12);
+            byte type = header[156];
+            long padding = (TAR_BLOCK - (size % TAR_BLOCK)) % TAR_BLOCK;
+            if (type == 'L') {
+                //GNU long name, the name is the entry content and applies to the next header
+                byte[] data = readBytes(in, size);
+                skipFully(in, padding);
+                longName = trimNul(data, 0, data.length);
+                continue;
+            }
+            String valueSetId = (type == '0' || type == 0) ? getValueSetId(entryName) : null;
+            if (valueSetId != null) {
+                long[] unread = {size};
+                handler.handle(valueSetId, size, () -> {
+                    if (unread[0] != size) {
+                        throw new IOException("Archive entry " + entryName + " already read");
+                    }
+                    unread[0] = 0;
+                    return readBytes(in, size);
+                });
+                skipFully(in, unread[0] + padding);
+            } else {
+                skipFully(in, size + padding);
+            }
+        }
+    }
+
+    private static String getTarName(byte[] header) {
+        String name = trimNul(header, 0, 100);
+        //ustar splits long paths into a prefix and a name
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't') {
+            String prefix = trimNul(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String trimNul(byte[] buf, int off, int len) {
+        int end = off;
+        while (end < off + len && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(byte[] buf, int off, int len) {
+        long out = 0;
+        for (int i = off; i < off + len; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '7') {
+                out = (out << 3) + (b - '0');
+            } else if (b == 0 || (b == ' ' && out > 0)) {
+                break;
+            }
+        }
+        return out;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int read = 0;
+        while (read < block.length) {
+            int n = in.read(block, read, block.length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    private static byte[] readBytes(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Archive entry too large: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        if (!readBlock(in, data)) {
+            throw new EOFException("Truncated archive entry");
+        }
+        return data;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated archive");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Streaming (StAX) parser for SVS RetrieveValueSet responses.
+ */
+public class SvsValueSetParser {
+
+    public static final String SVS_NAMESPACE = "urn:ihe:iti:svs:2008";
+
+    private static final XMLInputFactory factory = createFactory();
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return f;
+    }
+
+    public static SvsValueSet parse(String vsXML) throws IOException {
+        SvsValueSet out = new SvsValueSet();
+        //Concepts repeat a handful of systems and versions, share one string each instead of one per concept
+        String lastSystem = null;
+        String lastVersion = null;
+        boolean root = true;
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(new StringReader(vsXML));
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (root) {
+                    //Other xml, such as a FHIR ValueSet, shares element names with SVS and must not pass for a response
+                    if (!"RetrieveValueSetResponse".equals(name) && !SVS_NAMESPACE.equals(reader.getNamespaceURI())) {
+                        throw new IOException("Not an SVS RetrieveValueSet response, root element is " + name);
+                    }
+                    root = false;
+                }
+                if ("Concept".equals(name)) {
+                    String system = attribute(reader, "codeSystem");
+                    String version = attribute(reader, "codeSystemVersion");
+                    if (system.equals(lastSystem)) {
+                        system = lastSystem;
+                    } else {
+                        lastSystem = system;
+                    }
+                    if (version.equals(lastVersion)) {
+                        version = lastVersion;
+                    } else {
+                        lastVersion = version;
+                    }
+                    out.getConcepts().add(new SvsConcept(
+                            system,
+                            version,
+                            attribute(reader, "code"),
+                            attribute(reader, "displayName")));
+                } else if ("ValueSet".equals(name) && out.getId() == null) {
+                    String id = reader.getAttributeValue(null, "ID");
+                    if (id == null || id.isEmpty()) {
+                        throw new IOException("SVS ValueSet element has no ID");
+                    }
+                    out.setId(id);
+                    out.setDisplayName(attribute(reader, "displayName"));
+                    out.setVersion(attribute(reader, "version"));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Error parsing SVS valueset", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    //Nothing to release for a string source
+                }
+            }
+        }
+        return out;
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        //Match the DOM getAttribute behaviour of returning an empty string when missing
+        return value != null ? value : "";
+    }
+}
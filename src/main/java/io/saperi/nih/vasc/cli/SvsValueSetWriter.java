@@ -0,0 +1,65 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.StringWriter;
+
+/**
+ * Writes a value set in the SVS RetrieveValueSetResponse layout served by VSAC, used when the
+ * value set did not come straight from VSAC (e.g. composed value sets).
+ */
+public class SvsValueSetWriter {
+
+    private static final String SVS_NS = "urn:ihe:iti:svs:2008";
+
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+    public static String write(SvsValueSet vs) {
+        StringWriter out = new StringWriter();
+        try {
+            XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("ns0", "RetrieveValueSetResponse", SVS_NS);
+            writer.writeNamespace("ns0", SVS_NS);
+            writer.writeCharacters("\n    ");
+            writer.writeStartElement("ns0", "ValueSet", SVS_NS);
+            writeAttribute(writer, "ID", vs.getId());
+            writeAttribute(writer, "displayName", vs.getDisplayName());
+            writeAttribute(writer, "version", vs.getVersion());
+            writer.writeCharacters("\n        ");
+            writer.writeStartElement("ns0", "ConceptList", SVS_NS);
+            for (SvsConcept concept : vs.getConcepts()) {
+                writer.writeCharacters("\n            ");
+                writer.writeEmptyElement("ns0", "Concept", SVS_NS);
+                writeAttribute(writer, "code", concept.getCode());
+                writeAttribute(writer, "codeSystem", concept.getCodeSystem());
+                writeAttribute(writer, "codeSystemVersion", concept.getCodeSystemVersion());
+                writeAttribute(writer, "displayName", concept.getDisplayName());
+            }
+            writer.writeCharacters("\n        ");
+            writer.writeEndElement();
+            writer.writeCharacters("\n    ");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            //Only possible on a broken writer as the target is in memory
+            throw new IllegalStateException("Error writing SVS valueset", e);
+        }
+        return out.toString();
+    }
+
+    private static void writeAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeAttribute(name, value);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal streaming ustar writer, each entry is written as soon as it is added.
+ */
+public class TarArchiveWriter implements Closeable {
+
+    private static final int BLOCK = 512;
+
+    private final OutputStream out;
+    private final long modified = System.currentTimeMillis() / 1000;
+    private boolean closed = false;
+
+    public TarArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void addEntry(String name, byte[] content) throws IOException {
+        byte[] header = new byte[BLOCK];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            int split = name.lastIndexOf('/', 155);
+            byte[] prefix = split > 0 ? name.substring(0, split).getBytes(StandardCharsets.UTF_8) : null;
+            nameBytes = split > 0 ? name.substring(split + 1).getBytes(StandardCharsets.UTF_8) : nameBytes;
+            if (prefix == null || prefix.length > 155 || nameBytes.length > 100) {
+                throw new IOException("Tar entry name too long: " + name);
+            }
+            System.arraycopy(prefix, 0, header, 345, prefix.length);
+        }
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeOctal(header, 124, 12, content.length);
+        writeOctal(header, 136, 12, modified);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        //Checksum is computed with the checksum field itself set to spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        writeOctal(header, 148, 7, sum);
+        header[155] = ' ';
+
+        out.write(header);
+        out.write(content);
+        int padding = (BLOCK - (content.length % BLOCK)) % BLOCK;
+        if (padding > 0) {
+            out.write(new byte[padding]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            //Two zero blocks mark the end of the archive
+            out.write(new byte[BLOCK * 2]);
+            out.close();
+        }
+    }
+
+    private static void writeOctal(byte[] buf, int off, int len, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = len - 1;
+        int pad = digits - octal.length();
+        for (int i = 0; i < digits; i++) {
+            buf[off + i] = (byte) (i < pad ? '0' : octal.charAt(i - pad));
+        }
+        buf[off + digits] = 0;
+    }
+}
@@ -0,0 +1,18 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.TokenInfo;
+
+import java.io.IOException;
+
+/**
+ * Where a {@link VsacClient} keeps the UMLS API keys and the ticket granting tickets it was last given, so the TGTs
+ * survive across runs. The client calls the store under its own lock, implementations need not be thread safe
+ * unless they are shared between clients.
+ */
+public interface TokenStore {
+
+    TokenInfo load() throws IOException;
+
+    void save(TokenInfo tok) throws IOException;
+}
@@ -0,0 +1,65 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import java.util.*;
+
+/**
+ * Assigns every distinct system+code a dense integer id so each value set becomes a bitset
+ * and set expressions reduce to word parallel bit operations.
+ */
+public class ValueSetAlgebra {
+
+    private final Map<String, Integer> codeIds = new HashMap<>();
+    private final List<SvsConcept> concepts = new ArrayList<>();
+    private final Map<String, BitSet> valueSets = new HashMap<>();
+    private final CodeSystemRegistry codeSystems;
+
+    public ValueSetAlgebra() {
+        this(FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public ValueSetAlgebra(CodeSystemRegistry codeSystems) {
+        this.codeSystems = codeSystems;
+    }
+
+    public BitSet add(String valueSetId, SvsValueSet vs) {
+        BitSet bits = new BitSet();
+        for (SvsConcept concept : vs.getConcepts()) {
+            String key = codeSystems.getFHIRCodeSystem(concept.getCodeSystem()) + "|" + concept.getCode();
+            Integer id = codeIds.get(key);
+            if (id == null) {
+                id = concepts.size();
+                codeIds.put(key, id);
+                concepts.add(concept);
+            }
+            bits.set(id);
+        }
+        valueSets.put(valueSetId, bits);
+        return bits;
+    }
+
+    public boolean hasValueSet(String valueSetId) {
+        return valueSets.containsKey(valueSetId);
+    }
+
+    public BitSet evaluate(ValueSetExpression expression) {
+        return expression.evaluate(valueSets);
+    }
+
+    public int getCodeCount() {
+        return concepts.size();
+    }
+
+    public SvsValueSet toValueSet(BitSet bits, String id, String title) {
+        SvsValueSet out = new SvsValueSet();
+        out.setId(id);
+        out.setDisplayName(title);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            out.getConcepts().add(concepts.get(i));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,212 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.base.Charsets;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Parses SVS responses and encodes value sets as FHIR json or xml, csv, SVS xml or the binary format. A converter
+ * holds only its csv and FHIR writer settings and the code system registry, it is immutable and may be shared by any number of threads.
+ */
+public class ValueSetConverter {
+
+    public static final String VALUESET_BASE = "http://cts.nlm.nih.gov/fhir/ValueSet/";
+    public static final Set<String> FORMATS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("fhir+json", "fhir+xml", "csv", "xml", "bin")));
+
+    //Ordered by the bundled registry so the canonical order does not depend on the converter settings
+    public static final Comparator<SvsConcept> CONCEPT_ORDER = Comparator
+            .comparing((SvsConcept c) -> FHIRCodeSystemMapper.getFHIRCodeSystem(c.getCodeSystem()))
+            .thenComparing(SvsConcept::getCodeSystemVersion)
+            .thenComparing(SvsConcept::getCode);
+
+    private final char csvDelimiter;
+    private final boolean csvHeader;
+    private final boolean csvBom;
+    private final boolean fastFhir;
+    private final CodeSystemRegistry codeSystems;
+
+    public ValueSetConverter() {
+        this(',', true, false, false);
+    }
+
+    public ValueSetConverter(char csvDelimiter, boolean csvHeader, boolean csvBom, boolean fastFhir) {
+        this(csvDelimiter, csvHeader, csvBom, fastFhir, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public ValueSetConverter(char csvDelimiter, boolean csvHeader, boolean csvBom, boolean fastFhir, CodeSystemRegistry codeSystems) {
+        this.csvDelimiter = csvDelimiter;
+        this.csvHeader = csvHeader;
+        this.csvBom = csvBom;
+        this.fastFhir = fastFhir;
+        this.codeSystems = codeSystems;
+    }
+
+    public char getCsvDelimiter() {
+        return csvDelimiter;
+    }
+
+    public boolean isCsvHeader() {
+        return csvHeader;
+    }
+
+    public boolean isCsvBom() {
+        return csvBom;
+    }
+
+    public boolean isFastFhir() {
+        return fastFhir;
+    }
+
+    public ValueSetConverter withFastFhir(boolean fast) {
+        return new ValueSetConverter(csvDelimiter, csvHeader, csvBom, fast, codeSystems);
+    }
+
+    /**
+     * The registry mapping concept systems to their FHIR URI in every encoding, the bundled one by default
+     */
+    public CodeSystemRegistry getCodeSystems() {
+        return codeSystems;
+    }
+
+    public ValueSetConverter withCodeSystems(CodeSystemRegistry registry) {
+        return new ValueSetConverter(csvDelimiter, csvHeader, csvBom, fastFhir, registry);
+    }
+
+    private static class Fhir {
+        //The context is expensive to build and thread safe once built, built on first use and shared
+        static final FhirContext CONTEXT = FhirContext.forR4();
+    }
+
+    public static FhirContext getFhirContext() {
+        return Fhir.CONTEXT;
+    }
+
+    /**
+     * Parse an SVS RetrieveValueSet response, concepts are sorted to the canonical order so every encoding is
+     * deterministic across runs
+     */
+    public static SvsValueSet parse(String vsXML) throws IOException {
+        SvsValueSet svs = SvsValueSetParser.parse(vsXML);
+        svs.getConcepts().sort(CONCEPT_ORDER);
+        return svs;
+    }
+
+    /**
+     * Parse a response that must hold the value set, an empty or unreadable one is an error naming the value set
+     * rather than a value set without concepts that would replace the stored ones with nothing
+     */
+    public static SvsValueSet parse(String vsXML, String valueSetId) throws IOException {
+        SvsValueSet svs;
+        try {
+            svs = parse(vsXML);
+        } catch (IOException e) {
+            throw new IOException("Error parsing valueset " + valueSetId + ": " + e.getMessage(), e);
+        }
+        if (svs.getId() == null) {
+            throw new IOException("Error parsing valueset " + valueSetId + ": no ValueSet element in response");
+        }
+        return svs;
+    }
+
+    public static ValueSet toFhir(SvsValueSet svs, String valueSetId) {
+        return toFhir(svs, valueSetId, FHIRCodeSystemMapper.getRegistry());
+    }
+
+    public static ValueSet toFhir(SvsValueSet svs, String valueSetId, CodeSystemRegistry codeSystems) {
+        ValueSet vs = new ValueSet();
+        vs.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        vs.setId(valueSetId);
+        vs.setUrl(VALUESET_BASE + valueSetId);
+        if (svs.getId() != null) {
+            vs.setTitle(svs.getDisplayName());
+            if (svs.getVersion() != null && !svs.getVersion().isEmpty()) {
+                vs.setVersion(svs.getVersion());
+            }
+        }
+
+        //Concepts arrive in canonical order, keep the includes in first seen (system, version) order
+        LinkedHashMap<String, ValueSet.ConceptSetComponent> includes = new LinkedHashMap<>();
+        for (SvsConcept concept : svs.getConcepts()) {
+            String system = codeSystems.getFHIRCodeSystem(concept.getCodeSystem());
+            ValueSet.ConceptSetComponent set = includes.computeIfAbsent(system + "|" + concept.getCodeSystemVersion(),
+                    key -> new ValueSet.ConceptSetComponent().setSystem(system).setVersion(concept.getCodeSystemVersion()));
+            set.addConcept().setDisplay(concept.getDisplayName()).setCode(concept.getCode());
+        }
+        for (ValueSet.ConceptSetComponent set : includes.values()) {
+            vs.getCompose().addInclude(set);
+        }
+        return vs;
+    }
+
+    /**
+     * Encode to one of {@link #FORMATS}. The stream is flushed, not closed, the caller owns it.
+     */
+    public void write(SvsValueSet svs, String valueSetId, String format, OutputStream out) throws IOException {
+        switch (format) {
+            case "fhir+json":
+            case "fhir+xml": {
+                if (fastFhir) {
+                    FhirValueSetStreamWriter writer = new FhirValueSetStreamWriter(svs, valueSetId, VALUESET_BASE + valueSetId, codeSystems);
+                    if ("fhir+xml".equals(format)) {
+                        writer.writeXml(out, true);
+                    } else {
+                        writer.writeJson(out, true);
+                    }
+                } else {
+                    write(toFhir(svs, valueSetId, codeSystems), format, out);
+                }
+                break;
+            }
+            case "csv": {
+                writeCsv(svs, out);
+                break;
+            }
+            case "xml": {
+                out.write(SvsValueSetWriter.write(svs).getBytes(Charsets.UTF_8));
+                break;
+            }
+            case "bin": {
+                out.write(BinaryValueSetWriter.write(svs, codeSystems));
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException("Invalid format type: " + format);
+            }
+        }
+    }
+
+    public static void write(ValueSet hvs, String format, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+        IParser parser = "fhir+xml".equals(format) ? getFhirContext().newXmlParser() : getFhirContext().newJsonParser();
+        parser.setPrettyPrint(true).encodeResourceToWriter(hvs, writer);
+        writer.flush();
+    }
+
+    public void writeCsv(SvsValueSet svs, OutputStream out) throws IOException {
+        //System, Version, Code, Display
+        CsvWriter csv = CsvWriter.open(out, csvDelimiter, csvBom);
+        if (csvHeader) {
+            csv.writeRecord("System", "Version", "Code", "Display");
+        }
+        for (SvsConcept concept : svs.getConcepts()) {
+            csv.field(codeSystems.getFHIRCodeSystem(concept.getCodeSystem()))
+                    .field(concept.getCodeSystemVersion())
+                    .field(concept.getCode())
+                    .field(concept.getDisplayName())
+                    .endRecord();
+        }
+        //Flush rather than close, the caller owns the stream
+        csv.flush();
+    }
+}
@@ -0,0 +1,256 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import java.util.*;
+
+/**
+ * Set expression over value set ids, for example "(A | B) - C".
+ * <pre>
+ *   union      |  +
+ *   intersect  &amp;
+ *   minus      -  \
+ * </pre>
+ * Intersection binds tighter than union and minus, which are evaluated left to right.
+ */
+public class ValueSetExpression {
+
+    private final Node root;
+    private final String text;
+
+    private ValueSetExpression(Node root, String text) {
+        this.root = root;
+        this.text = text;
+    }
+
+    public static ValueSetExpression parse(String text) {
+        Parser parser = new Parser(text);
+        Node root = parser.parseExpression();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in expression " + text);
+        }
+        return new ValueSetExpression(root, text);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Value set ids referenced by the expression, in order of first use
+     */
+    public Set<String> getOperands() {
+        Set<String> out = new LinkedHashSet<>();
+        root.collect(out);
+        return out;
+    }
+
+    /**
+     * Evaluate against the bitset of each operand, the inputs are left untouched
+     */
+    public BitSet evaluate(Map<String, BitSet> sets) {
+        return root.evaluate(sets);
+    }
+
+    /**
+     * Rewrite the expression as (I1 | I2 ...) - (E1 | E2 ...) where each term is an intersection of value sets,
+     * the shape FHIR compose include/exclude can express. Returns null when no such form exists.
+     */
+    public Normalized normalize() {
+        return root.normalize();
+    }
+
+    public static class Normalized {
+        public List<List<String>> includes = new ArrayList<>();
+        public List<List<String>> excludes = new ArrayList<>();
+    }
+
+    interface Node {
+        BitSet evaluate(Map<String, BitSet> sets);
+
+        Normalized normalize();
+
+        void collect(Set<String> operands);
+    }
+
+    static class Operand implements Node {
+        private final String id;
+
+        Operand(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public BitSet evaluate(Map<String, BitSet> sets) {
+            BitSet set = sets.get(id);
+            if (set == null) {
+                throw new IllegalArgumentException("Value set " + id + " was not loaded");
+            }
+            return (BitSet) set.clone();
+        }
+
+        @Override
+        public Normalized normalize() {
+            Normalized out = new Normalized();
+            out.includes.add(new ArrayList<>(Collections.singletonList(id)));
+            return out;
+        }
+
+        @Override
+        public void collect(Set<String> operands) {
+            operands.add(id);
+        }
+    }
+
+    static class Operation implements Node {
+        private final char op;
+        private final Node left;
+        private final Node right;
+
+        Operation(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public BitSet evaluate(Map<String, BitSet> sets) {
+            //Word parallel set operations on the dense code ids
+            BitSet out = left.evaluate(sets);
+            BitSet other = right.evaluate(sets);
+            switch (op) {
+                case '|':
+                    out.or(other);
+                    break;
+                case '&':
+                    out.and(other);
+                    break;
+                default:
+                    out.andNot(other);
+                    break;
+            }
+            return out;
+        }
+
+        @Override
+        public Normalized normalize() {
+            Normalized l = left.normalize();
+            Normalized r = right.normalize();
+            if (l == null || r == null) {
+                return null;
+            }
+            Normalized out = new Normalized();
+            switch (op) {
+                case '|': {
+                    //(I1 - E1) | (I2 - E2) has no include/exclude form unless nothing is excluded
+                    if (!l.excludes.isEmpty() || !r.excludes.isEmpty()) {
+                        return null;
+                    }
+                    out.includes.addAll(l.includes);
+                    out.includes.addAll(r.includes);
+                    return out;
+                }
+                case '&': {
+                    //(I1 - E1) & (I2 - E2) = (I1 & I2) - (E1 | E2), distributing & over the include unions
+                    for (List<String> a : l.includes) {
+                        for (List<String> b : r.includes) {
+                            List<String> term = new ArrayList<>(a);
+                            term.addAll(b);
+                            out.includes.add(term);
+                        }
+                    }
+                    out.excludes.addAll(l.excludes);
+                    out.excludes.addAll(r.excludes);
+                    return out;
+                }
+                default: {
+                    //(I1 - E1) - I2 = I1 - (E1 | I2)
+                    if (!r.excludes.isEmpty()) {
+                        return null;
+                    }
+                    out.includes.addAll(l.includes);
+                    out.excludes.addAll(l.excludes);
+                    out.excludes.addAll(r.includes);
+                    return out;
+                }
+            }
+        }
+
+        @Override
+        public void collect(Set<String> operands) {
+            left.collect(operands);
+            right.collect(operands);
+        }
+    }
+
+    static class Parser {
+        private final List<String> tokens = new ArrayList<>();
+        private int pos = 0;
+        private final String text;
+
+        Parser(String text) {
+            this.text = text;
+            StringBuilder operand = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c) || "()|+&-\\".indexOf(c) != -1) {
+                    if (operand.length() > 0) {
+                        tokens.add(operand.toString());
+                        operand.setLength(0);
+                    }
+                    if (!Character.isWhitespace(c)) {
+                        tokens.add(String.valueOf(c));
+                    }
+                } else {
+                    operand.append(c);
+                }
+            }
+            if (operand.length() > 0) {
+                tokens.add(operand.toString());
+            }
+        }
+
+        String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        Node parseExpression() {
+            Node node = parseTerm();
+            String t;
+            while ((t = peek()) != null && (t.equals("|") || t.equals("+") || t.equals("-") || t.equals("\\"))) {
+                pos++;
+                char op = (t.equals("|") || t.equals("+")) ? '|' : '-';
+                node = new Operation(op, node, parseTerm());
+            }
+            return node;
+        }
+
+        Node parseTerm() {
+            Node node = parseFactor();
+            while ("&".equals(peek())) {
+                pos++;
+                node = new Operation('&', node, parseFactor());
+            }
+            return node;
+        }
+
+        Node parseFactor() {
+            String t = peek();
+            if (t == null) {
+                throw new IllegalArgumentException("Unexpected end of expression " + text);
+            }
+            pos++;
+            if (t.equals("(")) {
+                Node node = parseExpression();
+                if (!")".equals(peek())) {
+                    throw new IllegalArgumentException("Missing ')' in expression " + text);
+                }
+                pos++;
+                return node;
+            }
+            if (t.length() == 1 && "()|+&-\\".contains(t)) {
+                throw new IllegalArgumentException("Unexpected '" + t + "' in expression " + text);
+            }
+            return new Operand(t);
+        }
+    }
+}
@@ -1,27 +1,19 @@
 /*Copyright 2021 Cognitive Medical Systems*/
 package io.saperi.nih.vasc.cli;
 
-import ca.uhn.fhir.context.FhirContext;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
+import io.saperi.nih.vasc.cli.data.HistoryEntry;
+import io.saperi.nih.vasc.cli.data.PublishResult;
+import io.saperi.nih.vasc.cli.data.SearchHit;
+import io.saperi.nih.vasc.cli.data.ShardJournalEntry;
+import io.saperi.nih.vasc.cli.data.ShardManifest;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
 import io.saperi.nih.vasc.cli.data.TokenInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.Consts;
-import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.ValueSet;
@@ -39,20 +31,32 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 @Slf4j
 public class VascCommandLineRunner implements CommandLineRunner {
 
-    private static String NLMTGTEndpoint = "https://utslogin.nlm.nih.gov/cas/v1/api-key";
-    private static String NMMServerTicketEndpoint = "https://utslogin.nlm.nih.gov/cas/v1/tickets/";
-    private static String NLMService = "http://umlsks.nlm.nih.gov";
-    private static int TICKET_LIFE_WINDOW = 1000 * 60 * 5;   //Margin for the TGT lifespan
-
-    private static String VSACEndpoint = "https://vsac.nlm.nih.gov/vsac/svs/RetrieveValueSet";
+    private static final int DEFAULT_TIMEOUT_SECONDS = 120;
+    private static final Set<String> CONVERT_FORMATS = new HashSet<>(Arrays.asList("fhir+json", "fhir+xml", "csv", "xml", "package", "bin", "db"));
 
     private String outputDirectory;
     private OutputProcessor output = new OutputProcessor();
+    private Shard shard;
+    private Map<String, String> shardKeys = new HashMap<>();
+    private TokenStore tokenStore = new FileTokenStore();
+    private long timeoutMillis = VsacClient.DEFAULT_TIMEOUT_MILLIS;
+    private double hedgeFraction = VsacClient.DEFAULT_HEDGE_FRACTION;
+    private VsacClient client;
+    private ValueSetConverter converter = new ValueSetConverter();
 
     private static void printHelp(Options options) {
         System.out.println("Usage: [command] [args] [options]");
@@ -60,46 +64,47 @@ public class VascCommandLineRunner implements CommandLineRunner {
         formatter.printHelp("CLI", options);
         System.out.println("Supported Commands:");
         System.out.println("  convert [valuesetid]");
+        System.out.println("  convert -fd [directory|zip|tar] [valuesetid]");
+        System.out.println("  compose [expression]   e.g. \"(A | B) - C\", also & for intersection");
         System.out.println("  fetch [valuesetid]");
+        System.out.println("  at [valuesetid] [date|version]   expansion as recorded in the history, lists versions without a date");
+        System.out.println("  search [words]         find concepts by display name, words match as prefixes");
+        System.out.println("  merge                  combine shard journals in the output directory");
+        System.out.println("  validate -rd [dir] [valuesetid|-fd source]   check codes against local release files");
+        System.out.println("  publish --target [fhir base] [valuesetid|-fd source]   PUT changed valuesets to a FHIR server in bundles");
         System.out.println("  init [object]");
         System.out.println("  reset");
         System.out.println("  test [testname]");
     }
 
     private void commandReset(CommandLine cmd) throws IOException {
-        TokenInfo tok = this.getTokenInfo();
-        tok.setTokenGrantedOn(null);
-        tok.setTokenGrantingTicket(null);
-        this.saveTokenInfo(tok);
+        getClient().invalidate();
     }
 
     private void commandFetch(ArrayList<String> args, CommandLine cmd) throws IOException {
         if (args.size() == 0) {
             return;
         }
-        TokenInfo tok = this.getTokenInfo();
+        VsacClient client = getClient();
+        client.loadToken();
         String format = cmd.getOptionValue("f", "csv");
         for (String valueSetId : args) {
             //Fetch each value set and see what we so with it
             output.println("Fetching value set " + valueSetId);
-            String vs = fetchValueSet(tok, valueSetId);
+            String vs = client.fetchRaw(valueSetId);
 
             String out;
             switch (format) {
-                case "fhir-json": {
-                    ValueSet hvs = this.convertVASCValueSetToFHIRValueSet(vs, valueSetId);
-                    FhirContext fhirContext = FhirContext.forR4();
-                    out = fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(hvs);
-                    break;
-                }
+                case "fhir-json":
                 case "fhir-xml": {
-                    ValueSet hvs = this.convertVASCValueSetToFHIRValueSet(vs, valueSetId);
-                    FhirContext fhirContext = FhirContext.forR4();
-                    out = fhirContext.newXmlParser().setPrettyPrint(true).encodeResourceToString(hvs);
+                    SvsValueSet svs = parseValueSet(vs, valueSetId);
+                    String fhirFormat = "fhir-xml".equals(format) ? "fhir+xml" : "fhir+json";
+                    out = new String(encodeToBytes(o -> ValueSetConverter.write(ValueSetConverter.toFhir(svs, valueSetId, converter.getCodeSystems()), fhirFormat, o)), Charsets.UTF_8);
                     break;
                 }
                 case "csv": {
-                    out = this.convertVASCValueSetToCSVValueSet(vs, valueSetId).toString();
+                    SvsValueSet svs = parseValueSet(vs, valueSetId);
+                    out = new String(encodeToBytes(o -> converter.writeCsv(svs, o)), Charsets.UTF_8);
                     break;
                 }
                 case "xml": {
@@ -119,76 +124,759 @@ public class VascCommandLineRunner implements CommandLineRunner {
     }
 
     private void commandConvert(ArrayList<String> args, CommandLine cmd) throws IOException {
+        convert(args, cmd, false);
+    }
+
+    private void convert(ArrayList<String> args, CommandLine cmd, boolean validateOnly) throws IOException {
+        if (cmd.hasOption("fd")) {
+            convertOffline(args, cmd, validateOnly);
+            return;
+        }
         if (args.size() == 0) {
             return;
         }
 
 
-        TokenInfo tok = this.getTokenInfo();
-        if (args.size() > 1 && cmd.hasOption("o")) {
+        getClient().loadToken();
+        String format = cmd.getOptionValue("f", "csv");
+        if (args.size() > 1 && cmd.hasOption("o") && !ConversionRun.isSingleOutput(format) && !validateOnly) {
             output.printException("Error multiple conversion targets selected with a single output file");
             return;
         }
+        if (!CONVERT_FORMATS.contains(format)) {
+            output.printException("Invalid format type: " + format);
+            return;
+        }
+
+        ConversionRun run = openRun(format, cmd, validateOnly);
+        if (run == null) {
+            return;
+        }
+        AtomicInteger failed = new AtomicInteger();
+        //Start the value sets that took longest last time first so a big one does not end up alone at the tail
+        FetchHistory fetchHistory = FetchHistory.load(getFetchHistoryFile());
+        int threads;
+        long expectedInput;
+        long expectedScheduled;
+        long start;
+        try {
+            args = selectShard(args, run);
+            //One fetch at a time per API key unless more threads are asked for
+            threads = cmd.hasOption("t") ? getParallelism(cmd) : getClient().getCredentialCount();
 
-        output.println("Fetching and converting "+ Integer.toString(args.size())+(args.size()>1?" valueset":" valuesets"));
+            output.println("Fetching and converting "+ Integer.toString(args.size())+(args.size()>1?" valueset":" valuesets"));
 
-        String format = cmd.getOptionValue("f", "csv");
-        for (String valueSetId : args) {
-            //Fetch each value set and see what we so with it
-            output.vprintln("Fetching valueset "+valueSetId);
-            String vs = fetchValueSet(tok, valueSetId);
-            output.println("Converting value set "+valueSetId+" to "+format);
-            String out;
-            String fileName;
-            String suffix;
-            switch (format) {
-                case "fhir+json": {
-                    ValueSet hvs = this.convertVASCValueSetToFHIRValueSet(vs, valueSetId);
-                    FhirContext fhirContext = FhirContext.forR4();
-                    out = fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(hvs);
-                    suffix = "json";
-                    break;
+            List<String> order = fetchHistory.schedule(args);
+            expectedInput = fetchHistory.getExpectedMakespan(args, threads);
+            expectedScheduled = fetchHistory.getExpectedMakespan(order, threads);
+            start = System.currentTimeMillis();
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (String valueSetId : order) {
+                    results.add(pool.submit(() -> {
+                        convertOnline(valueSetId, run, fetchHistory);
+                        return null;
+                    }));
                 }
-                case "fhir+xml": {
-                    ValueSet hvs = this.convertVASCValueSetToFHIRValueSet(vs, valueSetId);
-                    FhirContext fhirContext = FhirContext.forR4();
-                    out = fhirContext.newXmlParser().setPrettyPrint(true).encodeResourceToString(hvs);
-                    suffix = "xml";
-                    break;
+                for (int i = 0; i < results.size(); i++) {
+                    try {
+                        results.get(i).get();
+                    } catch (ExecutionException e) {
+                        failed.incrementAndGet();
+                        output.printException("Error converting valueset " + order.get(i) + ": " + e.getCause().getMessage());
+                    }
                 }
-                case "csv": {
-                    out = this.convertVASCValueSetToCSVValueSet(vs, valueSetId).toString();
-                    suffix = "csv";
-                    break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                output.printException(e);
+            } finally {
+                pool.shutdownNow();
+            }
+        } finally {
+            closeRun(run);
+        }
+        if (failed.get() > 0) {
+            output.println(failed.get() + " valuesets failed");
+        }
+        saveFetchHistory(fetchHistory);
+        reportFetchLatency();
+        reportSchedule(expectedInput, expectedScheduled, System.currentTimeMillis() - start, threads);
+        reportRun(run);
+    }
+
+    private File getFetchHistoryFile() {
+        //Shards may share a working directory, each keeps the timings of its own slice
+        return new File(shard == null ? ".vsacHistory" : ".vsacHistory-" + shard.getIndex() + "-of-" + shard.getCount());
+    }
+
+    private void saveFetchHistory(FetchHistory fetchHistory) {
+        try {
+            fetchHistory.save();
+        } catch (IOException e) {
+            log.warn("Unable to save fetch history", e);
+        }
+    }
+
+    private void reportSchedule(long expectedInput, long expectedScheduled, long actual, int threads) {
+        if (threads < 2 || expectedInput == 0) {
+            //Sequential runs or no history, ordering can not change the makespan
+            return;
+        }
+        double saving = 100.0 * (expectedInput - expectedScheduled) / expectedInput;
+        output.println(String.format("Expected makespan %d ms in given order, %d ms longest first (%.0f%% shorter), actual %d ms",
+                expectedInput, expectedScheduled, saving, actual));
+    }
+
+    private void convertOnline(String valueSetId, ConversionRun run, FetchHistory fetchHistory) throws IOException {
+        //Fetch each value set and see what we so with it
+        //Admit against the budget before the request goes out, sized from the last run, so fetching backs off under
+        //pressure, then again from the Content-Length before the body is read. Neither wait counts as fetch latency.
+        try (MemoryBudget.Reservation reservation = run.getMemoryBudget().reserve(MemoryBudget.estimate(fetchHistory.getBytes(valueSetId)))) {
+            output.vprintln("Fetching valueset "+valueSetId);
+            long fetchStart = System.currentTimeMillis();
+            long admitStart = reservation.getWaitMillis();
+            String vs = getClient().fetchRaw(valueSetId, contentLength -> reservation.ensure(MemoryBudget.estimate(contentLength)));
+            long fetchEnd = System.currentTimeMillis();
+            long admitMillis = reservation.getWaitMillis() - admitStart;
+            //Sent without a length, the body is already read but the conversion still waits its turn
+            reservation.ensure(MemoryBudget.estimate(vs.length()));
+            output.println("Converting value set "+valueSetId+" to "+run.getFormat());
+            long convertStart = System.currentTimeMillis();
+            try {
+                run.write(vs, valueSetId);
+            } catch (IOException | RuntimeException e) {
+                run.recordFailure(valueSetId, e, System.currentTimeMillis() - fetchStart);
+                throw e;
+            }
+            long end = System.currentTimeMillis();
+            fetchHistory.record(valueSetId, vs.length(), fetchEnd - fetchStart - admitMillis, end - convertStart);
+            run.recordSuccess(valueSetId, vs.length(), end - fetchStart);
+        }
+    }
+
+    /**
+     * Open the sinks of a convert or validate run from the options, null after reporting why it can not start
+     */
+    private ConversionRun openRun(String format, CommandLine cmd, boolean validateOnly) throws IOException {
+        if (shard == null && cmd.hasOption("sh")) {
+            //An unparseable --shard must not fall back to processing everything
+            return null;
+        }
+        MemoryBudget memoryBudget = MemoryBudget.unlimited();
+        if (cmd.hasOption("mb")) {
+            try {
+                memoryBudget = new MemoryBudget(MemoryBudget.parseSize(cmd.getOptionValue("mb")));
+            } catch (NumberFormatException e) {
+                output.printException("Invalid memory budget " + cmd.getOptionValue("mb"));
+                return null;
+            }
+        }
+        CodeValidator codeValidator = null;
+        if (cmd.hasOption("rd")) {
+            try {
+                long start = System.currentTimeMillis();
+                codeValidator = CodeValidator.load(new File(cmd.getOptionValue("rd")), converter.getCodeSystems());
+                for (CodeRelease release : codeValidator.getReleases()) {
+                    output.vprintln("Loaded " + release.size() + " " + release.getKind().getTitle() + " codes");
                 }
-                case "xml": {
-                    out = vs;
-                    suffix = "xml";
-                    break;
+                output.vprintln("Opened code releases in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                output.printException("Unable to load code releases: " + e.getMessage());
+                return null;
+            }
+        }
+        try {
+            return runBuilder(format, cmd)
+                    .validateOnly(validateOnly)
+                    .memoryBudget(memoryBudget)
+                    .shard(shard, shardKeys, cmd.hasOption("redo"))
+                    .searchIndex(!cmd.hasOption("no-index"))
+                    .history(!cmd.hasOption("no-history"))
+                    .codeValidator(codeValidator)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            output.printException(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Output location, format and package or database settings shared by convert and compose
+     */
+    private ConversionRun.Builder runBuilder(String format, CommandLine cmd) {
+        //Package id follows the FHIR name#version convention
+        String[] id = cmd.getOptionValue("pn", "vsac.valuesets#0.1.0").split("#", 2);
+        int batchSize = DatabaseWriter.DEFAULT_BATCH_SIZE;
+        if ("db".equals(format) && cmd.hasOption("batch-size")) {
+            try {
+                batchSize = Integer.parseInt(cmd.getOptionValue("batch-size"));
+            } catch (NumberFormatException e) {
+                output.printException("Invalid batch size " + cmd.getOptionValue("batch-size") + ", using " + batchSize);
+            }
+        }
+        return ConversionRun.builder()
+                .format(format)
+                .converter(converter)
+                .outputDirectory(outputDirectory != null ? new File(outputDirectory) : null)
+                .outputFile(cmd.hasOption("o") ? new File(cmd.getOptionValue("o")) : null)
+                .force(cmd.hasOption("force"))
+                .packageId(id[0], id.length > 1 ? id[1] : "0.1.0")
+                .database(cmd.getOptionValue("db-url"), batchSize)
+                .detail(output::vprintln);
+    }
+
+    private void closeRun(ConversionRun run) throws IOException {
+        if (run.getPackageWriter() != null) {
+            output.println("Wrote " + run.getPackageWriter().getCount() + " valuesets to package");
+        }
+        try {
+            run.close();
+        } finally {
+            if (run.getDatabaseWriter() != null) {
+                output.println(run.getDatabaseWriter().getReport());
+            }
+        }
+        HistoryStore historyStore = run.getHistoryStore();
+        if (historyStore != null && historyStore.getAppended() > 0) {
+            output.println("Recorded " + historyStore.getAppended() + " new valueset versions in history");
+        }
+        if (run.getValidationReport() != null) {
+            CodeValidator codeValidator = run.getCodeValidator();
+            output.println(codeValidator.getSummary());
+            output.println("Wrote " + codeValidator.getIssues().size() + " unknown, inactive or malformed codes to " + run.getValidationReport().getPath());
+        }
+    }
+
+    private void reportRun(ConversionRun run) {
+        HashedFileWriter fileWriter = run.getFileWriter();
+        //Nothing went through the file writer for package output
+        if (fileWriter.getWritten() + fileWriter.getSkipped() > 0) {
+            output.println("Wrote " + fileWriter.getWritten() + " files, " + fileWriter.getSkipped() + " unchanged");
+        }
+        MemoryBudget memoryBudget = run.getMemoryBudget();
+        if (memoryBudget.isLimited() || output.isVerbose()) {
+            output.println(memoryBudget.getReport());
+        }
+    }
+
+    private void writeConverted(String valueSetId, String suffix, CommandLine cmd, OutputEncoder encoder) throws IOException {
+        File file = new File(getOutputFileName(cmd, valueSetId, suffix));
+        if (!new HashedFileWriter(cmd.hasOption("force")).write(file, encoder::encode)) {
+            output.vprintln("Unchanged " + file.getPath());
+        }
+    }
+
+    private byte[] encodeToBytes(OutputEncoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(out);
+        return out.toByteArray();
+    }
+
+    private void convertOffline(ArrayList<String> args, CommandLine cmd, boolean validateOnly) throws IOException {
+        File source = new File(cmd.getOptionValue("fd"));
+        if (!source.exists()) {
+            output.printException("Source " + source.getPath() + " does not exist");
+            return;
+        }
+        String format = cmd.getOptionValue("f", "csv");
+        if (!CONVERT_FORMATS.contains(format)) {
+            output.printException("Invalid format type: " + format);
+            return;
+        }
+        int parallelism = getParallelism(cmd);
+        ConversionRun run = openRun(format, cmd, validateOnly);
+        if (run == null) {
+            return;
+        }
+        MemoryBudget memoryBudget = run.getMemoryBudget();
+        //Any explicit value set ids restrict the conversion to those ids
+        Set<String> filter = new HashSet<>(args);
+        AtomicInteger converted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.currentTimeMillis();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            if (source.isDirectory()) {
+                List<File> files = new ArrayList<>();
+                for (File f : SvsArchiveReader.listSvsFiles(source)) {
+                    String valueSetId = SvsArchiveReader.getValueSetId(f.getName());
+                    if ((filter.isEmpty() || filter.contains(valueSetId)) && run.isSelected(valueSetId)) {
+                        files.add(f);
+                    }
                 }
-                default: {
-                    output.printException("Invalid format type: " + format);
+                //Largest files first, the response size is the best predictor of conversion time
+                files.sort(Comparator.comparingLong(File::length).reversed());
+                if (files.size() > 1 && !run.acceptsMany()) {
+                    output.printException("Error multiple conversion targets selected with a single output file");
+                    return;
+                }
+                output.println("Converting " + files.size() + " raw valuesets from " + source.getPath() + " using " + parallelism + " threads");
+                pool.invoke(new OfflineConvertAction(files, 0, files.size(), run, converted, failed));
+            } else {
+                if (!run.acceptsMany() && countArchiveEntries(source, filter, run) > 1) {
+                    output.printException("Error multiple conversion targets selected with a single output file");
                     return;
                 }
+                output.println("Converting raw valuesets from archive " + source.getPath() + " using " + parallelism + " threads");
+                //Bound the number of decoded entries waiting for a worker so large archives stream
+                Semaphore inFlight = new Semaphore(parallelism * 2);
+                SvsArchiveReader.readArchive(source, (valueSetId, size, content) -> {
+                    if ((!filter.isEmpty() && !filter.contains(valueSetId)) || !run.isSelected(valueSetId)) {
+                        return;
+                    }
+                    inFlight.acquireUninterruptibly();
+                    //Reserving from the header size blocks the archive reader before the entry is decoded while
+                    //the budget is exhausted, a zip entry without a size is reserved once it has been read
+                    MemoryBudget.Reservation reservation = null;
+                    byte[] data;
+                    try {
+                        reservation = memoryBudget.reserve(MemoryBudget.estimate(Math.max(size, 0)));
+                        data = content.read();
+                        reservation.ensure(MemoryBudget.estimate(data.length));
+                    } catch (IOException | RuntimeException e) {
+                        if (reservation != null) {
+                            reservation.close();
+                        }
+                        inFlight.release();
+                        throw e;
+                    }
+                    MemoryBudget.Reservation held = reservation;
+                    pool.execute(() -> {
+                        try {
+                            convertOffline(valueSetId, new String(data, Charsets.UTF_8), run, converted, failed);
+                        } finally {
+                            held.close();
+                            inFlight.release();
+                        }
+                    });
+                });
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            output.printException(e);
+        } finally {
+            pool.shutdownNow();
+            closeRun(run);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        output.println("Converted " + converted.get() + " valuesets (" + failed.get() + " failed) in " + elapsed + " ms");
+        reportRun(run);
+    }
+
+    /**
+     * Entries of the archive convert would pick, an extra pass only made when they must all fit one output file
+     */
+    private int countArchiveEntries(File source, Set<String> filter, ConversionRun run) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        SvsArchiveReader.readArchive(source, (valueSetId, size, content) -> {
+            if ((filter.isEmpty() || filter.contains(valueSetId)) && run.isSelected(valueSetId)) {
+                count.incrementAndGet();
+            }
+        });
+        return count.get();
+    }
+
+    private void convertOffline(String valueSetId, String vs, ConversionRun run, AtomicInteger converted, AtomicInteger failed) {
+        long start = System.currentTimeMillis();
+        try {
+            output.vprintln("Converting value set " + valueSetId + " to " + run.getFormat());
+            run.write(vs, valueSetId);
+            converted.incrementAndGet();
+            run.recordSuccess(valueSetId, vs.length(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            log.error("Error converting valueset " + valueSetId, e);
+            run.recordFailure(valueSetId, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Keep the value sets this worker's shard owns, dropping any it already completed in an earlier run
+     */
+    private ArrayList<String> selectShard(ArrayList<String> valueSetIds, ConversionRun run) {
+        if (run.getShard() == null) {
+            return valueSetIds;
+        }
+        ArrayList<String> out = new ArrayList<>();
+        for (String valueSetId : valueSetIds) {
+            if (run.isSelected(valueSetId)) {
+                out.add(valueSetId);
+            }
+        }
+        output.println("Shard " + run.getShard() + " owns " + out.size() + " of " + valueSetIds.size() + " valuesets");
+        return out;
+    }
+
+    private File getHistoryDirectory() {
+        return new File(outputDirectory != null ? outputDirectory : ".", "history");
+    }
+
+    private void commandValidate(ArrayList<String> args, CommandLine cmd) throws IOException {
+        if (!cmd.hasOption("rd")) {
+            output.printException("Usage: validate -rd [release directory] [valuesetid|-fd source]");
+            return;
+        }
+        if (shard != null) {
+            //A shard journal would mark value sets as converted
+            output.printException("validate can not be sharded, use convert --shard with -rd");
+            return;
+        }
+        //Same fetch or offline read as convert, each value set stops after its codes are checked
+        convert(args, cmd, true);
+    }
+
+    private void commandPublish(ArrayList<String> args, CommandLine cmd) throws IOException {
+        if (!cmd.hasOption("target")) {
+            output.printException("Usage: publish --target [fhir base] [valuesetid|-fd source]");
+            return;
+        }
+        File source = cmd.hasOption("fd") ? new File(cmd.getOptionValue("fd")) : null;
+        if (source != null && !source.exists()) {
+            output.printException("Source " + source.getPath() + " does not exist");
+            return;
+        }
+        if (source == null && args.isEmpty()) {
+            return;
+        }
+        int bundleSize = FhirPublisher.DEFAULT_BUNDLE_SIZE;
+        if (cmd.hasOption("bundle-size")) {
+            try {
+                bundleSize = Integer.parseInt(cmd.getOptionValue("bundle-size"));
+            } catch (NumberFormatException e) {
+                output.printException("Invalid bundle size " + cmd.getOptionValue("bundle-size") + ", using " + bundleSize);
+            }
+        }
+        //Bundles in flight at once, the server rather than this machine is the limit
+        int parallelism = cmd.hasOption("t") ? getParallelism(cmd) : FhirPublisher.DEFAULT_PARALLELISM;
+        Set<String> filter = new HashSet<>(args);
+        PublishState state = PublishState.load(new File(".vsacPublish"));
+        FhirPublisher publisher = new FhirPublisher(cmd.getOptionValue("target"), bundleSize, parallelism,
+                cmd.hasOption("transaction"), cmd.hasOption("republish"), state, timeoutMillis);
+        output.println("Publishing to " + publisher.getTarget() + " in " + (cmd.hasOption("transaction") ? "transaction" : "batch")
+                + " bundles of " + Math.max(1, bundleSize) + ", " + parallelism + " at a time");
+        try {
+            if (source == null) {
+                VsacClient client = getClient();
+                client.loadToken();
+                for (String valueSetId : args) {
+                    output.vprintln("Fetching valueset " + valueSetId);
+                    publishValueSet(publisher, valueSetId, client.fetchRaw(valueSetId));
+                }
+            } else if (source.isDirectory()) {
+                for (File file : SvsArchiveReader.listSvsFiles(source)) {
+                    String valueSetId = SvsArchiveReader.getValueSetId(file.getName());
+                    if (filter.isEmpty() || filter.contains(valueSetId)) {
+                        publishValueSet(publisher, valueSetId, FileUtils.readFileToString(file, Charsets.UTF_8));
+                    }
+                }
+            } else {
+                SvsArchiveReader.readArchive(source, (valueSetId, size, content) -> {
+                    if (filter.isEmpty() || filter.contains(valueSetId)) {
+                        publishValueSet(publisher, valueSetId, new String(content.read(), Charsets.UTF_8));
+                    }
+                });
             }
+        } finally {
+            publisher.close();
+            state.save();
+        }
+        for (PublishResult result : publisher.getResults()) {
+            if (result.getStatus() != 0 || !"unchanged".equals(result.getOutcome())) {
+                output.vprintln(result.getValueSetId() + " " + result.getOutcome() + " " + result.getStatus()
+                        + (result.getMessage() == null || result.getMessage().isEmpty() ? "" : " " + result.getMessage()));
+            }
+        }
+        File report = cmd.hasOption("o") ? new File(cmd.getOptionValue("o")) : new File(outputDirectory != null ? outputDirectory : ".", "publish.csv");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(report))) {
+            publisher.writeReport(out, converter.getCsvDelimiter(), converter.isCsvBom());
+        }
+        output.println(publisher.getReport());
+        output.println("Wrote per valueset outcomes to " + report.getPath());
+    }
+
+    private void publishValueSet(FhirPublisher publisher, String valueSetId, String vs) throws IOException {
+        SvsValueSet svs;
+        try {
+            svs = parseValueSet(vs, valueSetId);
+        } catch (IOException e) {
+            output.printException(e.getMessage() + ", not published");
+            return;
+        }
+        publisher.publish(valueSetId, svs, converter.getCodeSystems());
+    }
+
+    private void commandAt(ArrayList<String> args, CommandLine cmd) throws IOException {
+        if (args.isEmpty()) {
+            output.printException("Usage: at [valuesetid] [date|version]");
+            return;
+        }
+        if (!getHistoryDirectory().isDirectory()) {
+            output.printException("No history in " + getHistoryDirectory().getPath() + ", run convert first");
+            return;
+        }
+        String valueSetId = args.get(0);
+        try (HistoryStore store = HistoryStore.open(getHistoryDirectory())) {
+            if (args.size() == 1) {
+                //List what is available
+                List<HistoryEntry> versions = store.getVersions(valueSetId);
+                for (HistoryEntry entry : versions) {
+                    output.println(String.format("%tF %<tT\t%s\t%d concepts\t%s", entry.getRecordedOn(), entry.getVersion(),
+                            entry.getConceptCount(), entry.isSnapshot() ? "snapshot" : "delta"));
+                }
+                long[] sizes = store.getSizes();
+                output.println(versions.size() + " versions of " + valueSetId + ", history holds " + store.getValueSetCount()
+                        + " valuesets in " + sizes[0] / 1024 + " KB (" + sizes[1] / 1024 + " KB as full copies)");
+                return;
+            }
+            HistoryEntry entry = store.find(valueSetId, args.get(1));
+            if (entry == null) {
+                output.printException("No version of " + valueSetId + " at " + args.get(1));
+                return;
+            }
+            String format = cmd.getOptionValue("f", "csv");
+            if (!CONVERT_FORMATS.contains(format) || ConversionRun.isSingleOutput(format)) {
+                output.printException("Invalid format type: " + format);
+                return;
+            }
+            SvsValueSet svs = store.load(entry);
+            output.vprintln("Version " + entry.getVersion() + " recorded " + entry.getRecordedOn());
             if (cmd.hasOption("o")) {
-                fileName = cmd.getOptionValue("o");
+                writeConverted(valueSetId, ConversionRun.getSuffix(format), cmd, out -> converter.write(svs, valueSetId, format, out));
             } else {
-                StringBuilder bld = new StringBuilder();
-                if (outputDirectory != null) {
-                    bld.append(outputDirectory);
-                    if (!outputDirectory.endsWith(File.separator)) {
-                        bld.append(File.separator);
+                converter.write(svs, valueSetId, format, System.out);
+                System.out.flush();
+            }
+        }
+    }
+
+    private void commandSearch(ArrayList<String> args, CommandLine cmd) throws IOException {
+        String query = String.join(" ", args);
+        if (SearchIndex.tokenize(query).isEmpty()) {
+            output.printException("Nothing to search for");
+            return;
+        }
+        int limit = 25;
+        if (cmd.hasOption("l")) {
+            try {
+                limit = Integer.parseInt(cmd.getOptionValue("l"));
+            } catch (NumberFormatException e) {
+                output.printException("Invalid limit " + cmd.getOptionValue("l"));
+                return;
+            }
+        }
+        File dir = new File(outputDirectory != null ? outputDirectory : ".");
+        File[] files = dir.listFiles((d, name) -> name.matches("search(-\\d+-of-\\d+)?\\.vsi"));
+        if (files == null || files.length == 0) {
+            output.printException("No search index in " + dir.getPath() + ", run convert first");
+            return;
+        }
+        Arrays.sort(files);
+
+        long start = System.nanoTime();
+        List<SearchHit> hits = new ArrayList<>();
+        int valueSets = 0;
+        int matches = 0;
+        for (File file : files) {
+            SearchIndex index = SearchIndex.open(file);
+            valueSets += index.getValueSetCount();
+            matches += index.search(query, limit, hits);
+        }
+        hits.sort(Comparator.comparing(SearchHit::getScore).reversed()
+                .thenComparingInt(h -> h.getDisplay().length())
+                .thenComparing(SearchHit::getOid)
+                .thenComparing(SearchHit::getCode));
+        long elapsed = (System.nanoTime() - start) / 1000;
+
+        int shown = Math.min(limit, hits.size());
+        for (SearchHit hit : hits.subList(0, shown)) {
+            output.println(hit.getOid() + "\t" + hit.getSystem() + "\t" + hit.getCode() + "\t" + hit.getDisplay());
+        }
+        output.println(String.format("%d matches across %d valuesets in %.1f ms%s", matches, valueSets, elapsed / 1000.0,
+                shown < matches ? ", showing " + shown : ""));
+    }
+
+    private void commandMerge(CommandLine cmd) throws IOException {
+        File dir = new File(outputDirectory != null ? outputDirectory : ".");
+        ShardManifest manifest;
+        try {
+            manifest = ShardJournal.merge(dir);
+        } catch (IOException e) {
+            output.printException(e.getMessage());
+            return;
+        }
+        if (manifest.getShardCount() == 0) {
+            output.printException("No shard journals found in " + dir.getPath());
+            return;
+        }
+        ShardJournal.writeManifest(dir, manifest);
+
+        int[] converted = new int[manifest.getShardCount() + 1];
+        int[] failedCount = new int[manifest.getShardCount() + 1];
+        long[] millis = new long[manifest.getShardCount() + 1];
+        for (ShardJournalEntry entry : manifest.getValueSets()) {
+            if (ShardJournal.STATUS_OK.equals(entry.getStatus())) {
+                converted[entry.getShard()]++;
+            } else {
+                failedCount[entry.getShard()]++;
+                output.println("Failed " + entry.getOid() + " (shard " + entry.getShard() + "): " + entry.getError());
+            }
+            millis[entry.getShard()] += entry.getMillis();
+        }
+        for (int i = 1; i <= manifest.getShardCount(); i++) {
+            output.println("Shard " + i + "/" + manifest.getShardCount() + ": " + converted[i] + " converted, "
+                    + failedCount[i] + " failed, " + millis[i] + " ms");
+        }
+        if (!manifest.getMissingShards().isEmpty()) {
+            output.printException("Missing journals for shards " + manifest.getMissingShards());
+        }
+        output.println("Merged " + manifest.getValueSets().size() + " valuesets (" + manifest.getFailed() + " failed) into "
+                + new File(dir, ShardJournal.MANIFEST).getPath());
+        File report = ShardJournal.mergeValidationReports(dir, manifest.getShardCount());
+        if (report != null) {
+            output.println("Merged shard validation reports into " + report.getPath());
+        }
+    }
+
+    private String getOutputFileName(CommandLine cmd, String valueSetId, String suffix) {
+        if (cmd.hasOption("o")) {
+            return cmd.getOptionValue("o");
+        }
+        StringBuilder bld = new StringBuilder();
+        if (outputDirectory != null) {
+            bld.append(outputDirectory);
+            if (!outputDirectory.endsWith(File.separator)) {
+                bld.append(File.separator);
+            }
+        }
+        bld.append(valueSetId);
+        bld.append(".");
+        bld.append(suffix);
+        return bld.toString();
+    }
+
+    private int getParallelism(CommandLine cmd) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmd.hasOption("t")) {
+            try {
+                threads = Integer.parseInt(cmd.getOptionValue("t"));
+            } catch (NumberFormatException e) {
+                output.printException("Invalid thread count " + cmd.getOptionValue("t") + ", using " + threads);
+            }
+        }
+        return Math.max(1, threads);
+    }
+
+    private void commandCompose(ArrayList<String> args, CommandLine cmd) throws IOException {
+        if (args.size() == 0) {
+            return;
+        }
+        ValueSetExpression expression;
+        try {
+            expression = ValueSetExpression.parse(String.join(" ", args));
+        } catch (IllegalArgumentException e) {
+            output.printException(e.getMessage());
+            return;
+        }
+        String format = cmd.getOptionValue("f", "csv");
+        if (!CONVERT_FORMATS.contains(format)) {
+            output.printException("Invalid format type: " + format);
+            return;
+        }
+        String composeId = cmd.getOptionValue("cid", "composed");
+        Set<String> operands = expression.getOperands();
+        ValueSetAlgebra algebra = new ValueSetAlgebra(converter.getCodeSystems());
+        long start = System.currentTimeMillis();
+
+        if (cmd.hasOption("fd")) {
+            File source = new File(cmd.getOptionValue("fd"));
+            if (source.isDirectory()) {
+                for (File file : SvsArchiveReader.listSvsFiles(source)) {
+                    String valueSetId = SvsArchiveReader.getValueSetId(file.getName());
+                    if (operands.contains(valueSetId)) {
+                        algebra.add(valueSetId, parseValueSet(FileUtils.readFileToString(file, Charsets.UTF_8), valueSetId));
                     }
                 }
-                bld.append(valueSetId);
-                bld.append(".");
-                bld.append(suffix);
-                fileName = bld.toString();
+            } else {
+                SvsArchiveReader.readArchive(source, (valueSetId, size, content) -> {
+                    if (operands.contains(valueSetId)) {
+                        algebra.add(valueSetId, parseValueSet(new String(content.read(), Charsets.UTF_8), valueSetId));
+                    }
+                });
+            }
+        } else {
+            VsacClient client = getClient();
+            client.loadToken();
+            for (String valueSetId : operands) {
+                output.vprintln("Fetching valueset " + valueSetId);
+                algebra.add(valueSetId, parseValueSet(client.fetchRaw(valueSetId), valueSetId));
+            }
+        }
+        for (String valueSetId : operands) {
+            if (!algebra.hasValueSet(valueSetId)) {
+                output.printException("Valueset " + valueSetId + " could not be loaded");
+                return;
+            }
+        }
+
+        long evalStart = System.nanoTime();
+        BitSet result = algebra.evaluate(expression);
+        long evalNanos = System.nanoTime() - evalStart;
+        output.println("Composed " + result.cardinality() + " codes from " + operands.size() + " valuesets ("
+                + algebra.getCodeCount() + " distinct codes) in " + (System.currentTimeMillis() - start) + " ms, evaluation "
+                + String.format("%.3f", evalNanos / 1e6) + " ms");
+
+        SvsValueSet svs = algebra.toValueSet(result, composeId, expression.getText());
+        svs.getConcepts().sort(ValueSetConverter.CONCEPT_ORDER);
+        ConversionRun run = runBuilder(format, cmd).searchIndex(false).history(false).build();
+        try {
+            if (format.startsWith("fhir+") || "package".equals(format)) {
+                run.write(buildComposedValueSet(svs, expression));
+            } else {
+                run.write(composeId, svs);
+            }
+        } finally {
+            closeRun(run);
+        }
+    }
+
+    private ValueSet buildComposedValueSet(SvsValueSet svs, ValueSetExpression expression) {
+        ValueSet hvs = ValueSetConverter.toFhir(svs, svs.getId(), converter.getCodeSystems());
+        hvs.setDescription("Composed from " + expression.getText());
+        ValueSetExpression.Normalized normalized = expression.normalize();
+        if (normalized == null) {
+            //No include/exclude form, keep the evaluated codes as the compose
+            return hvs;
+        }
+        //Record the source value sets as the compose and carry the evaluated codes as the expansion
+        hvs.setCompose(new ValueSet.ValueSetComposeComponent());
+        for (List<String> term : normalized.includes) {
+            ValueSet.ConceptSetComponent include = hvs.getCompose().addInclude();
+            for (String valueSetId : term) {
+                include.addValueSet(ValueSetConverter.VALUESET_BASE + valueSetId);
             }
-            File file = new File(fileName);
-            FileUtils.writeStringToFile(file, out, Charsets.UTF_8);
         }
+        for (List<String> term : normalized.excludes) {
+            ValueSet.ConceptSetComponent exclude = hvs.getCompose().addExclude();
+            for (String valueSetId : term) {
+                exclude.addValueSet(ValueSetConverter.VALUESET_BASE + valueSetId);
+            }
+        }
+        ValueSet.ValueSetExpansionComponent expansion = hvs.getExpansion();
+        expansion.setTimestamp(new Date());
+        expansion.setTotal(svs.getConcepts().size());
+        for (SvsConcept concept : svs.getConcepts()) {
+            expansion.addContains()
+                    .setSystem(converter.getCodeSystems().getFHIRCodeSystem(concept.getCodeSystem()))
+                    .setVersion(concept.getCodeSystemVersion())
+                    .setCode(concept.getCode())
+                    .setDisplay(concept.getDisplayName());
+        }
+        return hvs;
     }
 
     private void commandInit(ArrayList<String> args, CommandLine cmd) {
@@ -232,7 +920,7 @@ public class VascCommandLineRunner implements CommandLineRunner {
             switch (what) {
                 case "loadtoken": {
                     try {
-                        TokenInfo tok = this.getTokenInfo();
+                        TokenInfo tok = tokenStore.load();
                         System.out.println(tok.toString());
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -241,8 +929,7 @@ public class VascCommandLineRunner implements CommandLineRunner {
                 }
                 case "servicetoken": {
                     try {
-                        TokenInfo tok = this.getTokenInfo();
-                        String st = this.getServiceTicket(tok);
+                        String st = getClient().getServiceTicket();
                         System.out.println(st);
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -251,9 +938,7 @@ public class VascCommandLineRunner implements CommandLineRunner {
                 }
                 case "tgt": {
                     try {
-                        TokenInfo tok = this.getTokenInfo();
-                        this.getTGT(tok);
-                        System.out.println(tok.getTokenGrantingTicket());
+                        System.out.println(getClient().getTicketGrantingTicket(null));
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -261,10 +946,10 @@ public class VascCommandLineRunner implements CommandLineRunner {
                 }
                 case "savetoken": {
                     try {
-                        TokenInfo tok = this.getTokenInfo();
+                        TokenInfo tok = tokenStore.load();
                         tok.setTokenGrantedOn(null);
                         tok.setTokenGrantingTicket(null);
-                        this.saveTokenInfo(tok);
+                        tokenStore.save(tok);
                         System.out.println("Token updated");
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -275,7 +960,6 @@ public class VascCommandLineRunner implements CommandLineRunner {
                     this.runXMLTest();
                     break;
                 }
-
                 case "?":
                 case "help": {
                     System.out.println("Valid tests are: ");
@@ -296,157 +980,41 @@ public class VascCommandLineRunner implements CommandLineRunner {
 
     }
 
-    private StringBuilder convertVASCValueSetToCSVValueSet(String vsXML, String valueSetId) {
-        //System, Version, Code, Display
-        StringBuilder strBld = new StringBuilder();
-        strBld.append("System,Version,Code,Display");
-
-        try {
-
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(IOUtils.toInputStream(vsXML, Charsets.UTF_8));
-
-            doc.getDocumentElement().normalize();
-
-            NodeList valueSets = doc.getElementsByTagName("ns0:ValueSet");
-
-            NodeList codeList = doc.getElementsByTagName("ns0:Concept");
-
-            HashMap<String, VSACSystem> codeBySystem = new HashMap<>();
-
-            for (int temp = 0; temp < codeList.getLength(); temp++) {
-
-                Node nNode = codeList.item(temp);
-
-
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-
-                    Element eElement = (Element) nNode;
-                    strBld.append("\n");
-                    strBld.append(FHIRCodeSystemMapper.getFHIRCodeSystem(eElement.getAttribute("codeSystem")));
-                    strBld.append(",");
-                    strBld.append(eElement.getAttribute("codeSystemVersion"));
-                    strBld.append(",");
-                    strBld.append(eElement.getAttribute("code"));
-                    strBld.append(",");
-                    strBld.append(eElement.getAttribute("displayName"));
-                }
-            }
+    private SvsValueSet parseValueSet(String vsXML, String valueSetId) throws IOException {
+        return ValueSetConverter.parse(vsXML, valueSetId);
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private synchronized VsacClient getClient() {
+        //Built on first use so offline commands never touch the token store, then shared by all fetching threads
+        if (client == null) {
+            client = VsacClient.builder()
+                    .tokenStore(tokenStore)
+                    .converter(converter)
+                    .timeoutMillis(timeoutMillis)
+                    .hedgeFraction(hedgeFraction)
+                    .build();
         }
-
-        return strBld;
+        return client;
     }
 
-    private ValueSet convertVASCValueSetToFHIRValueSet(String vsXML, String valueSetId) {
-        ValueSet vs = new ValueSet();
-        vs.setStatus(Enumerations.PublicationStatus.ACTIVE);
-        vs.setId(valueSetId);
-        vs.setUrl("http://cts.nlm.nih.gov/fhir/ValueSet/" + valueSetId);
-        Identifier id = new Identifier();
-        id.setSystem("urn:ietf:rfc:3986");
-        id.setValue(valueSetId);
-        try {
-
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(IOUtils.toInputStream(vsXML, Charsets.UTF_8));
-
-            doc.getDocumentElement().normalize();
-
-            NodeList valueSets = doc.getElementsByTagName("ns0:ValueSet");
-            if (valueSets.getLength() == 1) {
-                Node vsn = valueSets.item(0);
-                Element eElement = (Element) vsn;
-                vs.setTitle(eElement.getAttribute("displayName"));
-            }
-
-            NodeList codeList = doc.getElementsByTagName("ns0:Concept");
-
-            HashMap<String, VSACSystem> codeBySystem = new HashMap<>();
-
-            for (int temp = 0; temp < codeList.getLength(); temp++) {
-
-                Node nNode = codeList.item(temp);
-
-
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-
-                    Element eElement = (Element) nNode;
-                    String key = eElement.getAttribute("codeSystem") + "|" + eElement.getAttribute("codeSystemVersion");
-                    VSACSystem sysEnt;
-                    if (!codeBySystem.containsKey(key)) {
-                        sysEnt = new VSACSystem();
-                        sysEnt.system = eElement.getAttribute("codeSystem");
-                        sysEnt.version = eElement.getAttribute("codeSystemVersion");
-                        codeBySystem.put(key, sysEnt);
-                    } else {
-                        sysEnt = codeBySystem.get(key);
-                    }
-                    VSACCode cd = new VSACCode();
-                    cd.code = eElement.getAttribute("code");
-                    cd.display = eElement.getAttribute("displayName");
-                    sysEnt.code.add(cd);
-                }
-            }
-            // Ok Now process the array
-            Set<String> keys = codeBySystem.keySet();
-            for (String key : keys) {
-                VSACSystem sysEnt = codeBySystem.get(key);
-                ValueSet.ConceptSetComponent set = new ValueSet.ConceptSetComponent();
-                String system = FHIRCodeSystemMapper.getFHIRCodeSystem(sysEnt.system);
-                set.setSystem(system);
-                set.setVersion(sysEnt.version);
-                for (VSACCode cd : sysEnt.code) {
-                    set.addConcept().setDisplay(cd.display).setCode(cd.code);
-                }
-                vs.getCompose().addInclude(set);
+    private void closeClient() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Error closing VSAC client", e);
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            client = null;
         }
-
-        return vs;
     }
 
-    private String fetchValueSet(TokenInfo tok, String valueSetId) throws IOException {
-        String out = null;
-
-        String serviceTicket = getServiceTicket(tok);
-        try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-
-            List<NameValuePair> form = new ArrayList<>();
-            form.add(new BasicNameValuePair("service", NLMService));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(form, Consts.UTF_8);
-            StringBuilder call = new StringBuilder();
-            call.append(VSACEndpoint);
-            call.append("?ticket=");
-            call.append(serviceTicket);
-            call.append("&id=");
-            call.append(valueSetId);
-            HttpGet httpget = new HttpGet(call.toString());
-
-
-            // Create a custom response handler
-            ResponseHandler<String> responseHandler = response -> {
-                int status = response.getStatusLine().getStatusCode();
-                if (status >= 200 && status < 300) {
-                    HttpEntity responseEntity = response.getEntity();
-                    return responseEntity != null ? EntityUtils.toString(responseEntity) : null;
-                } else {
-                    throw new ClientProtocolException("Unexpected response status: " + status);
-                }
-            };
-            out = httpclient.execute(httpget, responseHandler);
-        } catch (IOException e) {
-            log.error("Error fetching valueset", e);
-            throw e;
+    private void reportFetchLatency() {
+        if (client != null && client.getRequests() > 0) {
+            output.println(client.getLatencyReport());
+            if (client.getCredentialStats().size() > 1) {
+                output.println(client.getCredentialReport());
+            }
         }
-        return out;
     }
 
     private Options getOptions() {
@@ -461,9 +1029,35 @@ public class VascCommandLineRunner implements CommandLineRunner {
         //Option for Type (-t or -type name)
         //Options for Id (-i or -id name)
         Option outputDir = Option.builder("od").argName("directory").longOpt("outputDirectory").hasArg().desc("output directory").build();
-        Option format = Option.builder("f").argName("format").longOpt("format").hasArg().desc("format to output [xml,cvs,fhir+json,fhir+xml]").build();
+        Option format = Option.builder("f").argName("format").longOpt("format").hasArg().desc("format to output [xml,cvs,fhir+json,fhir+xml,package,bin,db]").build();
         Option file = Option.builder("o").argName("outputfile").longOpt("outputfile").hasArg().desc("file to create").build();
         Option input = Option.builder("i").argName("inputfile").longOpt("inputfile").hasArg().desc("input file to use (csv)").build();
+        Option fromDir = Option.builder("fd").argName("source").longOpt("from-dir").hasArg().desc("directory, zip or tar of raw SVS xml to convert offline").build();
+        Option packageName = Option.builder("pn").argName("name#version").longOpt("package-name").hasArg().desc("FHIR package id used with -f package").build();
+        Option composeId = Option.builder("cid").argName("id").longOpt("compose-id").hasArg().desc("id of the valueset created by compose").build();
+        Option delimiter = Option.builder("d").argName("char").longOpt("delimiter").hasArg().desc("csv delimiter (default ',', 'tab' for tab)").build();
+        Option noHeader = new Option(null, "no-header", false, "omit the csv header row");
+        Option bom = new Option(null, "bom", false, "start csv output with a UTF-8 byte order mark");
+        Option memoryBudget = Option.builder("mb").argName("size").longOpt("memory-budget").hasArg().desc("heap budget for valuesets in flight, e.g. 512m").build();
+        Option force = new Option(null, "force", false, "rewrite output files even when unchanged");
+        Option republish = new Option(null, "republish", false, "publish every valueset, also those unchanged since the last publish");
+        Option shard = Option.builder("sh").argName("i/n").longOpt("shard").hasArg().desc("only process the i-th of n slices of the valuesets").build();
+        Option redo = new Option(null, "redo", false, "with --shard, convert valuesets again that the shard journal records as completed");
+        Option shardKey = Option.builder().argName("column").longOpt("shard-key").hasArg().desc("input file column hashed to pick the shard (default Oid)").build();
+        Option dbUrl = Option.builder().argName("url").longOpt("db-url").hasArg().desc("JDBC url used with -f db (default an H2 file vsac.mv.db in the output directory)").build();
+        Option batchSize = Option.builder().argName("rows").longOpt("batch-size").hasArg().desc("rows per JDBC batch with -f db (default " + DatabaseWriter.DEFAULT_BATCH_SIZE + ")").build();
+        Option releaseDir = Option.builder("rd").argName("directory").longOpt("release-dir").hasArg().desc("SNOMED CT RF2, LOINC and RxNorm release files to validate codes against").build();
+        Option fastFhir = new Option(null, "fast-fhir", false, "write fhir+json, fhir+xml and package output with the streaming writer");
+        Option codeSystems = Option.builder().argName("file").longOpt("code-systems").hasArg().desc("csv of uri,oids,names adding to or remapping the bundled code system registry").build();
+        Option target = Option.builder().argName("url").longOpt("target").hasArg().desc("FHIR server base URL publish sends bundles to").build();
+        Option bundleSize = Option.builder().argName("entries").longOpt("bundle-size").hasArg().desc("valuesets per bundle with publish (default " + FhirPublisher.DEFAULT_BUNDLE_SIZE + ")").build();
+        Option transaction = new Option(null, "transaction", false, "publish as all-or-nothing transaction bundles instead of batches");
+        Option noIndex = new Option(null, "no-index", false, "do not update the search index during convert");
+        Option limit = Option.builder("l").argName("count").longOpt("limit").hasArg().desc("maximum number of search results (default 25)").build();
+        Option noHistory = new Option(null, "no-history", false, "do not record new valueset versions in the history store");
+        Option timeout = Option.builder().argName("seconds").longOpt("timeout").hasArg().desc("deadline for each VSAC request (default " + DEFAULT_TIMEOUT_SECONDS + ")").build();
+        Option hedge = Option.builder().argName("fraction").longOpt("hedge").hasArg().desc("max share of extra requests used to hedge slow fetches, 0 disables (default " + VsacClient.DEFAULT_HEDGE_FRACTION + ")").build();
+        Option threads = Option.builder("t").argName("count").longOpt("threads").hasArg().desc("worker threads (defaults to available processors)").build();
         //Option valueset = Option.builder("v").argName("ValueSet").longOpt("valueset").hasArg().desc("ValueSet to use").build();
         options.addOption(help);
         options.addOption(silent);
@@ -473,159 +1067,41 @@ public class VascCommandLineRunner implements CommandLineRunner {
         options.addOption(file);
         options.addOption(input);
         options.addOption(outputDir);
+        options.addOption(fromDir);
+        options.addOption(threads);
+        options.addOption(packageName);
+        options.addOption(composeId);
+        options.addOption(delimiter);
+        options.addOption(noHeader);
+        options.addOption(bom);
+        options.addOption(memoryBudget);
+        options.addOption(force);
+        options.addOption(republish);
+        options.addOption(shard);
+        options.addOption(shardKey);
+        options.addOption(redo);
+        options.addOption(dbUrl);
+        options.addOption(batchSize);
+        options.addOption(releaseDir);
+        options.addOption(fastFhir);
+        options.addOption(codeSystems);
+        options.addOption(target);
+        options.addOption(bundleSize);
+        options.addOption(transaction);
+        options.addOption(noIndex);
+        options.addOption(limit);
+        options.addOption(noHistory);
+        options.addOption(timeout);
+        options.addOption(hedge);
         return options;
     }
 
-    private String getPrimativeServiceTicket(TokenInfo tok) throws IOException {
-        String serviceTicket = null;
-        try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-
-            List<NameValuePair> form = new ArrayList<>();
-            form.add(new BasicNameValuePair("service", NLMService));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(form, Consts.UTF_8);
-
-            HttpPost httpPost = new HttpPost(NMMServerTicketEndpoint + tok.getTokenGrantingTicket());
-            httpPost.setEntity(entity);
-            log.info("Executing service grant request " + httpPost.getRequestLine());
-
-            // Create a custom response handler
-            ResponseHandler<String> responseHandler = response -> {
-                int status = response.getStatusLine().getStatusCode();
-                if (status >= 200 && status < 300) {
-                    HttpEntity responseEntity = response.getEntity();
-                    return responseEntity != null ? EntityUtils.toString(responseEntity) : null;
-                } else {
-                    throw new ClientProtocolException("Unexpected response status: " + status);
-                }
-            };
-            serviceTicket = httpclient.execute(httpPost, responseHandler);
-        } catch (IOException e) {
-            throw e;
-        }
-        return serviceTicket;
-    }
-
-    private String getServiceTicket(TokenInfo tok) throws IOException {
-        String out = null;
-        if (!isTGTValid(tok)) {
-            invalidateToken(tok);
-            //Grab a new TGT
-            getTGT(tok);
-            try {
-                saveTokenInfo(tok);
-            } catch (IOException e) {
-                log.error("Error Saving ticket", e);
-                throw e;
-            }
-        }
-
-        try {
-            out = getPrimativeServiceTicket(tok);
-        } catch (IOException exp) {
-            invalidateToken(tok);
-            getTGT(tok);
-            //Second try after invalid token
-            try {
-                out = getPrimativeServiceTicket(tok);
-            } catch (IOException e) {
-                log.error("Error on secondary service ticket attempt", e);
-                throw e;
-            }
-        }
-        //Ok we have a valid TGT now get the Service Ticket
-        return out;
-    }
-
-    private boolean getTGT(TokenInfo tok) {
-        boolean out = false;
-        try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-
-            List<NameValuePair> form = new ArrayList<>();
-            form.add(new BasicNameValuePair("apikey", tok.getApikey()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(form, Consts.UTF_8);
-
-            HttpPost httpPost = new HttpPost(NLMTGTEndpoint);
-            httpPost.setEntity(entity);
-
-
-            // Create a custom response handler
-            ResponseHandler<String> responseHandler = response -> {
-                int status = response.getStatusLine().getStatusCode();
-                if (status >= 200 && status < 300) {
-                    HttpEntity responseEntity = response.getEntity();
-                    return responseEntity != null ? EntityUtils.toString(responseEntity) : null;
-                } else {
-                    throw new ClientProtocolException("Unexpected response status: " + status);
-                }
-            };
-            String responseBody = httpclient.execute(httpPost, responseHandler);
-            String TGT = getTGTFromResp(responseBody);
-            if (TGT != null) {
-                out = true;
-                tok.setTokenGrantingTicket(TGT);
-                tok.setTokenGrantedOn(new Date());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return out;
-    }
-
-    private String getTGTFromResp(String responseBody) {
-        String action = null;
-
-        int indx = responseBody.indexOf("action=");
-        if (indx != -1) {
-            responseBody = responseBody.substring(indx + 8);
-            indx = responseBody.indexOf("\"");
-            action = responseBody.substring(0, indx);
-            int l = action.lastIndexOf("/");
-            action = action.substring(l + 1);
-        }
-
-        /*
-        responseBody = responseBody.substring(52);  //Remove the weird header {fragile}
-        System.out.println(responseBody);
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        Document doc = dBuilder.parse(IOUtils.toInputStream(responseBody, Charsets.UTF_8));
-        doc.getDocumentElement().normalize();
-        NodeList form = doc.getElementsByTagName("form");
-        if (form.getLength()>0)
-        {
-            Node x = form.item(0);
-            action = x.getAttributes().getNamedItem("action").getNodeValue();
-            System.out.println("Action = "+action);
-        }
-        */
-
-        return action;
-    }
-
-    private TokenInfo getTokenInfo() throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return (TokenInfo) objectMapper.readValue(new File(".vsacTokens"), TokenInfo.class);
-    }
-
     private void initTokenFile() throws IOException {
         TokenInfo tok = new TokenInfo();
         tok.setApikey("");
         tok.setTokenGrantedOn(null);
         tok.setTokenGrantingTicket("");
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.writeValue(new File(".vsacTokens"), tok);
-    }
-
-    private void invalidateToken(TokenInfo tok) {
-        tok.setTokenGrantingTicket(null);
-        tok.setTokenGrantedOn(null);
-        try {
-            saveTokenInfo(tok);
-        } catch (IOException exp) {
-            log.error("Error saving token file", exp);
-        }
-
+        tokenStore.save(tok);
     }
 
     private boolean isDirectoryValid(String dir) {
@@ -634,16 +1110,6 @@ public class VascCommandLineRunner implements CommandLineRunner {
 
     }
 
-    private boolean isTGTValid(TokenInfo tok) {
-        if (tok.getTokenGrantingTicket() != null) {
-            Date now = new Date();
-            if (now.getTime() - tok.getTokenGrantedOn().getTime() > TICKET_LIFE_WINDOW) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private void loadInputFile(ArrayList<String> args, CommandLine cmd) {
 
         String loadFile = cmd.getOptionValue("i", "valueset_loadlist.csv");
@@ -657,9 +1123,13 @@ public class VascCommandLineRunner implements CommandLineRunner {
 
                 Iterable<CSVRecord> records = null;
                 records = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in);
+                String shardKey = cmd.getOptionValue("shard-key");
                 for (CSVRecord record : records) {
                     String oid = record.get("Oid");
                     args.add(oid);
+                    if (shardKey != null) {
+                        shardKeys.put(oid, record.get(shardKey));
+                    }
                 }
             }
             else {
@@ -672,6 +1142,10 @@ public class VascCommandLineRunner implements CommandLineRunner {
         catch (IOException ioException) {
             ioException.printStackTrace();
         }
+        catch (IllegalArgumentException e) {
+            //Missing Oid or shard key column
+            output.printException(e.getMessage());
+        }
 
     }
 
@@ -719,6 +1193,36 @@ public class VascCommandLineRunner implements CommandLineRunner {
                     commandConvert(cmdArgs,cmd);
                     break;
                 }
+                case "compose":
+                {
+                    commandCompose(cmdArgs,cmd);
+                    break;
+                }
+                case "at":
+                {
+                    commandAt(cmdArgs,cmd);
+                    break;
+                }
+                case "search":
+                {
+                    commandSearch(cmdArgs,cmd);
+                    break;
+                }
+                case "merge":
+                {
+                    commandMerge(cmd);
+                    break;
+                }
+                case "validate":
+                {
+                    commandValidate(cmdArgs,cmd);
+                    break;
+                }
+                case "publish":
+                {
+                    commandPublish(cmdArgs,cmd);
+                    break;
+                }
                 case "reset":
                 {
                     commandReset(cmd);
@@ -740,8 +1244,43 @@ public class VascCommandLineRunner implements CommandLineRunner {
 
     private void processOptions(CommandLine cmd)
     {
-        if (cmd.hasOption("q")) output.setUnmuted(false);
-        if (cmd.hasOption("v")) output.setVerbose(true);
+        //Every run starts from the defaults, nothing carries over from an earlier run of this component
+        output.setUnmuted(!cmd.hasOption("q"));
+        output.setVerbose(cmd.hasOption("v"));
+        outputDirectory = null;
+        shard = null;
+        shardKeys.clear();
+        timeoutMillis = VsacClient.DEFAULT_TIMEOUT_MILLIS;
+        hedgeFraction = VsacClient.DEFAULT_HEDGE_FRACTION;
+        if (cmd.hasOption("timeout") || cmd.hasOption("hedge")) {
+            try {
+                double seconds = Double.parseDouble(cmd.getOptionValue("timeout", Integer.toString(DEFAULT_TIMEOUT_SECONDS)));
+                double fraction = Double.parseDouble(cmd.getOptionValue("hedge", Double.toString(VsacClient.DEFAULT_HEDGE_FRACTION)));
+                timeoutMillis = Math.max(1, Math.round(seconds * 1000));
+                hedgeFraction = fraction;
+            } catch (NumberFormatException e) {
+                output.printException("Invalid timeout or hedge fraction, using defaults");
+            }
+        }
+        if (cmd.hasOption("sh")) {
+            try {
+                shard = Shard.parse(cmd.getOptionValue("sh"));
+            } catch (IllegalArgumentException e) {
+                output.printException(e.getMessage());
+            }
+        }
+        char csvDelimiter = new ValueSetConverter().getCsvDelimiter();
+        if (cmd.hasOption("d")) {
+            String delimiter = cmd.getOptionValue("d");
+            if ("tab".equalsIgnoreCase(delimiter) || "\\t".equals(delimiter)) {
+                csvDelimiter = '\t';
+            } else if (delimiter.length() == 1 && delimiter.charAt(0) < 0x80 && "\"\r\n".indexOf(delimiter.charAt(0)) == -1) {
+                csvDelimiter = delimiter.charAt(0);
+            } else {
+                output.printException("Invalid csv delimiter " + delimiter);
+            }
+        }
+        converter = new ValueSetConverter(csvDelimiter, !cmd.hasOption("no-header"), cmd.hasOption("bom"), cmd.hasOption("fast-fhir"));
         //if (cmd.hasOption("p")) prefix = cmd.getOptionValue("p");
         //if (cmd.hasOption("s")) suffix = cmd.getOptionValue("s");
         //if (cmd.hasOption("td")) {
@@ -756,6 +1295,13 @@ public class VascCommandLineRunner implements CommandLineRunner {
         //        return;
         //    }
         //}
+        if (cmd.hasOption("code-systems")) {
+            try {
+                converter = converter.withCodeSystems(CodeSystemRegistry.load(new File(cmd.getOptionValue("code-systems"))));
+            } catch (IOException e) {
+                output.printException("Unable to load code systems: " + e.getMessage());
+            }
+        }
         if (cmd.hasOption("od")) {
             String dir = cmd.getOptionValue("od");
             if (isDirectoryValid(dir))
@@ -786,7 +1332,11 @@ public class VascCommandLineRunner implements CommandLineRunner {
                 return;
             }
             // Ok we now had the command line
-            process(cmd,options);
+            try {
+                process(cmd, options);
+            } finally {
+                closeClient();
+            }
 
 
         } catch (ParseException e) {
@@ -858,21 +1408,54 @@ public class VascCommandLineRunner implements CommandLineRunner {
         }
     }
 
-    private void saveTokenInfo(TokenInfo tok) throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.writeValue(new File(".vsacTokens"),tok);
-    }
+    class OfflineConvertAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final int from;
+        private final int to;
+        private final ConversionRun run;
+        private final AtomicInteger converted;
+        private final AtomicInteger failed;
+
+        OfflineConvertAction(List<File> files, int from, int to, ConversionRun run, AtomicInteger converted, AtomicInteger failed) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.run = run;
+            this.converted = converted;
+            this.failed = failed;
+        }
 
-    class VSACSystem
-    {
-        public String system;
-        public String version;
-        public ArrayList<VSACCode> code = new ArrayList<>();
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                //Leaf - a single value set, idle workers steal the other halves
+                if (to > from) {
+                    File file = files.get(from);
+                    String valueSetId = SvsArchiveReader.getValueSetId(file.getName());
+                    long reserved = 0;
+                    try {
+                        reserved = run.getMemoryBudget().acquire(MemoryBudget.estimate(file.length()));
+                        convertOffline(valueSetId, FileUtils.readFileToString(file, Charsets.UTF_8), run, converted, failed);
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        log.error("Error reading " + file.getPath(), e);
+                    } finally {
+                        run.getMemoryBudget().release(reserved);
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new OfflineConvertAction(files, from, mid, run, converted, failed),
+                    new OfflineConvertAction(files, mid, to, run, converted, failed));
+        }
     }
 
-    class VSACCode
+    interface OutputEncoder
     {
-        public String code;
-        public String display;
+        void encode(OutputStream out) throws IOException;
     }
+
 }
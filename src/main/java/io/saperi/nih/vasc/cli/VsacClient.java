@@ -0,0 +1,753 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.ApiCredential;
+import io.saperi.nih.vasc.cli.data.CredentialStats;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import io.saperi.nih.vasc.cli.data.TokenInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Fetches value sets from the VSAC SVS service and converts them. One client is meant to be shared: it is thread
+ * safe, keeps a pool of connections, refreshes the ticket granting ticket once for all threads and hedges slow
+ * requests. Every fetch uses its own single use service ticket.
+ *
+ * The token store may hold several API keys. Each key keeps its own TGT, fetches go to the key with the fewest
+ * in flight and a key the server throttles is rested for a while, so throughput grows with the number of keys.
+ *
+ * <pre>
+ * try (VsacClient client = VsacClient.builder().tokenStore(new MemoryTokenStore(apikey)).build()) {
+ *     ValueSet vs = client.fetchFhir("2.16.840.1.113762.1.4.1");
+ * }
+ * </pre>
+ */
+@Slf4j
+public class VsacClient implements Closeable {
+
+    public static final String TGT_ENDPOINT = "https://utslogin.nlm.nih.gov/cas/v1/api-key";
+    public static final String TICKET_ENDPOINT = "https://utslogin.nlm.nih.gov/cas/v1/tickets/";
+    public static final String SERVICE = "http://umlsks.nlm.nih.gov";
+    public static final String SVS_ENDPOINT = "https://vsac.nlm.nih.gov/vsac/svs/RetrieveValueSet";
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 120 * 1000L;
+    public static final double DEFAULT_HEDGE_FRACTION = 0.05;
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+    // UTS grants a TGT for 8 hours, replace it a little before that
+    static final long TGT_LIFETIME = 1000L * 60 * 60 * 8;
+    static final long TGT_LIFE_WINDOW = 1000L * 60 * 5;
+
+    // A throttled key rests this long, doubling while it stays throttled, unless the server says how long
+    public static final long DEFAULT_THROTTLE_BACKOFF_MILLIS = 1000;
+    static final long MAX_THROTTLE_BACKOFF_MILLIS = 1000L * 60;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final ResponseHandler<String> BODY = response -> {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+            HttpEntity responseEntity = response.getEntity();
+            return responseEntity != null ? EntityUtils.toString(responseEntity) : null;
+        } else {
+            throw unexpectedStatus(response);
+        }
+    };
+
+    /**
+     * Admission of a response before its body is read, so a caller holding memory for each value set can wait
+     * for room while the body is still on the wire
+     */
+    public interface ResponseAdmission {
+        /**
+         * Called with the Content-Length of a successful response, -1 when the server does not send one. Time
+         * spent here is not counted in the fetch latency and does not start a hedged request.
+         */
+        void admit(long contentLength) throws IOException;
+    }
+
+    /**
+     * The server refused a request for the rate of the key, not for the request itself
+     */
+    static class ThrottledException extends ClientProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        ThrottledException(long retryAfterMillis) {
+            super("Unexpected response status: " + TOO_MANY_REQUESTS);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * One API key of the pool with its TGT and counters
+     */
+    private static class Credential {
+        final String label;
+        final String apikey;
+        // The TGT fields are guarded by the client's tokenLock, they are saved with the rest of the tokens
+        final ApiCredential tokens;
+        // Held while requesting a TGT so the other keys carry on meanwhile
+        final Object tgtLock = new Object();
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long backoffUntil;
+        // Guarded by this
+        private int fetches;
+        private int throttled;
+        private int failed;
+        private int consecutiveThrottles;
+        private long totalMillis;
+
+        Credential(ApiCredential tokens) {
+            this.tokens = tokens;
+            apikey = tokens.getApikey();
+            String name = tokens.getName();
+            label = name != null && !name.isEmpty() ? name : "key ..." + apikey.substring(Math.max(0, apikey.length() - 4));
+        }
+
+        synchronized void recordFetch(long millis) {
+            fetches++;
+            totalMillis += millis;
+            consecutiveThrottles = 0;
+        }
+
+        synchronized void recordFailure() {
+            failed++;
+        }
+
+        synchronized long recordThrottle(long retryAfterMillis, long backoffMillis) {
+            throttled++;
+            consecutiveThrottles++;
+            long rest = retryAfterMillis > 0 ? retryAfterMillis
+                    : Math.min(MAX_THROTTLE_BACKOFF_MILLIS, backoffMillis << Math.min(consecutiveThrottles - 1, 16));
+            backoffUntil = Math.max(backoffUntil, System.currentTimeMillis() + rest);
+            return rest;
+        }
+
+        synchronized CredentialStats getStats() {
+            return new CredentialStats(label, fetches, throttled, failed, fetches == 0 ? 0 : totalMillis / fetches);
+        }
+    }
+
+    private final TokenStore tokenStore;
+    private final ValueSetConverter converter;
+    private final HedgedRequests fetcher;
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient httpClient;
+    private final String tgtEndpoint;
+    private final String ticketEndpoint;
+    private final String svsEndpoint;
+    private final long throttleBackoffMillis;
+
+    private final Object tokenLock = new Object();
+    // Guarded by tokenLock, loaded from the store on first use
+    private TokenInfo token;
+    // The key at the top of the token store, its TGT is copied back there on save
+    private Credential primary;
+    private volatile List<Credential> pool;
+    private final AtomicInteger nextCredential = new AtomicInteger();
+
+    private VsacClient(Builder builder) {
+        tokenStore = builder.tokenStore;
+        converter = builder.converter;
+        fetcher = new HedgedRequests(builder.timeoutMillis, builder.hedgeFraction);
+        tgtEndpoint = builder.tgtEndpoint;
+        ticketEndpoint = builder.ticketEndpoint;
+        svsEndpoint = builder.svsEndpoint;
+        throttleBackoffMillis = builder.throttleBackoffMillis;
+        connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(builder.maxConnections);
+        connections.setDefaultMaxPerRoute(builder.maxConnections);
+        int timeout = (int) Math.min(Integer.MAX_VALUE, builder.timeoutMillis);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(config)
+                .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public ValueSetConverter getConverter() {
+        return converter;
+    }
+
+    public TokenStore getTokenStore() {
+        return tokenStore;
+    }
+
+    /**
+     * The SVS response as returned by VSAC
+     */
+    public String fetchRaw(String valueSetId) throws IOException {
+        return fetchRaw(valueSetId, null);
+    }
+
+    /**
+     * The SVS response, admitted by admission once its headers arrive and before the body is read
+     */
+    public String fetchRaw(String valueSetId, ResponseAdmission admission) throws IOException {
+        try {
+            return fetcher.execute(control -> fetchAttempt(valueSetId, control, admission));
+        } catch (IOException e) {
+            log.error("Error fetching valueset " + valueSetId, e);
+            throw e;
+        }
+    }
+
+    /**
+     * The value set with its concepts in canonical order, a response that holds no value set is an error
+     */
+    public SvsValueSet fetch(String valueSetId) throws IOException {
+        return ValueSetConverter.parse(fetchRaw(valueSetId), valueSetId);
+    }
+
+    public ValueSet fetchFhir(String valueSetId) throws IOException {
+        return ValueSetConverter.toFhir(fetch(valueSetId), valueSetId, converter.getCodeSystems());
+    }
+
+    /**
+     * Fetch and write the value set to out in one of {@link ValueSetConverter#FORMATS}, xml is the SVS response
+     * unchanged. The stream is flushed, not closed.
+     */
+    public void fetch(String valueSetId, String format, OutputStream out) throws IOException {
+        if (!ValueSetConverter.FORMATS.contains(format)) {
+            throw new IllegalArgumentException("Invalid format type: " + format);
+        }
+        String vs = fetchRaw(valueSetId);
+        //Parsed for xml as well, an error page served as 200 is not written out as the value set
+        SvsValueSet svs = ValueSetConverter.parse(vs, valueSetId);
+        if ("xml".equals(format)) {
+            out.write(vs.getBytes(Consts.UTF_8));
+            out.flush();
+            return;
+        }
+        converter.write(svs, valueSetId, format, out);
+    }
+
+    public CompletableFuture<SvsValueSet> fetchAsync(String valueSetId, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetch(valueSetId);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * A lazy stream of the value sets, each fetched as the stream reaches it. Use a parallel stream to fetch several
+     * at a time, a failed fetch ends the stream with an {@link UncheckedIOException}.
+     */
+    public Stream<SvsValueSet> fetchAll(Collection<String> valueSetIds) {
+        return valueSetIds.stream().map(valueSetId -> {
+            try {
+                return fetch(valueSetId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private String fetchAttempt(String valueSetId, HedgedRequests.Control control, ResponseAdmission admission) throws IOException {
+        List<Credential> credentials = getPool();
+        //A throttled key is rested and the fetch moves on to another, or waits for one when that fits the deadline
+        for (int attempt = 0; ; attempt++) {
+            Credential credential = acquire(credentials);
+            long start = System.nanoTime();
+            long[] paused = new long[1];
+            AtomicReference<HttpRequestBase> sent = new AtomicReference<>();
+            try {
+                String vs = fetchAttempt(credential, valueSetId, request -> {
+                    sent.set(request);
+                    control.abortable(request);
+                }, contentLength -> {
+                    control.responded();
+                    if (admission != null) {
+                        long waitStart = System.nanoTime();
+                        try {
+                            admission.admit(contentLength);
+                        } finally {
+                            paused[0] = System.nanoTime() - waitStart;
+                            control.paused(paused[0]);
+                        }
+                    }
+                });
+                credential.recordFetch((System.nanoTime() - start - paused[0]) / 1000000);
+                return vs;
+            } catch (ThrottledException e) {
+                long rest = credential.recordThrottle(e.retryAfterMillis, throttleBackoffMillis);
+                log.info("VSAC throttled " + credential.label + ", resting it " + rest + " ms");
+                if (attempt >= credentials.size() || getRestMillis(credentials) > fetcher.getDeadlineMillis()) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                //A hedge that lost the race is not the key's failure
+                if (sent.get() == null || !sent.get().isAborted()) {
+                    credential.recordFailure();
+                }
+                throw e;
+            } finally {
+                credential.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private String fetchAttempt(Credential credential, String valueSetId, Consumer<HttpRequestBase> abortable,
+                                ResponseAdmission admission) throws IOException {
+        //Every attempt uses its own service ticket, they are single use
+        String serviceTicket = getServiceTicket(credential);
+        HttpGet httpget;
+        try {
+            httpget = new HttpGet(new URIBuilder(svsEndpoint)
+                    .addParameter("ticket", serviceTicket)
+                    .addParameter("id", valueSetId)
+                    .build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid SVS endpoint " + svsEndpoint, e);
+        }
+        abortable.accept(httpget);
+        return httpClient.execute(httpget, response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                throw unexpectedStatus(response);
+            }
+            HttpEntity responseEntity = response.getEntity();
+            if (responseEntity == null) {
+                return null;
+            }
+            //The entity length is the Content-Length header, nothing of the body is read before admission
+            admission.admit(responseEntity.getContentLength());
+            return EntityUtils.toString(responseEntity);
+        });
+    }
+
+    private static ClientProtocolException unexpectedStatus(HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        if (status != TOO_MANY_REQUESTS) {
+            return new ClientProtocolException("Unexpected response status: " + status);
+        }
+        //Retry-After in seconds, the date form is rare enough to fall back on our own back off
+        long retryAfter = 0;
+        Header header = response.getFirstHeader("Retry-After");
+        if (header != null) {
+            try {
+                retryAfter = Math.max(0, Long.parseLong(header.getValue().trim()) * 1000);
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring Retry-After " + header.getValue());
+            }
+        }
+        return new ThrottledException(retryAfter);
+    }
+
+    /**
+     * The key with the fewest fetches in flight among those not resting, ties go round robin. When every key is
+     * resting this waits for the first to come back.
+     */
+    private Credential acquire(List<Credential> credentials) throws IOException {
+        int n = credentials.size();
+        while (true) {
+            long now = System.currentTimeMillis();
+            long soonest = Long.MAX_VALUE;
+            Credential best = null;
+            int first = Math.floorMod(nextCredential.getAndIncrement(), n);
+            for (int i = 0; i < n; i++) {
+                Credential credential = credentials.get((first + i) % n);
+                if (credential.backoffUntil > now) {
+                    soonest = Math.min(soonest, credential.backoffUntil);
+                } else if (best == null || credential.inFlight.get() < best.inFlight.get()) {
+                    best = credential;
+                }
+            }
+            if (best != null) {
+                best.inFlight.incrementAndGet();
+                return best;
+            }
+            try {
+                Thread.sleep(Math.max(1, soonest - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a throttled API key");
+            }
+        }
+    }
+
+    /**
+     * How long until a key is free to use, 0 when one is now
+     */
+    private static long getRestMillis(List<Credential> credentials) {
+        long now = System.currentTimeMillis();
+        long rest = Long.MAX_VALUE;
+        for (Credential credential : credentials) {
+            rest = Math.min(rest, Math.max(0, credential.backoffUntil - now));
+        }
+        return rest;
+    }
+
+    /**
+     * A new single use service ticket from the least loaded key
+     */
+    String getServiceTicket() throws IOException {
+        Credential credential = acquire(getPool());
+        try {
+            return getServiceTicket(credential);
+        } finally {
+            credential.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * A new single use service ticket. Only the TGT lookup is serialized, tickets are requested concurrently.
+     */
+    private String getServiceTicket(Credential credential) throws IOException {
+        String tgt = getTicketGrantingTicket(credential, null);
+        try {
+            return requestServiceTicket(tgt);
+        } catch (ThrottledException e) {
+            //The TGT is fine, the key is asking too often
+            throw e;
+        } catch (IOException e) {
+            //The TGT was revoked or expired early, replace it once
+            log.debug("Service ticket refused, requesting a new TGT for " + credential.label, e);
+            try {
+                return requestServiceTicket(getTicketGrantingTicket(credential, tgt));
+            } catch (IOException second) {
+                log.error("Error on secondary service ticket attempt", second);
+                throw second;
+            }
+        }
+    }
+
+    /**
+     * A valid TGT of the first key
+     */
+    String getTicketGrantingTicket(String rejected) throws IOException {
+        return getTicketGrantingTicket(getPool().get(0), rejected);
+    }
+
+    /**
+     * A valid TGT for the key. A new one is requested when the held one is expired or is the one given as rejected,
+     * threads that saw the same rejected TGT wait for a single replacement.
+     */
+    private String getTicketGrantingTicket(Credential credential, String rejected) throws IOException {
+        synchronized (credential.tgtLock) {
+            synchronized (tokenLock) {
+                if (isTGTValid(credential.tokens, System.currentTimeMillis()) && !credential.tokens.getTokenGrantingTicket().equals(rejected)) {
+                    return credential.tokens.getTokenGrantingTicket();
+                }
+            }
+            String tgt = requestTicketGrantingTicket(credential.apikey);
+            synchronized (tokenLock) {
+                credential.tokens.setTokenGrantingTicket(tgt);
+                credential.tokens.setTokenGrantedOn(new Date());
+                try {
+                    saveTokens();
+                } catch (IOException e) {
+                    //The ticket is still good for this client
+                    log.error("Error saving token", e);
+                }
+            }
+            return tgt;
+        }
+    }
+
+    /**
+     * The tokens held, loaded from the store on first use
+     */
+    TokenInfo loadToken() throws IOException {
+        synchronized (tokenLock) {
+            if (token == null) {
+                TokenInfo tok = tokenStore.load();
+                if (tok == null) {
+                    throw new IOException("No UMLS API key configured");
+                }
+                List<Credential> credentials = new ArrayList<>();
+                Credential top = null;
+                if (tok.getApikey() != null && !tok.getApikey().isEmpty()) {
+                    top = new Credential(new ApiCredential(null, tok.getApikey(), tok.getTokenGrantingTicket(), tok.getTokenGrantedOn()));
+                    credentials.add(top);
+                }
+                if (tok.getCredentials() != null) {
+                    for (ApiCredential credential : tok.getCredentials()) {
+                        if (credential.getApikey() != null && !credential.getApikey().isEmpty()) {
+                            credentials.add(new Credential(credential));
+                        }
+                    }
+                }
+                if (credentials.isEmpty()) {
+                    throw new IOException("No UMLS API key configured");
+                }
+                token = tok;
+                primary = top;
+                pool = Collections.unmodifiableList(credentials);
+            }
+            return token;
+        }
+    }
+
+    private List<Credential> getPool() throws IOException {
+        List<Credential> credentials = pool;
+        if (credentials == null) {
+            loadToken();
+            credentials = pool;
+        }
+        return credentials;
+    }
+
+    /**
+     * Number of API keys fetches are spread over
+     */
+    public int getCredentialCount() throws IOException {
+        return getPool().size();
+    }
+
+    private void saveTokens() throws IOException {
+        //Called under tokenLock
+        if (primary != null) {
+            token.setTokenGrantingTicket(primary.tokens.getTokenGrantingTicket());
+            token.setTokenGrantedOn(primary.tokens.getTokenGrantedOn());
+        }
+        tokenStore.save(token);
+    }
+
+    /**
+     * Forget the TGTs, here and in the store
+     */
+    public void invalidate() throws IOException {
+        synchronized (tokenLock) {
+            TokenInfo tok = token != null ? token : tokenStore.load();
+            if (pool != null) {
+                for (Credential credential : pool) {
+                    credential.tokens.setTokenGrantingTicket(null);
+                    credential.tokens.setTokenGrantedOn(null);
+                }
+            }
+            tok.setTokenGrantingTicket(null);
+            tok.setTokenGrantedOn(null);
+            if (tok.getCredentials() != null) {
+                for (ApiCredential credential : tok.getCredentials()) {
+                    credential.setTokenGrantingTicket(null);
+                    credential.setTokenGrantedOn(null);
+                }
+            }
+            tokenStore.save(tok);
+        }
+    }
+
+    static boolean isTGTValid(ApiCredential tok, long now) {
+        if (tok.getTokenGrantingTicket() == null || tok.getTokenGrantingTicket().isEmpty() || tok.getTokenGrantedOn() == null) {
+            return false;
+        }
+        return now - tok.getTokenGrantedOn().getTime() < TGT_LIFETIME - TGT_LIFE_WINDOW;
+    }
+
+    private String requestTicketGrantingTicket(String apikey) throws IOException {
+        HttpPost httpPost = new HttpPost(tgtEndpoint);
+        httpPost.setEntity(new UrlEncodedFormEntity(Collections.singletonList(new BasicNameValuePair("apikey", apikey)), Consts.UTF_8));
+        String tgt = getTGTFromResp(httpClient.execute(httpPost, BODY));
+        if (tgt == null || tgt.isEmpty()) {
+            throw new IOException("No ticket granting ticket in response from " + tgtEndpoint);
+        }
+        log.info("Granted a new TGT");
+        return tgt;
+    }
+
+    private String requestServiceTicket(String tgt) throws IOException {
+        HttpPost httpPost = new HttpPost(ticketEndpoint + tgt);
+        httpPost.setEntity(new UrlEncodedFormEntity(Collections.singletonList(new BasicNameValuePair("service", SERVICE)), Consts.UTF_8));
+        log.debug("Executing service grant request " + httpPost.getRequestLine());
+        String ticket = httpClient.execute(httpPost, BODY);
+        if (ticket == null || ticket.trim().isEmpty()) {
+            throw new ClientProtocolException("Empty service ticket");
+        }
+        return ticket.trim();
+    }
+
+    /**
+     * The TGT is the last path segment of the form action in the api-key response
+     */
+    static String getTGTFromResp(String responseBody) {
+        if (responseBody == null) {
+            return null;
+        }
+        int indx = responseBody.indexOf("action=\"");
+        if (indx == -1) {
+            return null;
+        }
+        int end = responseBody.indexOf('"', indx + 8);
+        if (end == -1) {
+            return null;
+        }
+        String action = responseBody.substring(indx + 8, end);
+        return action.substring(action.lastIndexOf('/') + 1);
+    }
+
+    public String getLatencyReport() {
+        return fetcher.getReport();
+    }
+
+    public int getRequests() {
+        return fetcher.getRequests();
+    }
+
+    /**
+     * Counters per API key in pool order, empty until the tokens are loaded
+     */
+    public List<CredentialStats> getCredentialStats() {
+        List<CredentialStats> stats = new ArrayList<>();
+        List<Credential> credentials = pool;
+        if (credentials != null) {
+            for (Credential credential : credentials) {
+                stats.add(credential.getStats());
+            }
+        }
+        return stats;
+    }
+
+    public String getCredentialReport() {
+        StringBuilder bld = new StringBuilder();
+        List<CredentialStats> stats = getCredentialStats();
+        bld.append("Fetches over ").append(stats.size()).append(stats.size() == 1 ? " API key:" : " API keys:");
+        for (CredentialStats key : stats) {
+            bld.append(System.lineSeparator()).append("  ").append(key.getName()).append(": ")
+                    .append(key.getFetches()).append(" fetched, avg ").append(key.getAverageMillis()).append(" ms, ")
+                    .append(key.getThrottled()).append(" throttled, ")
+                    .append(key.getFailed()).append(" failed");
+        }
+        return bld.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpClient.close();
+            connections.close();
+        } finally {
+            fetcher.close();
+        }
+    }
+
+    public static class Builder {
+        private TokenStore tokenStore;
+        private ValueSetConverter converter = new ValueSetConverter();
+        private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        private double hedgeFraction = DEFAULT_HEDGE_FRACTION;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private String tgtEndpoint = TGT_ENDPOINT;
+        private String ticketEndpoint = TICKET_ENDPOINT;
+        private String svsEndpoint = SVS_ENDPOINT;
+        private long throttleBackoffMillis = DEFAULT_THROTTLE_BACKOFF_MILLIS;
+
+        private Builder() {
+        }
+
+        /**
+         * Where the API keys and TGTs are kept, .vsacTokens in the working directory when not set
+         */
+        public Builder tokenStore(TokenStore tokenStore) {
+            this.tokenStore = tokenStore;
+            return this;
+        }
+
+        public Builder converter(ValueSetConverter converter) {
+            this.converter = converter;
+            return this;
+        }
+
+        /**
+         * Map concept systems through codeSystems rather than the bundled registry, applies to the converter set so far
+         */
+        public Builder codeSystems(CodeSystemRegistry codeSystems) {
+            this.converter = converter.withCodeSystems(codeSystems);
+            return this;
+        }
+
+        /**
+         * Deadline for a fetch including any hedged attempt
+         */
+        public Builder timeoutMillis(long timeoutMillis) {
+            this.timeoutMillis = Math.max(1, timeoutMillis);
+            return this;
+        }
+
+        /**
+         * Fraction of requests that may be hedged once slow, 0 turns hedging off
+         */
+        public Builder hedgeFraction(double hedgeFraction) {
+            this.hedgeFraction = hedgeFraction;
+            return this;
+        }
+
+        /**
+         * Connections held open to each host, more concurrent fetches wait for one
+         */
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = Math.max(1, maxConnections);
+            return this;
+        }
+
+        /**
+         * First rest for an API key the server throttles when it does not send Retry-After, doubled while the
+         * key stays throttled
+         */
+        public Builder throttleBackoffMillis(long throttleBackoffMillis) {
+            this.throttleBackoffMillis = Math.max(1, throttleBackoffMillis);
+            return this;
+        }
+
+        /**
+         * Point the client at another UTS and SVS, the ticket endpoint is followed by the TGT
+         */
+        public Builder endpoints(String tgtEndpoint, String ticketEndpoint, String svsEndpoint) {
+            this.tgtEndpoint = tgtEndpoint;
+            this.ticketEndpoint = ticketEndpoint;
+            this.svsEndpoint = svsEndpoint;
+            return this;
+        }
+
+        public VsacClient build() {
+            if (tokenStore == null) {
+                tokenStore = new FileTokenStore();
+            }
+            return new VsacClient(this);
+        }
+    }
+}
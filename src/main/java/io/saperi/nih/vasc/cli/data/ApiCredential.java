@@ -0,0 +1,19 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+@NoArgsConstructor
+@AllArgsConstructor
+public @Data
+class ApiCredential {
+    private String name;
+    private String apikey;
+    private String tokenGrantingTicket;
+    private Date tokenGrantedOn;
+
+}
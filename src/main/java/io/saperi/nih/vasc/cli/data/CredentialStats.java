@@ -0,0 +1,18 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@NoArgsConstructor
+@AllArgsConstructor
+public @Data
+class CredentialStats {
+    private String name;
+    private int fetches;
+    private int throttled;
+    private int failed;
+    private long averageMillis;
+
+}
@@ -0,0 +1,15 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.Data;
+
+import java.util.Date;
+
+public @Data
+class FetchTiming {
+    private long bytes;
+    private long fetchMillis;
+    private long convertMillis;
+    private Date lastRun;
+
+}
@@ -0,0 +1,21 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.Data;
+
+import java.util.Date;
+
+public @Data
+class HistoryEntry {
+    private String oid;
+    private String version;
+    private String title;
+    private Date recordedOn;
+    private long offset;
+    private int length;
+    private boolean snapshot;
+    private int conceptCount;
+    private long fullBytes;
+    private String sha256;
+
+}
@@ -0,0 +1,18 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+@NoArgsConstructor
+@AllArgsConstructor
+public @Data
+class PublishRecord {
+    private String sha256;
+    private String versionId;
+    private Date publishedOn;
+
+}
@@ -0,0 +1,19 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.Data;
+
+import java.util.Date;
+
+public @Data
+class ShardJournalEntry {
+    private String oid;
+    private int shard;
+    private String status;
+    private String file;
+    private long bytes;
+    private long millis;
+    private String error;
+    private Date time;
+
+}
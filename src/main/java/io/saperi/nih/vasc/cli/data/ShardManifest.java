@@ -0,0 +1,19 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public @Data
+class ShardManifest {
+    private int shardCount;
+    private int converted;
+    private int failed;
+    private List<Integer> missingShards = new ArrayList<>();
+    private List<ShardJournalEntry> valueSets = new ArrayList<>();
+    private Date mergedOn;
+
+}
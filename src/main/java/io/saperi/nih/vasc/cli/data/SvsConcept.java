@@ -0,0 +1,17 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@NoArgsConstructor
+@AllArgsConstructor
+public @Data
+class SvsConcept {
+    private String codeSystem;
+    private String codeSystemVersion;
+    private String code;
+    private String displayName;
+
+}
@@ -0,0 +1,16 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli.data;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public @Data
+class SvsValueSet {
+    private String id;
+    private String displayName;
+    private String version;
+    private List<SvsConcept> concepts = new ArrayList<>();
+
+}
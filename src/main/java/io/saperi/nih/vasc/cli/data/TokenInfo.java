@@ -1,14 +1,19 @@
 /*Copyright 2021 Cognitive Medical Systems*/
 package io.saperi.nih.vasc.cli.data;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 import java.util.Date;
+import java.util.List;
 
 public @Data
 class TokenInfo {
     private String apikey;
     private String tokenGrantingTicket;
     private Date tokenGrantedOn;
+    // Further UMLS accounts, fetches are spread over these and the apikey above
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private List<ApiCredential> credentials;
 
 }
@@ -0,0 +1,49 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryValueSetReaderTest {
+
+    @Test
+    void roundTrip() throws Exception {
+        SvsValueSet vs = new SvsValueSet();
+        vs.setId("1.2.3");
+        vs.setDisplayName("Test");
+        vs.setVersion("Latest");
+        vs.getConcepts().add(new SvsConcept("2.16.840.1.113883.6.1", "2.68", "48643-1", "GFR, blacks"));
+        vs.getConcepts().add(new SvsConcept("2.16.840.1.113883.6.96", "2020-03", "123609007", "Subacute glomerulonephritis"));
+        vs.getConcepts().add(new SvsConcept("2.16.840.1.113883.6.1", "2.68", "48642-3", "GFR é"));
+
+        BinaryValueSetReader reader = new BinaryValueSetReader(ByteBuffer.wrap(BinaryValueSetWriter.write(vs)));
+        assertTrue(reader.verify());
+        assertEquals("1.2.3", reader.getId());
+        assertEquals("Test", reader.getTitle());
+        assertEquals(3, reader.size());
+        assertEquals(2, reader.getSystemCount());
+        //Sorted by system then code
+        assertEquals("48642-3", reader.getCode(0));
+        assertEquals("GFR é", reader.getDisplay(0));
+        assertEquals("http://loinc.org", reader.getSystem(1));
+        assertEquals("http://snomed.info/sct", reader.getSystem(2));
+        assertEquals("2020-03", reader.getSystemVersion(2));
+        assertEquals(1, reader.find("http://loinc.org", "48643-1"));
+        assertEquals(-1, reader.find("http://loinc.org", "123609007"));
+    }
+
+    @Test
+    void detectsCorruption() throws Exception {
+        SvsValueSet vs = new SvsValueSet();
+        vs.setId("1.2.3");
+        vs.getConcepts().add(new SvsConcept("2.16.840.1.113883.6.1", "2.68", "48643-1", "GFR"));
+        byte[] data = BinaryValueSetWriter.write(vs);
+        data[data.length - 1] ^= 0x20;
+        assertFalse(new BinaryValueSetReader(ByteBuffer.wrap(data)).verify());
+    }
+}
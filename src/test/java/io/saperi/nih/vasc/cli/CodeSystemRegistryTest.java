@@ -0,0 +1,103 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeSystemRegistryTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void bundledSystems() throws Exception {
+        CodeSystemRegistry registry = CodeSystemRegistry.loadDefault();
+        assertEquals("http://snomed.info/sct", registry.lookup("2.16.840.1.113883.6.96"));
+        assertEquals("http://snomed.info/sct", registry.lookup("SNOMEDCT"));
+        assertEquals("http://snomed.info/sct", registry.lookup("urn:oid:2.16.840.1.113883.6.96"));
+        assertEquals("http://www.cms.gov/Medicare/Coding/HCPCSReleaseCodeSets", registry.lookup("2.16.840.1.113883.6.285"));
+        assertEquals("http://hl7.org/fhir/sid/cvx", registry.lookup("2.16.840.1.113883.12.292"));
+        assertEquals("http://hl7.org/fhir/sid/icd-9-cm", registry.lookup("2.16.840.1.113883.6.104"));
+        assertEquals("http://unitsofmeasure.org", registry.lookup("http://unitsofmeasure.org"));
+        assertNull(registry.lookup("1.2.3.4"));
+        assertNull(registry.lookup(""));
+        //Every alias shares the one URI instance
+        assertSame(registry.lookup("LOINC"), registry.lookup("2.16.840.1.113883.6.1"));
+        assertSame(registry.lookup("http://loinc.org"), registry.lookup("LNC"));
+
+        assertEquals("http://hl7.org/fhir/sid/ndc", FHIRCodeSystemMapper.getFHIRCodeSystem("2.16.840.1.113883.6.69"));
+        assertEquals("1.2.3.4", FHIRCodeSystemMapper.getFHIRCodeSystem("1.2.3.4"));
+        assertNull(FHIRCodeSystemMapper.getFHIRCodeSystem(null));
+    }
+
+    @Test
+    void everyKeyFound() {
+        Map<String, String> aliases = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            aliases.put("2.16.840.1." + i, "http://example.org/system/" + (i % 97));
+        }
+        //Equal String hash codes can not be told apart by the table
+        aliases.put("Aa", "http://example.org/a");
+        aliases.put("BB", "http://example.org/b");
+        CodeSystemRegistry registry = CodeSystemRegistry.build(aliases);
+        assertEquals(aliases.size(), registry.size());
+        assertEquals(99, registry.getSystemCount());
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            assertEquals(alias.getValue(), registry.lookup(alias.getKey()), alias.getKey());
+        }
+        for (int i = 20000; i < 40000; i++) {
+            assertNull(registry.lookup("2.16.840.1." + i));
+        }
+        assertNull(CodeSystemRegistry.build(new HashMap<>()).lookup("LOINC"));
+    }
+
+    @Test
+    void overrideFile() throws Exception {
+        File file = new File(dir, "systems.csv");
+        Files.write(file.toPath(), Arrays.asList(
+                "# local systems",
+                "uri,oids,names",
+                "http://example.org/local,1.2.3.4|1.2.3.5,LOCAL|Local Codes",
+                "http://example.org/cpt,2.16.840.1.113883.6.12,"), StandardCharsets.UTF_8);
+        CodeSystemRegistry registry = CodeSystemRegistry.load(file);
+        assertEquals("http://example.org/local", registry.lookup("1.2.3.5"));
+        assertEquals("http://example.org/local", registry.lookup("Local Codes"));
+        assertEquals("http://example.org/cpt", registry.lookup("2.16.840.1.113883.6.12"));
+        assertEquals("http://www.ama-assn.org/go/cpt", registry.lookup("CPT"));
+        assertEquals("http://snomed.info/sct", registry.lookup("2.16.840.1.113883.6.96"));
+
+        //Only a converter given the registry maps through it, the bundled one is left alone
+        SvsValueSet svs = SvsValueSetParser.parse("<RetrieveValueSetResponse><ValueSet ID=\"1\"><ConceptList>"
+                + "<Concept code=\"A1\" codeSystem=\"1.2.3.4\" codeSystemVersion=\"1\" displayName=\"a\"/>"
+                + "</ConceptList></ValueSet></RetrieveValueSetResponse>");
+        ValueSetConverter converter = new ValueSetConverter().withCodeSystems(registry);
+        assertSame(registry, converter.withFastFhir(true).getCodeSystems());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.writeCsv(svs, out);
+        assertEquals("System,Version,Code,Display\nhttp://example.org/local,1,A1,a", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("http://example.org/local", ValueSetConverter.toFhir(svs, "1", registry).getCompose().getIncludeFirstRep().getSystem());
+        assertEquals("1.2.3.4", FHIRCodeSystemMapper.getFHIRCodeSystem("1.2.3.4"));
+        assertEquals("1.2.3.4", ValueSetConverter.toFhir(svs, "1").getCompose().getIncludeFirstRep().getSystem());
+    }
+
+    @Test
+    void parserSharesSystems() throws Exception {
+        SvsValueSet svs = SvsValueSetParser.parse("<RetrieveValueSetResponse><ValueSet ID=\"1\"><ConceptList>"
+                + "<Concept code=\"1\" codeSystem=\"2.16.840.1.113883.6.96\" codeSystemVersion=\"2021\" displayName=\"a\"/>"
+                + "<Concept code=\"2\" codeSystem=\"2.16.840.1.113883.6.96\" codeSystemVersion=\"2021\" displayName=\"b\"/>"
+                + "</ConceptList></ValueSet></RetrieveValueSetResponse>");
+        assertSame(svs.getConcepts().get(0).getCodeSystem(), svs.getConcepts().get(1).getCodeSystem());
+        assertSame(svs.getConcepts().get(0).getCodeSystemVersion(), svs.getConcepts().get(1).getCodeSystemVersion());
+    }
+}
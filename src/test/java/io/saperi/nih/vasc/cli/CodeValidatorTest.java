@@ -0,0 +1,152 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.CodeIssue;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodeValidatorTest {
+
+    @TempDir
+    File dir;
+
+    private void writeReleases() throws Exception {
+        File terminology = new File(dir, "SnomedCT_InternationalRF2/Snapshot/Terminology");
+        assertTrue(terminology.mkdirs());
+        Files.write(new File(terminology, "sct2_Concept_Snapshot_INT_20210131.txt").toPath(), Arrays.asList(
+                "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId",
+                "70691001\t20020131\t1\t900000000000207008\t900000000000074008",
+                "191704009\t20090731\t0\t900000000000207008\t900000000000074008",
+                "117681000119102\t20150301\t1\t731000124108\t900000000000073002"), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "Loinc.csv").toPath(), Arrays.asList(
+                "\"LOINC_NUM\",\"COMPONENT\",\"PROPERTY\",\"STATUS\"",
+                "\"2160-0\",\"Creatinine\",\"MCnc\",\"ACTIVE\"",
+                "\"1234-5\",\"Old, \"\"retired\"\" test\",\"MCnc\",\"DEPRECATED\"",
+                "\"48642-3\",\"Glomerular filtration rate\",\"ArVRat\",\"TRIAL\""), StandardCharsets.UTF_8);
+        Files.write(new File(dir, "RXNCONSO.RRF").toPath(), Arrays.asList(
+                "313782|ENG||||||1|||313782|RXNORM|SCD|313782|Acetaminophen 325 MG Oral Tablet||N|4096|",
+                "313782|ENG||||||2|||313782|MTHSPL|SCD|abc|Acetaminophen 325 MG Oral Tablet||N|4096|",
+                "1000000|ENG||||||3|||1000000|RXNORM|SCD|1000000|Suppressed product||O|4096|",
+                "2000000|ENG||||||4|||2000000|MTHSPL|SCD|2000000|Other source only||N|4096|"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Concepts given as system and code in turn, displayed as their code
+     */
+    private static SvsValueSet valueSet(String id, String... systemAndCode) {
+        String[] rows = new String[systemAndCode.length * 2];
+        for (int i = 0; i < systemAndCode.length; i += 2) {
+            String code = systemAndCode[i + 1];
+            System.arraycopy(new String[]{systemAndCode[i], "", code, "Display " + code}, 0, rows, i * 2, 4);
+        }
+        return TestValueSets.valueSet(id, null, null, rows);
+    }
+
+    @Test
+    void validatesAgainstReleases() throws Exception {
+        writeReleases();
+        CodeValidator validator = CodeValidator.load(dir);
+        assertEquals(3, validator.getReleases().size());
+
+        validator.validate("1.2.3", valueSet("1.2.3",
+                "2.16.840.1.113883.6.96", "70691001",
+                "2.16.840.1.113883.6.96", "191704009",
+                "2.16.840.1.113883.6.96", "117681000119102",
+                "2.16.840.1.113883.6.96", "99999999",
+                "2.16.840.1.113883.6.96", "7069100X",
+                "2.16.840.1.113883.6.1", "2160-0",
+                "2.16.840.1.113883.6.1", "48642-3",
+                "2.16.840.1.113883.6.1", "1234-5",
+                "2.16.840.1.113883.6.1", "21600",
+                "2.16.840.1.113883.6.88", "313782",
+                "2.16.840.1.113883.6.88", "1000000",
+                "2.16.840.1.113883.6.88", "2000000",
+                "2.16.840.1.113883.6.90", "N18.3"));
+
+        List<CodeIssue> issues = validator.getIssues();
+        assertEquals(Arrays.asList(
+                "http://loinc.org|1234-5|inactive",
+                "http://loinc.org|21600|malformed",
+                "http://snomed.info/sct|191704009|inactive",
+                "http://snomed.info/sct|7069100X|malformed",
+                "http://snomed.info/sct|99999999|unknown",
+                "http://www.nlm.nih.gov/research/umls/rxnorm|1000000|inactive",
+                "http://www.nlm.nih.gov/research/umls/rxnorm|2000000|unknown"),
+                issues.stream().map(i -> i.getSystem() + "|" + i.getCode() + "|" + i.getStatus()).collect(Collectors.toList()));
+        assertEquals(12, validator.getChecked());
+        assertTrue(validator.getSummary().contains("http://hl7.org/fhir/sid/icd-10-cm: 1 not checked"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        validator.writeReport(out, ',', false);
+        String report = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(report.startsWith("ValueSet,System,Code,Display,Status\n1.2.3,http://loinc.org,1234-5,Display 1234-5,inactive\n"));
+    }
+
+    @Test
+    void recompilesWhenSourceChanges() throws Exception {
+        writeReleases();
+        CodeValidator.load(dir);
+        File compiled = new File(dir, CodeValidator.COMPILED_DIRECTORY + "/snomed.codes");
+        assertTrue(compiled.isFile());
+        long compiledAt = compiled.lastModified();
+
+        File source = new File(dir, "SnomedCT_InternationalRF2/Snapshot/Terminology/sct2_Concept_Snapshot_INT_20210131.txt");
+        Files.write(source.toPath(), Arrays.asList(
+                "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId",
+                "99999999\t20210131\t1\t900000000000207008\t900000000000074008"), StandardCharsets.UTF_8);
+        assertTrue(source.setLastModified(compiledAt + 10000));
+
+        CodeRelease release = CodeValidator.load(dir).getReleases().iterator().next();
+        assertEquals(CodeRelease.Kind.SNOMED, release.getKind());
+        assertEquals(1, release.size());
+        assertEquals(CodeRelease.Status.ACTIVE, release.lookup("99999999"));
+        assertEquals(CodeRelease.Status.UNKNOWN, release.lookup("70691001"));
+    }
+
+    @Test
+    void largeRelease() throws Exception {
+        //A release with every third number, looked up across the whole range
+        File source = new File(dir, "RXNCONSO.RRF");
+        StringBuilder bld = new StringBuilder();
+        for (int i = 0; i < 300000; i += 3) {
+            bld.append(i).append("|ENG||||||||||RXNORM|SCD|").append(i).append("|Name||").append(i % 2 == 0 ? "N" : "Y").append("|4096|\n");
+        }
+        Files.write(source.toPath(), bld.toString().getBytes(StandardCharsets.UTF_8));
+        File compiled = new File(dir, "rxnorm.codes");
+        CodeRelease.compile(CodeRelease.Kind.RXNORM, source, compiled);
+        CodeRelease release = CodeRelease.open(compiled);
+        assertEquals(100000, release.size());
+        for (int i = 0; i < 300000; i++) {
+            CodeRelease.Status expected = i % 3 != 0 ? CodeRelease.Status.UNKNOWN
+                    : i % 2 == 0 ? CodeRelease.Status.ACTIVE : CodeRelease.Status.INACTIVE;
+            assertEquals(expected, release.lookup(Integer.toString(i)), "code " + i);
+        }
+    }
+
+    @Test
+    void keys() {
+        assertEquals(21600, CodeRelease.Kind.LOINC.key("2160-0"));
+        assertEquals(-1, CodeRelease.Kind.LOINC.key("2160"));
+        assertEquals(-1, CodeRelease.Kind.LOINC.key("-0"));
+        assertEquals(-1, CodeRelease.Kind.LOINC.key("LP1234-5"));
+        assertEquals(999999999999999999L, CodeRelease.Kind.SNOMED.key("999999999999999999"));
+        assertEquals(-1, CodeRelease.Kind.SNOMED.key("1234567890123456789"));
+        assertEquals(-1, CodeRelease.Kind.SNOMED.key(""));
+        assertEquals(-1, CodeRelease.Kind.RXNORM.key("12 34"));
+        assertEquals(CodeRelease.Kind.SNOMED, CodeRelease.Kind.forFileName("sct2_Concept_Snapshot_US1000124_20210301.txt"));
+        assertNull(CodeRelease.Kind.forFileName("sct2_Concept_Full_INT_20210131.txt"));
+        assertEquals(CodeRelease.Kind.LOINC, CodeRelease.Kind.forFileName("Loinc.csv"));
+        assertEquals(CodeRelease.Kind.RXNORM, CodeRelease.Kind.forFileName("RXNCONSO.RRF"));
+    }
+}
@@ -0,0 +1,319 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.base.Charsets;
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.apache.commons.cli.*;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Micro benchmarks of the encoders over a directory of raw SVS responses, run by hand from the test classpath:
+ * <pre>
+ * ConversionBenchmarks bin|csv|fhir|system|validate [-fd directory] [-rd releases]
+ * </pre>
+ * Not a test, the numbers are only meaningful on a quiet machine.
+ */
+public class ConversionBenchmarks {
+
+    private final ValueSetConverter converter = new ValueSetConverter();
+    private final File source;
+
+    ConversionBenchmarks(File source) {
+        this.source = source;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(Option.builder("fd").argName("directory").hasArg().desc("raw SVS files, output by default").build());
+        options.addOption(Option.builder("rd").argName("releases").hasArg().desc("code system release directory for validate").build());
+        CommandLine cmd = new DefaultParser().parse(options, args);
+        if (cmd.getArgList().isEmpty()) {
+            new HelpFormatter().printHelp("ConversionBenchmarks bin|csv|fhir|system|validate", options);
+            return;
+        }
+        ConversionBenchmarks bench = new ConversionBenchmarks(new File(cmd.getOptionValue("fd", "output")));
+        for (String name : cmd.getArgList()) {
+            switch (name.toLowerCase()) {
+                case "bin":
+                    bench.binary();
+                    break;
+                case "csv":
+                    bench.csv();
+                    break;
+                case "fhir":
+                    bench.fhir();
+                    break;
+                case "system":
+                    bench.codeSystems();
+                    break;
+                case "validate":
+                    bench.validate(new File(cmd.getOptionValue("rd", ".")));
+                    break;
+                default:
+                    System.out.println("Invalid benchmark: " + name);
+            }
+        }
+    }
+
+    private List<SvsValueSet> readValueSets() throws IOException {
+        List<SvsValueSet> valueSets = new ArrayList<>();
+        for (File file : SvsArchiveReader.listSvsFiles(source)) {
+            String valueSetId = SvsArchiveReader.getValueSetId(file.getName());
+            valueSets.add(ValueSetConverter.parse(FileUtils.readFileToString(file, Charsets.UTF_8), valueSetId));
+        }
+        return valueSets;
+    }
+
+    private byte[] encode(SvsValueSet svs, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.write(svs, svs.getId(), format, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Size and load time of the csv, fhir json and binary encodings
+     */
+    void binary() throws IOException {
+        long[] bytes = new long[3];
+        long[] nanos = new long[3];
+        int rows = 0;
+        int valueSets = 0;
+        IParser jsonParser = ValueSetConverter.getFhirContext().newJsonParser();
+        File tmp = File.createTempFile("vsac", ".bin");
+        tmp.deleteOnExit();
+        for (SvsValueSet svs : readValueSets()) {
+            byte[] csv = encode(svs, "csv");
+            byte[] json = encode(svs, "fhir+json");
+            byte[] bin = encode(svs, "bin");
+            bytes[0] += csv.length;
+            bytes[1] += json.length;
+            bytes[2] += bin.length;
+
+            long start = System.nanoTime();
+            int count = 0;
+            try (Reader in = new InputStreamReader(new ByteArrayInputStream(csv), Charsets.UTF_8)) {
+                for (CSVRecord record : CSVFormat.RFC4180.withFirstRecordAsHeader().parse(in)) {
+                    count += record.size() > 0 ? 1 : 0;
+                }
+            } catch (IllegalStateException e) {
+                System.out.println("CSV for " + svs.getId() + " could not be parsed: " + e.getMessage());
+            }
+            nanos[0] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            jsonParser.parseResource(ValueSet.class, new String(json, Charsets.UTF_8));
+            nanos[1] += System.nanoTime() - start;
+
+            FileUtils.writeByteArrayToFile(tmp, bin);
+            start = System.nanoTime();
+            BinaryValueSetReader reader = BinaryValueSetReader.open(tmp);
+            int[] scanned = new int[1];
+            reader.scan((row, system, code, display) -> scanned[0] += code.remaining());
+            nanos[2] += System.nanoTime() - start;
+
+            rows += reader.size();
+            valueSets++;
+        }
+        System.out.println("Valuesets: " + valueSets + " Rows: " + rows);
+        String[] names = {"csv", "fhir+json", "bin"};
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(String.format("  %-10s %12d bytes %10.2f ms", names[i], bytes[i], nanos[i] / 1e6));
+        }
+    }
+
+    /**
+     * String concatenation against the streaming CsvWriter, both writing a file
+     */
+    void csv() throws IOException {
+        List<SvsValueSet> valueSets = readValueSets();
+        int rows = 0;
+        //Add one large value set made of every concept seen
+        SvsValueSet large = new SvsValueSet();
+        for (SvsValueSet svs : valueSets) {
+            rows += svs.getConcepts().size();
+            large.getConcepts().addAll(svs.getConcepts());
+        }
+        valueSets.add(large);
+        File tmp = File.createTempFile("vsac", ".csv");
+        tmp.deleteOnExit();
+        int iterations = 20;
+        long[] nanos = new long[2];
+        long[] bytes = new long[2];
+        for (int pass = 0; pass < 4; pass++) {
+            //Early passes warm up, the last is measured
+            Arrays.fill(nanos, 0);
+            Arrays.fill(bytes, 0);
+            for (int i = 0; i < iterations; i++) {
+                for (SvsValueSet svs : valueSets) {
+                    long start = System.nanoTime();
+                    StringBuilder strBld = new StringBuilder();
+                    strBld.append("System,Version,Code,Display");
+                    for (SvsConcept concept : svs.getConcepts()) {
+                        strBld.append("\n");
+                        strBld.append(FHIRCodeSystemMapper.getFHIRCodeSystem(concept.getCodeSystem()));
+                        strBld.append(",");
+                        strBld.append(concept.getCodeSystemVersion());
+                        strBld.append(",");
+                        strBld.append(concept.getCode());
+                        strBld.append(",");
+                        strBld.append(concept.getDisplayName());
+                    }
+                    FileUtils.writeStringToFile(tmp, strBld.toString(), Charsets.UTF_8);
+                    nanos[0] += System.nanoTime() - start;
+                    bytes[0] += tmp.length();
+
+                    start = System.nanoTime();
+                    //CsvWriter buffers itself, a second buffer would only add a copy
+                    try (OutputStream out = new FileOutputStream(tmp)) {
+                        converter.writeCsv(svs, out);
+                    }
+                    nanos[1] += System.nanoTime() - start;
+                    bytes[1] += tmp.length();
+                }
+            }
+        }
+        rows *= 2;
+        System.out.println("Valuesets: " + valueSets.size() + " Rows: " + rows + " Iterations: " + iterations);
+        String[] names = {"concat", "CsvWriter"};
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(String.format("  %-10s %10.2f ms %8.1f MB/s", names[i], nanos[i] / 1e6, bytes[i] / (nanos[i] / 1e9) / 1e6));
+        }
+    }
+
+    /**
+     * Encoding through the HAPI object graph against the streaming writer, time and bytes allocated
+     */
+    void fhir() throws IOException {
+        List<SvsValueSet> valueSets = readValueSets();
+        int rows = 0;
+        for (SvsValueSet svs : valueSets) {
+            rows += svs.getConcepts().size();
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean allocation = threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported();
+        String[] formats = {"fhir+json", "fhir+xml"};
+        String[] names = {"HAPI", "stream"};
+        int iterations = 10;
+        long[] nanos = new long[4];
+        long[] allocated = new long[4];
+        long[] bytes = new long[4];
+        for (int pass = 0; pass < 4; pass++) {
+            //Early passes warm up, the last is measured
+            Arrays.fill(nanos, 0);
+            Arrays.fill(allocated, 0);
+            Arrays.fill(bytes, 0);
+            for (int i = 0; i < iterations; i++) {
+                for (int f = 0; f < formats.length; f++) {
+                    for (int w = 0; w < names.length; w++) {
+                        ValueSetConverter writer = converter.withFastFhir(w == 1);
+                        int slot = f * 2 + w;
+                        String format = formats[f];
+                        CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+                        long before = allocation ? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                        long start = System.nanoTime();
+                        for (SvsValueSet svs : valueSets) {
+                            writer.write(svs, svs.getId(), format, counter);
+                        }
+                        nanos[slot] += System.nanoTime() - start;
+                        if (allocation) {
+                            allocated[slot] += ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                        }
+                        bytes[slot] += counter.getByteCount();
+                    }
+                }
+            }
+        }
+        System.out.println("Valuesets: " + valueSets.size() + " Rows: " + rows + " Iterations: " + iterations);
+        for (int f = 0; f < formats.length; f++) {
+            for (int w = 0; w < names.length; w++) {
+                int slot = f * 2 + w;
+                System.out.println(String.format("  %-9s %-6s %10.2f ms %8.1f MB/s %10.1f MB allocated", formats[f], names[w],
+                        nanos[slot] / 1e6, bytes[slot] / (nanos[slot] / 1e9) / 1e6, allocation ? allocated[slot] / 1e6 : Double.NaN));
+            }
+        }
+    }
+
+    /**
+     * A HashMap of the bundled aliases against the perfect hash registry built from them, over the systems of
+     * every concept
+     */
+    void codeSystems() throws IOException {
+        List<String> systems = new ArrayList<>();
+        for (SvsValueSet svs : readValueSets()) {
+            for (SvsConcept concept : svs.getConcepts()) {
+                systems.add(concept.getCodeSystem());
+            }
+        }
+        HashMap<String, String> aliases;
+        try (Reader in = new InputStreamReader(CodeSystemRegistry.class.getResourceAsStream(CodeSystemRegistry.RESOURCE), Charsets.UTF_8)) {
+            aliases = new HashMap<>(CodeSystemRegistry.read(in, CodeSystemRegistry.RESOURCE));
+        }
+        CodeSystemRegistry registry = CodeSystemRegistry.build(aliases);
+        int iterations = 20;
+        long[] nanos = new long[2];
+        long[] mapped = new long[2];
+        for (int pass = 0; pass < 4; pass++) {
+            //Early passes warm up, the last is measured
+            Arrays.fill(nanos, 0);
+            Arrays.fill(mapped, 0);
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                for (String system : systems) {
+                    String fhirSystem = aliases.containsKey(system) ? aliases.get(system) : system;
+                    mapped[0] += fhirSystem != system ? 1 : 0;
+                }
+                nanos[0] += System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String system : systems) {
+                    mapped[1] += registry.getFHIRCodeSystem(system) != system ? 1 : 0;
+                }
+                nanos[1] += System.nanoTime() - start;
+            }
+        }
+        //HashMap object, table of references and a 32 byte node per entry, keys and URIs shared by both
+        int capacity = 16;
+        while (capacity * 0.75 < aliases.size()) {
+            capacity <<= 1;
+        }
+        long mapBytes = 48 + 16 + 4L * capacity + 32L * aliases.size();
+        long lookups = (long) systems.size() * iterations;
+        System.out.println("Lookups: " + lookups + " Systems in registry: " + registry.getSystemCount());
+        System.out.println(String.format("  %-9s %10.2f ms %6.1f ns/lookup %5d aliases %6d bytes %5.1f%% canonical", "HashMap", nanos[0] / 1e6, (double) nanos[0] / lookups,
+                aliases.size(), mapBytes, 100.0 * mapped[0] / lookups));
+        System.out.println(String.format("  %-9s %10.2f ms %6.1f ns/lookup %5d aliases %6d bytes %5.1f%% canonical", "registry", nanos[1] / 1e6, (double) nanos[1] / lookups,
+                registry.size(), registry.getTableBytes(), 100.0 * mapped[1] / lookups));
+    }
+
+    /**
+     * Lookup throughput against the compiled releases once the code is warm
+     */
+    void validate(File releases) throws IOException {
+        List<SvsValueSet> valueSets = readValueSets();
+        CodeValidator validator = null;
+        int iterations = 50;
+        for (int pass = 0; pass < 4; pass++) {
+            //Early passes warm up, the last is measured
+            validator = CodeValidator.load(releases);
+            for (int i = 0; i < iterations; i++) {
+                for (SvsValueSet svs : valueSets) {
+                    validator.validate(svs.getId(), svs);
+                }
+            }
+        }
+        System.out.println("Valuesets: " + valueSets.size() + " Iterations: " + iterations);
+        System.out.println(validator.getSummary());
+    }
+}
@@ -0,0 +1,107 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SearchHit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversionRunTest {
+
+    @TempDir
+    File dir;
+
+    private static String response(String id, String code, String display) {
+        return "<RetrieveValueSetResponse><ValueSet ID=\"" + id + "\" displayName=\"Test\" version=\"1\"><ConceptList>"
+                + "<Concept codeSystem=\"2.16.840.1.113883.6.96\" codeSystemVersion=\"2020-09\" code=\"" + code
+                + "\" displayName=\"" + display + "\"/></ConceptList></ValueSet></RetrieveValueSetResponse>";
+    }
+
+    @Test
+    void filesIndexAndHistory() throws Exception {
+        List<String> details = new ArrayList<>();
+        ConversionRun run = ConversionRun.builder()
+                .outputDirectory(dir)
+                .detail(details::add)
+                .build();
+        try {
+            run.write(response("1.2.3", "70691001", "Agoraphobia"), "1.2.3");
+            run.write(response("1.2.4", "22230001", "Acute paranoid reaction"), "1.2.4");
+            run.write(response("1.2.3", "70691001", "Agoraphobia"), "1.2.3");
+            assertThrows(IOException.class, () -> run.write("<html>Service unavailable</html>", "1.2.5"));
+        } finally {
+            run.close();
+        }
+        assertEquals("System,Version,Code,Display\nhttp://snomed.info/sct,2020-09,70691001,Agoraphobia",
+                new String(Files.readAllBytes(new File(dir, "1.2.3.csv").toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File(dir, "1.2.5.csv").exists());
+        assertEquals(2, run.getFileWriter().getWritten());
+        assertEquals(1, run.getFileWriter().getSkipped());
+        assertEquals(2, run.getHistoryStore().getAppended());
+        assertTrue(details.contains("Unchanged " + new File(dir, "1.2.3.csv").getPath()));
+
+        List<SearchHit> hits = SearchIndex.open(new File(dir, "search.vsi")).search("agora", 10);
+        assertEquals(1, hits.size());
+        assertEquals("1.2.3", hits.get(0).getOid());
+        //Closing twice is harmless
+        run.close();
+    }
+
+    @Test
+    void rawXmlKeepsResponse() throws Exception {
+        String vs = response("1.2.3", "70691001", "Agoraphobia");
+        try (ConversionRun run = ConversionRun.builder().format("xml").outputDirectory(dir).searchIndex(false).history(false).build()) {
+            run.write(vs, "1.2.3");
+        }
+        assertEquals(vs, new String(Files.readAllBytes(new File(dir, "1.2.3.xml").toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File(dir, "search.vsi").exists());
+        assertFalse(new File(dir, "history").exists());
+    }
+
+    @Test
+    void shardSkipsCompleted() throws Exception {
+        Shard shard = new Shard(1, 1);
+        try (ConversionRun run = ConversionRun.builder().outputDirectory(dir).shard(shard, Collections.emptyMap(), false).build()) {
+            assertTrue(run.isSelected("1.2.3"));
+            run.write(response("1.2.3", "70691001", "Agoraphobia"), "1.2.3");
+            run.recordSuccess("1.2.3", 100, 5);
+        }
+        assertTrue(new File(dir, "search-1-of-1.vsi").isFile());
+        try (ConversionRun run = ConversionRun.builder().outputDirectory(dir).shard(shard, Collections.emptyMap(), false).build()) {
+            assertFalse(run.isSelected("1.2.3"));
+            assertTrue(run.isSelected("1.2.4"));
+        }
+        try (ConversionRun run = ConversionRun.builder().outputDirectory(dir).shard(shard, Collections.emptyMap(), true).build()) {
+            assertTrue(run.isSelected("1.2.3"));
+        }
+
+        //Every shard would write the same package
+        assertThrows(IllegalArgumentException.class, () -> ConversionRun.builder().format("package").outputDirectory(dir)
+                .shard(shard, Collections.emptyMap(), false).build());
+    }
+
+    @Test
+    void singleOutputFile() throws Exception {
+        File single = new File(dir, "all.csv");
+        try (ConversionRun csv = ConversionRun.builder().outputDirectory(dir).outputFile(single).build()) {
+            assertFalse(csv.acceptsMany());
+            assertEquals(single, csv.getOutputFile("1.2.3", "csv"));
+        }
+        try (ConversionRun validate = ConversionRun.builder().outputDirectory(dir).outputFile(single).validateOnly(true).build()) {
+            assertTrue(validate.acceptsMany());
+        }
+        try (ConversionRun files = ConversionRun.builder().outputDirectory(dir).build()) {
+            assertTrue(files.acceptsMany());
+            assertEquals(new File(dir, "1.2.3.json"), files.getOutputFile("1.2.3", ConversionRun.getSuffix("fhir+json")));
+        }
+    }
+}
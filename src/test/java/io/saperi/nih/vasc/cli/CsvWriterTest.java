@@ -0,0 +1,74 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvWriterTest {
+
+    private static String write(char delimiter, boolean bom, String... fields) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvWriter csv = CsvWriter.open(out, delimiter, bom);
+        csv.writeRecord(fields);
+        csv.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void quoting() throws Exception {
+        assertEquals("a,b", write(',', false, "a", "b"));
+        assertEquals("\"Panic disorder with agoraphobia, agoraphobic avoidance\",x",
+                write(',', false, "Panic disorder with agoraphobia, agoraphobic avoidance", "x"));
+        assertEquals("\"say \"\"hi\"\"\",\"line\nbreak\"", write(',', false, "say \"hi\"", "line\nbreak"));
+        assertEquals("a,b\t\"c\td\"", write('\t', false, "a,b", "c\td"));
+        assertEquals(",", write(',', false, null, ""));
+    }
+
+    @Test
+    void encoding() throws Exception {
+        assertEquals("\uFEFF\u00e9,\u20ac,\uD83D\uDE00", write(',', true, "\u00e9", "\u20ac", "\uD83D\uDE00"));
+    }
+
+    @Test
+    void records() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvWriter csv = CsvWriter.open(out, ',', false);
+        csv.writeRecord("System", "Code");
+        csv.field("http://loinc.org").field("1234-5").endRecord();
+        csv.flush();
+        //Flushing midway must not emit the break ahead of a record that never comes
+        assertEquals("System,Code\nhttp://loinc.org,1234-5", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        csv.field(null).field("x\u00e9").endRecord();
+        csv.flush();
+        assertEquals("System,Code\nhttp://loinc.org,1234-5\n,x\u00e9", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void longFields() throws Exception {
+        //Fields longer than the buffer take the general path
+        StringBuilder plain = new StringBuilder();
+        while (plain.length() < 20000) {
+            plain.append("Panic disorder ");
+        }
+        String quoted = plain + ", \"agoraphobic\"";
+        assertEquals(plain + ",\"" + quoted.replace("\"", "\"\"") + "\"", write(',', false, plain.toString(), quoted));
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        String[] fields = {"http://snomed.info/sct", "2020-03", "123", "Arthritis, \"juvenile\"\r\nsecond line"};
+        List<CSVRecord> records = CSVFormat.RFC4180.parse(new StringReader(write(',', false, fields))).getRecords();
+        assertEquals(1, records.size());
+        for (int i = 0; i < fields.length; i++) {
+            assertEquals(fields[i], records.get(0).get(i));
+        }
+    }
+}
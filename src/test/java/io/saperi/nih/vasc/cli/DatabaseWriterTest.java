@@ -0,0 +1,99 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseWriterTest {
+
+    @TempDir
+    File dir;
+
+    private String url() {
+        return "jdbc:h2:file:" + new File(dir, "vsac").getAbsolutePath();
+    }
+
+    private static SvsValueSet valueSet(String id, String title, int from, int to) {
+        return TestValueSets.numbered(id, title, "Latest", from, to, "Concept %d");
+    }
+
+    private List<String> query(String sql) throws Exception {
+        List<String> rows = new ArrayList<>();
+        try (Connection c = DriverManager.getConnection(url()); Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                StringBuilder bld = new StringBuilder();
+                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                    bld.append(i > 1 ? "|" : "").append(rs.getString(i));
+                }
+                rows.add(bld.toString());
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    void bulkLoadThenUpsert() throws Exception {
+        try (DatabaseWriter writer = new DatabaseWriter(url(), 7)) {
+            assertTrue(writer.isBulk());
+            assertTrue(writer.write("1.1", valueSet("1.1", "First", 0, 50)));
+            assertTrue(writer.write("1.2", valueSet("1.2", "Second", 25, 100)));
+        }
+        assertEquals("100", query("SELECT COUNT(*) FROM concept").get(0));
+        assertEquals("125", query("SELECT COUNT(*) FROM membership").get(0));
+        assertEquals("1", query("SELECT COUNT(*) FROM code_system").get(0));
+        assertEquals(7, query("SELECT DISTINCT index_name FROM information_schema.indexes WHERE table_name IN ('VALUESET', 'CODE_SYSTEM', 'CONCEPT', 'MEMBERSHIP')").size());
+
+        SvsValueSet changed = valueSet("1.2", "Second", 90, 110);
+        changed.getConcepts().get(0).setDisplayName("Concept 90 renamed");
+        //A duplicated concept is one membership
+        changed.getConcepts().add(changed.getConcepts().get(1));
+        try (DatabaseWriter writer = new DatabaseWriter(url(), 7)) {
+            assertFalse(writer.isBulk());
+            assertFalse(writer.write("1.1", valueSet("1.1", "First", 0, 50)));
+            assertTrue(writer.write("1.1", valueSet("1.1", "First, retitled", 0, 50)));
+            assertTrue(writer.write("1.2", changed));
+            assertEquals(1, writer.getUnchanged());
+            assertEquals(2, writer.getWritten());
+            assertTrue(writer.getReport().contains("10 new concepts, 1 updated displays"));
+        }
+        assertEquals("110", query("SELECT COUNT(*) FROM concept").get(0));
+        assertEquals("20", query("SELECT COUNT(*) FROM membership WHERE valueset_oid = '1.2'").get(0));
+        assertEquals("50", query("SELECT COUNT(*) FROM membership WHERE valueset_oid = '1.1'").get(0));
+        assertEquals("First, retitled|50", query("SELECT title, concept_count FROM valueset WHERE oid = '1.1'").get(0));
+        assertEquals("Concept 90 renamed", query("SELECT display FROM concept WHERE code = '100090'").get(0));
+        assertEquals("http://snomed.info/sct|2020-09|100099|Concept 99", query(
+                "SELECT s.url, s.version, c.code, c.display FROM membership m JOIN concept c ON c.id = m.concept_id "
+                        + "JOIN code_system s ON s.id = c.system_id WHERE m.valueset_oid = '1.2' ORDER BY c.code").get(9));
+    }
+
+    @Test
+    void failedValueSetRollsBack() throws Exception {
+        SvsValueSet tooLong = valueSet("1.3", "Long", 0, 10);
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            code.append('9');
+        }
+        tooLong.getConcepts().get(5).setCode(code.toString());
+        try (DatabaseWriter writer = new DatabaseWriter(url(), 2)) {
+            assertTrue(writer.write("1.1", valueSet("1.1", "First", 0, 10)));
+            assertThrows(IOException.class, () -> writer.write("1.3", tooLong));
+            //Nothing of the failed value set remains and the writer keeps working
+            assertTrue(writer.write("1.4", valueSet("1.4", "Fourth", 5, 15)));
+        }
+        assertEquals("15", query("SELECT COUNT(*) FROM concept").get(0));
+        assertEquals("1.1|1.4", String.join("|", query("SELECT oid FROM valueset ORDER BY oid")));
+        assertEquals("0", query("SELECT COUNT(*) FROM membership WHERE valueset_oid = '1.3'").get(0));
+    }
+}
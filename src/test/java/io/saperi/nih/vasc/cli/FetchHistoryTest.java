@@ -0,0 +1,51 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FetchHistoryTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void longestFirst() throws Exception {
+        FetchHistory history = new FetchHistory(new File(dir, "history.json"));
+        history.record("small", 1000, 100, 10);
+        history.record("big", 900000, 5000, 1000);
+        history.record("medium", 20000, 400, 100);
+
+        List<String> input = Arrays.asList("small", "medium", "unknown", "big");
+        //Unknown value sets are assumed to be typical, the median
+        assertEquals(Arrays.asList("big", "medium", "unknown", "small"), history.schedule(input));
+        assertEquals(6000, history.getExpectedMakespan(history.schedule(input), 2));
+        assertEquals(6500, history.getExpectedMakespan(input, 2));
+
+        history.save();
+        FetchHistory loaded = FetchHistory.load(new File(dir, "history.json"));
+        assertEquals(6000, loaded.getExpectedMillis("big", 0));
+    }
+
+    @Test
+    void noHistoryKeepsOrder() {
+        FetchHistory history = FetchHistory.load(new File(dir, "missing.json"));
+        List<String> input = Arrays.asList("c", "a", "b");
+        assertEquals(input, history.schedule(input));
+        assertEquals(0, history.getExpectedMakespan(input, 4));
+    }
+
+    @Test
+    void smoothing() {
+        FetchHistory history = new FetchHistory(new File(dir, "history.json"));
+        history.record("a", 10, 1000, 0);
+        history.record("a", 10, 2000, 0);
+        assertEquals(1500, history.getExpectedMillis("a", 0));
+    }
+}
@@ -0,0 +1,103 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirPackageWriterTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    File dir;
+
+    /**
+     * Entry name to content, in archive order, checking every header on the way
+     */
+    private static Map<String, byte[]> readPackage(File file) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] header = new byte[512];
+            while (readBlock(in, header)) {
+                if (Arrays.equals(header, new byte[512])) {
+                    assertTrue(readBlock(in, header));
+                    assertArrayEquals(new byte[512], header);
+                    assertEquals(-1, in.read());
+                    return entries;
+                }
+                TarArchiveWriterTest.assertUstarHeader(header);
+                String prefix = TarArchiveWriterTest.field(header, 345, 155);
+                String name = TarArchiveWriterTest.field(header, 0, 100);
+                int size = (int) TarArchiveWriterTest.octal(header, 124, 12);
+                byte[] content = new byte[(size + 511) / 512 * 512];
+                assertTrue(content.length == 0 || readBlock(in, content));
+                entries.put(prefix.isEmpty() ? name : prefix + "/" + name, Arrays.copyOf(content, size));
+            }
+        }
+        fail("Missing end of archive blocks");
+        return entries;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int read = 0;
+        while (read < block.length) {
+            int n = in.read(block, read, block.length - read);
+            if (n < 0) {
+                assertEquals(0, read);
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    @Test
+    void packageRoundTrip() throws Exception {
+        File file = new File(dir, "package.tgz");
+        byte[] first = "{\"resourceType\":\"ValueSet\",\"id\":\"1.2.3\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "{\"resourceType\":\"ValueSet\",\"id\":\"1.2.4\"}".getBytes(StandardCharsets.UTF_8);
+        try (FhirPackageWriter writer = new FhirPackageWriter(file, "vsac.test", "1.0.0")) {
+            writer.addValueSet("1.2.3", ValueSetConverter.VALUESET_BASE + "1.2.3", "Latest", first);
+            writer.addValueSet("1.2.4", ValueSetConverter.VALUESET_BASE + "1.2.4", null, second);
+            assertEquals(2, writer.getCount());
+        }
+
+        Map<String, byte[]> entries = readPackage(file);
+        assertEquals(Arrays.asList("package/package.json", "package/ValueSet-1.2.3.json", "package/ValueSet-1.2.4.json", "package/.index.json"),
+                Arrays.asList(entries.keySet().toArray()));
+        assertArrayEquals(first, entries.get("package/ValueSet-1.2.3.json"));
+        assertArrayEquals(second, entries.get("package/ValueSet-1.2.4.json"));
+
+        JsonNode pkg = MAPPER.readTree(entries.get("package/package.json"));
+        assertEquals("vsac.test", pkg.path("name").asText());
+        assertEquals("1.0.0", pkg.path("version").asText());
+        assertEquals("4.0.1", pkg.path("fhirVersions").path(0).asText());
+        assertEquals("4.0.1", pkg.path("dependencies").path("hl7.fhir.r4.core").asText());
+
+        JsonNode index = MAPPER.readTree(entries.get("package/.index.json"));
+        assertEquals(1, index.path("index-version").asInt());
+        assertEquals(2, index.path("files").size());
+        JsonNode entry = index.path("files").path(0);
+        assertEquals("ValueSet-1.2.3.json", entry.path("filename").asText());
+        assertEquals("ValueSet", entry.path("resourceType").asText());
+        assertEquals("1.2.3", entry.path("id").asText());
+        assertEquals(ValueSetConverter.VALUESET_BASE + "1.2.3", entry.path("url").asText());
+        assertEquals("Latest", entry.path("version").asText());
+        //No version, no version key
+        assertFalse(index.path("files").path(1).has("version"));
+    }
+}
@@ -0,0 +1,233 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.saperi.nih.vasc.cli.data.PublishResult;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirPublisherTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger bundles = new AtomicInteger();
+    private final Map<String, Stored> resources = new ConcurrentHashMap<>();
+
+    private static class Stored {
+        final int version;
+        final JsonNode resource;
+
+        Stored(int version, JsonNode resource) {
+            this.version = version;
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * Stand-in for the batch and transaction handling of a HAPI server: conditional PUTs by If-Match, an update
+     * with identical content keeps its version, a transaction with a failing entry is rejected as a whole
+     */
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir", exchange -> {
+            bundles.incrementAndGet();
+            JsonNode bundle = MAPPER.readTree(IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            boolean transaction = "transaction".equals(bundle.path("type").asText());
+            synchronized (resources) {
+                Map<String, Stored> updated = new HashMap<>();
+                ArrayNode entries = MAPPER.createArrayNode();
+                String failure = null;
+                for (JsonNode entry : bundle.path("entry")) {
+                    String id = entry.path("request").path("url").asText().substring("ValueSet/".length());
+                    JsonNode resource = entry.path("resource");
+                    Stored current = resources.get(id);
+                    ObjectNode response = entries.addObject().putObject("response");
+                    String ifMatch = entry.path("request").path("ifMatch").asText(null);
+                    if (ifMatch != null && (current == null || !ifMatch.equals("W/\"" + current.version + "\""))) {
+                        failure = "HAPI-0989: Resource ValueSet/" + id + " has version " + (current == null ? "none" : current.version) + ", expected " + ifMatch;
+                        response.put("status", "412 Precondition Failed");
+                        response.putObject("outcome").put("resourceType", "OperationOutcome")
+                                .putArray("issue").addObject().put("severity", "error").put("code", "conflict").put("diagnostics", failure);
+                        continue;
+                    }
+                    Stored next = current != null && current.resource.equals(resource) ? current : new Stored(current == null ? 1 : current.version + 1, resource);
+                    updated.put(id, next);
+                    response.put("status", current == null ? "201 Created" : "200 OK");
+                    response.put("location", "ValueSet/" + id + "/_history/" + next.version);
+                    response.put("etag", "W/\"" + next.version + "\"");
+                }
+                if (transaction && failure != null) {
+                    ObjectNode outcome = MAPPER.createObjectNode().put("resourceType", "OperationOutcome");
+                    outcome.putArray("issue").addObject().put("severity", "error").put("code", "conflict").put("diagnostics", failure);
+                    respond(exchange, 412, outcome);
+                    return;
+                }
+                resources.putAll(updated);
+                ObjectNode reply = MAPPER.createObjectNode().put("resourceType", "Bundle")
+                        .put("type", transaction ? "transaction-response" : "batch-response");
+                reply.set("entry", entries);
+                respond(exchange, 200, reply);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] bytes = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static SvsValueSet valueSet(String id, String display) throws IOException {
+        return TestValueSets.parsed(id, "Value set " + id, "1", TestValueSets.SNOMED, "2020-09", "70691001", display);
+    }
+
+    private FhirPublisher publisher(PublishState state, boolean transaction) {
+        return new FhirPublisher(base, 25, 4, transaction, false, state, 10000);
+    }
+
+    @Test
+    void unchangedNotResent() throws Exception {
+        File file = new File(dir, ".vsacPublish");
+        PublishState state = new PublishState(file);
+        FhirPublisher publisher = publisher(state, false);
+        for (int i = 0; i < 120; i++) {
+            publisher.publish("1.2." + i, valueSet("1.2." + i, "Agoraphobia"));
+        }
+        publisher.close();
+        assertEquals(120, publisher.getCount("created"));
+        assertEquals(5, bundles.get());
+        assertEquals(120, resources.size());
+        assertEquals("1", state.get(base, "1.2.7").getVersionId());
+        state.save();
+        //Replaced in one move, nothing is left next to it
+        assertArrayEquals(new String[]{".vsacPublish"}, dir.list((d, name) -> name.startsWith(".vsacPublish")));
+
+        //Second run from the saved state sends nothing
+        state = PublishState.load(file);
+        publisher = publisher(state, false);
+        for (int i = 0; i < 120; i++) {
+            publisher.publish("1.2." + i, valueSet("1.2." + i, i == 7 ? "Agoraphobia (disorder)" : "Agoraphobia"));
+        }
+        publisher.close();
+        assertEquals(119, publisher.getCount("unchanged"));
+        assertEquals(1, publisher.getCount("updated"));
+        assertEquals(6, bundles.get());
+        assertEquals(2, resources.get("1.2.7").version);
+        assertEquals("2", state.get(base, "1.2.7").getVersionId());
+        assertEquals("Agoraphobia (disorder)", resources.get("1.2.7").resource.path("compose").path("include").path(0).path("concept").path(0).path("display").asText());
+
+        //Republished, identical content keeps its version on the server
+        publisher = new FhirPublisher(base, 25, 4, false, true, state, 10000);
+        publisher.publish("1.2.3", valueSet("1.2.3", "Agoraphobia"));
+        publisher.close();
+        assertEquals(1, resources.get("1.2.3").version);
+        assertEquals("updated", publisher.getResults().get(0).getOutcome());
+    }
+
+    @Test
+    void serverEditIsConflict() throws Exception {
+        PublishState state = new PublishState(new File(dir, ".vsacPublish"));
+        FhirPublisher publisher = publisher(state, false);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            publisher.publish(id, valueSet(id, "Agoraphobia"));
+        }
+        publisher.close();
+        Stored edited = new Stored(2, resources.get("b").resource);
+        resources.put("b", edited);
+
+        publisher = publisher(state, false);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            publisher.publish(id, valueSet(id, "Phobia"));
+        }
+        publisher.close();
+        List<PublishResult> results = publisher.getResults();
+        assertEquals(Arrays.asList("updated", "conflict", "updated"), Arrays.asList(results.get(0).getOutcome(), results.get(1).getOutcome(), results.get(2).getOutcome()));
+        assertEquals(412, results.get(1).getStatus());
+        assertTrue(results.get(1).getMessage().contains("HAPI-0989"));
+        assertSame(edited, resources.get("b"));
+        assertEquals("1", state.get(base, "b").getVersionId());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        publisher.writeReport(out, ',', false);
+        String report = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(report.startsWith("ValueSet,Outcome,Status,Version,Message\na,updated,200,2,\nb,conflict,412,,"));
+        assertTrue(publisher.getReport().contains("2 updated, 0 unchanged, 1 conflicts, 0 failed"));
+    }
+
+    @Test
+    void transactionAllOrNothing() throws Exception {
+        PublishState state = new PublishState(new File(dir, ".vsacPublish"));
+        FhirPublisher publisher = publisher(state, true);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            publisher.publish(id, valueSet(id, "Agoraphobia"));
+        }
+        publisher.close();
+        assertEquals(3, publisher.getCount("created"));
+        resources.put("b", new Stored(2, resources.get("b").resource));
+
+        publisher = publisher(state, true);
+        for (String id : Arrays.asList("a", "b", "c")) {
+            publisher.publish(id, valueSet(id, "Phobia"));
+        }
+        publisher.close();
+        assertEquals(3, publisher.getCount("failed"));
+        for (PublishResult result : publisher.getResults()) {
+            assertEquals(412, result.getStatus());
+            assertTrue(result.getMessage().startsWith("Transaction rejected"));
+        }
+        assertEquals(1, resources.get("a").version);
+        assertEquals("1", state.get(base, "a").getVersionId());
+    }
+
+    @Test
+    void unreachableServer() throws Exception {
+        PublishState state = new PublishState(new File(dir, ".vsacPublish"));
+        FhirPublisher publisher = new FhirPublisher(base.replace("/fhir", "/missing"), 25, 2, false, false, state, 10000);
+        publisher.publish("a", valueSet("a", "Agoraphobia"));
+        publisher.close();
+        assertEquals(1, publisher.getCount("failed"));
+        assertEquals(404, publisher.getResults().get(0).getStatus());
+        assertNull(state.get(base.replace("/fhir", "/missing"), "a"));
+    }
+}
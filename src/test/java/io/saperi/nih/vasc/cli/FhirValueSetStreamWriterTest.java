@@ -0,0 +1,101 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirValueSetStreamWriterTest {
+
+    private static FhirContext fhirContext;
+
+    @BeforeAll
+    static void init() {
+        fhirContext = FhirContext.forR4();
+    }
+
+    private static SvsValueSet valueSet(String... rows) {
+        return TestValueSets.valueSet("2.16.840.1.113762.1.4.1222.81", "Panic & \"Agoraphobia\" <test>", "Latest", rows);
+    }
+
+    private String hapiJson(SvsValueSet vs, boolean pretty) {
+        ValueSet hvs = ValueSetConverter.toFhir(vs, vs.getId());
+        return fhirContext.newJsonParser().setPrettyPrint(pretty).encodeResourceToString(hvs);
+    }
+
+    private String hapiXml(SvsValueSet vs, boolean pretty) {
+        ValueSet hvs = ValueSetConverter.toFhir(vs, vs.getId());
+        return fhirContext.newXmlParser().setPrettyPrint(pretty).encodeResourceToString(hvs);
+    }
+
+    private static String streamJson(SvsValueSet vs, boolean pretty) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FhirValueSetStreamWriter(vs, vs.getId(), "http://cts.nlm.nih.gov/fhir/ValueSet/" + vs.getId()).writeJson(out, pretty);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String streamXml(SvsValueSet vs, boolean pretty) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FhirValueSetStreamWriter(vs, vs.getId(), "http://cts.nlm.nih.gov/fhir/ValueSet/" + vs.getId()).writeXml(out, pretty);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void assertSameAsHapi(SvsValueSet vs) throws Exception {
+        for (boolean pretty : new boolean[]{true, false}) {
+            assertEquals(hapiJson(vs, pretty), streamJson(vs, pretty));
+            assertEquals(hapiXml(vs, pretty), streamXml(vs, pretty));
+        }
+    }
+
+    @Test
+    void simple() throws Exception {
+        assertSameAsHapi(valueSet(
+                "2.16.840.1.113883.6.90", "2021", "F40.00", "Agoraphobia, unspecified",
+                "2.16.840.1.113883.6.90", "2021", "F40.01", "Agoraphobia with panic disorder",
+                "2.16.840.1.113883.6.96", "2020-09", "70691001", "Agoraphobia (disorder)"));
+    }
+
+    @Test
+    void escaping() throws Exception {
+        assertSameAsHapi(valueSet(
+                "2.16.840.1.113883.6.96", "2020-09", "1", "Quote \" back\\slash / slash",
+                "2.16.840.1.113883.6.96", "2020-09", "2", "Markup <b> & 'apos' > end",
+                "2.16.840.1.113883.6.96", "2020-09", "3", "Sjögren € 😀",
+                "2.16.840.1.113883.6.96", "2020-09", "4", "Tab\tnew\nline\rreturn",
+                "2.16.840.1.113883.6.96", "2020-09", "5", "  padded  "));
+    }
+
+    @Test
+    void blanks() throws Exception {
+        SvsValueSet vs = valueSet(
+                "2.16.840.1.113883.6.96", "", "1", "",
+                "2.16.840.1.113883.6.96", "", "2", "   ",
+                "", "", "", "",
+                "unknown.system", "1", "", "Display only");
+        vs.setVersion("");
+        assertSameAsHapi(vs);
+        SvsValueSet empty = valueSet();
+        empty.setDisplayName("");
+        assertSameAsHapi(empty);
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        SvsValueSet vs = valueSet(
+                "2.16.840.1.113883.6.96", "2020-09", "70691001", "Agoraphobia (disorder)",
+                "2.16.840.1.113883.6.88", "2021-01", "313782", "Acetaminophen 325 MG Oral Tablet");
+        //Whatever HAPI reads back from the streamed output encodes exactly as the converted resource does
+        ValueSet parsed = fhirContext.newJsonParser().parseResource(ValueSet.class, streamJson(vs, true));
+        assertEquals(hapiJson(vs, true), fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(parsed));
+        ValueSet parsedXml = fhirContext.newXmlParser().parseResource(ValueSet.class, streamXml(vs, true));
+        assertEquals(2, parsedXml.getCompose().getInclude().size());
+        assertEquals("313782", parsedXml.getCompose().getInclude().get(1).getConcept().get(0).getCode());
+    }
+}
@@ -0,0 +1,123 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedFileWriterTest {
+
+    @TempDir
+    File dir;
+
+    private static final String[][] CONCEPTS = {
+            {"2.16.840.1.113883.6.96", "2020-09", "70691001", "Agoraphobia"},
+            {"2.16.840.1.113883.6.90", "2021", "N18.3", "Chronic kidney disease, stage 3"},
+            {"2.16.840.1.113883.6.96", "2020-09", "22230001", "Acute paranoid reaction"},
+            {"2.16.840.1.113883.6.1", "2.68", "1234-5", "Creatinine"},
+            {"2.16.840.1.113883.6.90", "2021", "N18.1", "Chronic kidney disease, stage 1"},
+    };
+
+    private static SvsValueSet valueSet(List<String[]> concepts) throws IOException {
+        return TestValueSets.parsed("1.2.3", "Test", "1", concepts.stream().flatMap(Arrays::stream).toArray(String[]::new));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> leftovers() {
+        List<String> names = new ArrayList<>();
+        for (String name : dir.list()) {
+            if (name.endsWith(".tmp")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void deterministicOrderSkipsRewrite() throws Exception {
+        ValueSetConverter converter = new ValueSetConverter();
+        File csv = new File(dir, "1.2.3.csv");
+        File json = new File(dir, "1.2.3.json");
+        HashedFileWriter writer = new HashedFileWriter(false);
+        List<String[]> concepts = new ArrayList<>(Arrays.asList(CONCEPTS));
+        SvsValueSet first = valueSet(concepts);
+        assertTrue(writer.write(csv, out -> converter.writeCsv(first, out)));
+        assertTrue(writer.write(json, out -> converter.write(first, "1.2.3", "fhir+json", out)));
+        byte[] csvBytes = Files.readAllBytes(csv.toPath());
+        byte[] jsonBytes = Files.readAllBytes(json.toPath());
+
+        //The same concepts in any response order encode to the same bytes, so nothing is rewritten
+        for (long seed = 1; seed <= 5; seed++) {
+            Collections.shuffle(concepts, new Random(seed));
+            SvsValueSet shuffled = valueSet(concepts);
+            assertFalse(writer.write(csv, out -> converter.writeCsv(shuffled, out)));
+            assertFalse(writer.write(json, out -> converter.write(shuffled, "1.2.3", "fhir+json", out)));
+        }
+        assertArrayEquals(csvBytes, Files.readAllBytes(csv.toPath()));
+        assertArrayEquals(jsonBytes, Files.readAllBytes(json.toPath()));
+        assertEquals(2, writer.getWritten());
+        assertEquals(10, writer.getSkipped());
+        assertTrue(new String(csvBytes, StandardCharsets.UTF_8).startsWith("System,Version,Code,Display\nhttp://hl7.org/fhir/sid/icd-10-cm,2021,N18.1,"));
+        assertEquals(Collections.emptyList(), leftovers());
+    }
+
+    @Test
+    void skipUnchanged() throws Exception {
+        File file = new File(dir, "sub/out.csv");
+        HashedFileWriter writer = new HashedFileWriter(false);
+        assertTrue(writer.write(file, out -> out.write(bytes("a,b\nc,d"))));
+        assertTrue(file.setLastModified(1000000000000L));
+
+        assertFalse(writer.write(file, out -> out.write(bytes("a,b\nc,d"))));
+        assertEquals(1000000000000L, file.lastModified());
+
+        //Same length, different content
+        assertTrue(writer.write(file, out -> out.write(bytes("a,b\nc,e"))));
+        assertEquals("a,b\nc,e", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertTrue(writer.write(file, out -> out.write(bytes("a,b"))));
+        assertEquals("a,b", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertEquals(3, writer.getWritten());
+        assertEquals(1, writer.getSkipped());
+
+        HashedFileWriter forced = new HashedFileWriter(true);
+        assertTrue(forced.write(file, out -> out.write(bytes("a,b"))));
+        assertEquals(Collections.emptyList(), leftovers());
+    }
+
+    @Test
+    void sha256Hex() throws Exception {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", Sha256.hex("abc"));
+        File file = new File(dir, "abc.txt");
+        new HashedFileWriter(false).write(file, out -> out.write(bytes("abc")));
+        assertEquals(Sha256.hex("abc"), Sha256.hex(HashedFileWriter.hash(file)));
+    }
+
+    @Test
+    void failedEncodeKeepsTarget() throws Exception {
+        File file = new File(dir, "out.csv");
+        HashedFileWriter writer = new HashedFileWriter(false);
+        writer.write(file, out -> out.write(bytes("a,b\nc,d")));
+        assertThrows(IOException.class, () -> writer.write(file, out -> {
+            out.write(bytes("a,b\n"));
+            throw new IOException("Encoder failed");
+        }));
+        assertEquals("a,b\nc,d", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertEquals(1, writer.getWritten());
+        assertEquals(Collections.emptyList(), leftovers());
+    }
+}
@@ -0,0 +1,186 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HedgedRequestsTest {
+
+    private static void warmUp(HedgedRequests requests) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("fast", requests.execute(abortable -> "fast"));
+        }
+    }
+
+    private static String sleep(long millis, String result) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        return result;
+    }
+
+    @Test
+    void hedgeWinsOverSlowAttempt() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0.5);
+        warmUp(requests);
+        assertTrue(requests.getHedgeDelay() >= 0);
+
+        AtomicInteger attempt = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        String result = requests.execute(abortable -> attempt.getAndIncrement() == 0 ? sleep(5000, "slow") : "hedge");
+        assertEquals("hedge", result);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, requests.getHedges());
+        assertEquals(1, requests.getHedgeWins());
+        assertTrue(requests.getReport().contains("Without hedging"));
+    }
+
+    @Test
+    void memoryBudgetWaitIsNotLatency() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0.5);
+        warmUp(requests);
+        long hedgeDelay = requests.getHedgeDelay();
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Reservation other = budget.reserve(1000);
+        Thread releaser = new Thread(() -> {
+            try {
+                sleep(300, null);
+            } catch (InterruptedIOException e) {
+                //Released regardless
+            }
+            other.close();
+        });
+        releaser.start();
+
+        //The value set waits for memory before its request goes out, so the wait neither starts a hedge
+        //nor ends up in the latency the hedge delay is taken from
+        try (MemoryBudget.Reservation reservation = budget.reserve(600)) {
+            assertEquals("fast", requests.execute(abortable -> "fast"));
+            assertEquals(600, reservation.getReserved());
+        }
+        releaser.join();
+        assertEquals(1, budget.getStalls());
+        assertTrue(budget.getStallMillis() >= 250);
+        assertEquals(0, requests.getHedges());
+        assertEquals(hedgeDelay, requests.getHedgeDelay());
+
+        //A slow attempt is hedged, both attempts read under the one reservation, which is gone afterwards
+        AtomicInteger attempt = new AtomicInteger();
+        try (MemoryBudget.Reservation reservation = budget.reserve(600)) {
+            assertEquals("hedge", requests.execute(abortable -> attempt.getAndIncrement() == 0 ? sleep(5000, "slow") : "hedge"));
+            assertEquals(600, reservation.getReserved());
+        }
+        assertEquals(1, requests.getHedges());
+        assertEquals(3, budget.getAdmitted());
+        assertEquals(1000, budget.reserve(1000).getReserved());
+        assertEquals(1, budget.getStalls());
+    }
+
+    @Test
+    void admissionAfterResponseIsNotLatency() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0.5);
+        warmUp(requests);
+        long hedgeDelay = requests.getHedgeDelay();
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Reservation other = budget.reserve(1000);
+        Thread releaser = new Thread(() -> {
+            try {
+                sleep(300, null);
+            } catch (InterruptedIOException e) {
+                //Released regardless
+            }
+            other.close();
+        });
+        releaser.start();
+
+        //The headers are in when the body has to wait for memory, the wait is ours and not the server's
+        try (MemoryBudget.Reservation reservation = budget.reserve(100)) {
+            assertEquals("read", requests.execute(control -> {
+                control.responded();
+                long start = System.nanoTime();
+                reservation.ensure(600);
+                control.paused(System.nanoTime() - start);
+                return "read";
+            }));
+            assertEquals(600, reservation.getReserved());
+            assertTrue(reservation.getWaitMillis() >= 250);
+        }
+        releaser.join();
+        assertEquals(0, requests.getHedges());
+        assertEquals(hedgeDelay, requests.getHedgeDelay());
+        String report = requests.getReport();
+        assertTrue(Long.parseLong(report.replaceAll("(?s).*max (\\d+) ms.*", "$1")) < 250, report);
+    }
+
+    @Test
+    void hedgesAreCapped() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0.1);
+        warmUp(requests);
+        //11 requests allow one hedge at 10%, the twelfth has to wait for its only attempt
+        assertEquals("slow", requests.execute(abortable -> sleep(200, "slow")));
+        assertEquals("slow", requests.execute(abortable -> sleep(200, "slow")));
+        assertEquals(1, requests.getHedges());
+        assertEquals(12, requests.getRequests());
+    }
+
+    @Test
+    void noHedgingWhenDisabled() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0);
+        warmUp(requests);
+        assertEquals(-1, requests.getHedgeDelay());
+        assertEquals("slow", requests.execute(abortable -> sleep(200, "slow")));
+        assertEquals(0, requests.getHedges());
+    }
+
+    @Test
+    void deadline() {
+        HedgedRequests requests = new HedgedRequests(200, 0.05);
+        assertThrows(SocketTimeoutException.class, () -> requests.execute(abortable -> sleep(5000, "late")));
+    }
+
+    @Test
+    void closeStopsAttempts() throws Exception {
+        HedgedRequests requests = new HedgedRequests(10000, 0);
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        Thread caller = new Thread(() -> {
+            try {
+                requests.execute(abortable -> {
+                    started.incrementAndGet();
+                    return sleep(5000, "late");
+                });
+                failure.complete(null);
+            } catch (Exception e) {
+                failure.complete(e);
+            }
+        });
+        caller.start();
+        while (started.get() == 0) {
+            Thread.sleep(5);
+        }
+        long start = System.currentTimeMillis();
+        requests.close();
+        //The running attempt is interrupted rather than left to finish on a pool nobody owns
+        assertTrue(failure.get(2, TimeUnit.SECONDS) instanceof InterruptedIOException);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertThrows(IOException.class, () -> requests.execute(abortable -> "fast"));
+    }
+
+    @Test
+    void percentile() {
+        assertEquals(0, HedgedRequests.percentile(Arrays.asList(), 95));
+        assertEquals(95, HedgedRequests.percentile(Arrays.asList(100L, 1L, 2L, 95L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L, 13L, 14L, 15L, 16L, 17L, 18L), 95));
+        assertEquals(100, HedgedRequests.percentile(Arrays.asList(100L, 1L), 100));
+    }
+}
@@ -0,0 +1,154 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.HistoryEntry;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryStoreTest {
+
+    @TempDir
+    File dir;
+
+    private static SvsValueSet version(String version, int from, int to) {
+        return TestValueSets.numbered("1.2.3", "Test", version, from, to, "Concept number %d (disorder)");
+    }
+
+    @Test
+    void deltasReplayEveryVersion() throws Exception {
+        List<SvsValueSet> recorded = new ArrayList<>();
+        try (HistoryStore store = HistoryStore.open(dir)) {
+            for (int v = 0; v < 20; v++) {
+                //Each version drops a few concepts at the front and adds a few at the end
+                SvsValueSet vs = version("v" + v, v * 3, 500 + v * 5);
+                assertTrue(store.record("1.2.3", vs));
+                recorded.add(vs);
+            }
+            assertFalse(store.record("1.2.3", version("v19", 57, 595)));
+
+            List<HistoryEntry> versions = store.getVersions("1.2.3");
+            assertEquals(20, versions.size());
+            assertTrue(versions.get(0).isSnapshot());
+            assertFalse(versions.get(1).isSnapshot());
+            assertTrue(versions.stream().filter(HistoryEntry::isSnapshot).count() >= 2, "chain is bounded by snapshots");
+
+            long[] sizes = store.getSizes();
+            assertTrue(sizes[0] * 10 < sizes[1], "stored " + sizes[0] + " of " + sizes[1]);
+        }
+
+        try (HistoryStore store = HistoryStore.open(dir)) {
+            for (SvsValueSet expected : recorded) {
+                SvsValueSet actual = store.load(store.find("1.2.3", expected.getVersion()));
+                assertEquals(expected.getConcepts(), actual.getConcepts());
+                assertEquals(expected.getVersion(), actual.getVersion());
+                assertEquals("Test", actual.getDisplayName());
+            }
+            assertNull(store.find("1.2.3", "v99"));
+            assertNull(store.find("9.9.9", "v1"));
+        }
+    }
+
+    @Test
+    void findByDate() throws Exception {
+        try (HistoryStore store = HistoryStore.open(dir)) {
+            store.record("1.2.3", version("Latest", 0, 10));
+            HistoryEntry entry = store.getVersions("1.2.3").get(0);
+            assertNull(store.find("1.2.3", "2000-01-01"));
+            assertEquals(entry, store.find("1.2.3", "2999-01-01"));
+            assertEquals(entry, store.find("1.2.3", String.format("%tF", entry.getRecordedOn())));
+        }
+    }
+
+    /**
+     * Record two versions of count value sets named prefix.i, as one shard of a convert would
+     */
+    private static void writeShard(File dir, String prefix, int count) throws Exception {
+        try (HistoryStore store = HistoryStore.open(dir)) {
+            for (int i = 0; i < count; i++) {
+                SvsValueSet vs = version("v1", i, i + 40);
+                vs.setId(prefix + "." + i);
+                store.record(vs.getId(), vs);
+                vs = version("v2", i + 2, i + 45);
+                vs.setId(prefix + "." + i);
+                store.record(vs.getId(), vs);
+            }
+        }
+    }
+
+    /**
+     * Second writer process for {@link #twoWritersShareTheLog}
+     */
+    public static class Writer {
+        public static void main(String[] args) throws Exception {
+            writeShard(new File(args[0]), args[1], Integer.parseInt(args[2]));
+        }
+    }
+
+    @Test
+    void twoWritersShareTheLog() throws Exception {
+        //Shards on other machines are other processes, plus two stores in this one
+        Process other = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), Writer.class.getName(), dir.getPath(), "b", "300")
+                .redirectErrorStream(true).redirectOutput(new File(dir, "writer.out")).start();
+        File index = new File(dir, HistoryStore.INDEX_FILE);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!index.isFile() || index.length() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "Writer process did not start");
+            Thread.sleep(10);
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                writeShard(dir, "c", 300);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        writeShard(dir, "a", 300);
+        thread.join();
+        assertEquals(0, other.waitFor());
+
+        try (HistoryStore store = HistoryStore.open(dir)) {
+            assertEquals(900, store.getValueSetCount());
+            //Every record is referenced once and none overlap, so the records tile the log exactly
+            List<HistoryEntry> all = new ArrayList<>();
+            for (String prefix : new String[]{"a", "b", "c"}) {
+                for (int i = 0; i < 300; i++) {
+                    all.addAll(store.getVersions(prefix + "." + i));
+                }
+            }
+            all.sort(Comparator.comparingLong(HistoryEntry::getOffset));
+            long end = 0;
+            for (HistoryEntry entry : all) {
+                assertEquals(end, entry.getOffset(), entry.getOid());
+                end += entry.getLength();
+            }
+            assertEquals(new File(dir, HistoryStore.LOG_FILE).length(), end);
+            for (String prefix : new String[]{"a", "b", "c"}) {
+                for (int i = 0; i < 300; i++) {
+                    List<HistoryEntry> versions = store.getVersions(prefix + "." + i);
+                    assertEquals(2, versions.size(), prefix + "." + i);
+                    //Replaying checks each record's crc and the hash of the expansion
+                    assertEquals(version("v1", i, i + 40).getConcepts(), store.load(versions.get(0)).getConcepts());
+                    assertEquals(version("v2", i + 2, i + 45).getConcepts(), store.load(versions.get(1)).getConcepts());
+                }
+            }
+        }
+    }
+
+    @Test
+    void parseDate() {
+        assertNotNull(HistoryStore.parseDate("2021-03-31"));
+        assertNotNull(HistoryStore.parseDate("2021-03-31T10:15"));
+        assertNull(HistoryStore.parseDate("Latest"));
+        assertNull(HistoryStore.parseDate("2021-02-30"));
+    }
+}
@@ -0,0 +1,57 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void exactBelowLinearRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        assertEquals(20, histogram.getCount());
+        assertEquals(10, histogram.percentile(50));
+        assertEquals(19, histogram.percentile(95));
+        assertEquals(20, histogram.percentile(100));
+    }
+
+    @Test
+    void withinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        for (int p : new int[]{50, 95, 99}) {
+            long exact = p * 100L;
+            long approx = histogram.percentile(p);
+            assertTrue(approx >= exact && approx <= exact + exact / 16, p + ": " + approx);
+        }
+        assertEquals(10000, histogram.percentile(100));
+    }
+
+    @Test
+    void bucketBounds() {
+        for (long v : new long[]{0, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(LatencyHistogram.upper(bucket) >= v, Long.toString(v));
+            assertTrue(bucket == 0 || LatencyHistogram.upper(bucket - 1) < v, Long.toString(v));
+        }
+    }
+
+    @Test
+    void windowForgetsOldest() {
+        LatencyHistogram histogram = new LatencyHistogram(10);
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(20);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(20, histogram.percentile(95));
+    }
+}
@@ -0,0 +1,193 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline, "Thread never blocked on the budget");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void parseSize() {
+        assertEquals(512L * 1024 * 1024, MemoryBudget.parseSize("512m"));
+        assertEquals(2L * 1024 * 1024 * 1024, MemoryBudget.parseSize("2g"));
+        assertEquals(65536L * 1024, MemoryBudget.parseSize("65536k"));
+        assertEquals(64L * 1024 * 1024, MemoryBudget.parseSize(" 64MB "));
+        assertEquals(1024, MemoryBudget.parseSize("1024"));
+        assertEquals(1024, MemoryBudget.parseSize("1024b"));
+        assertThrows(NumberFormatException.class, () -> MemoryBudget.parseSize("1.5g"));
+        assertThrows(NumberFormatException.class, () -> MemoryBudget.parseSize("lots"));
+    }
+
+    @Test
+    void unlimited() throws Exception {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        assertFalse(budget.isLimited());
+        assertEquals(Long.MAX_VALUE / 2, budget.acquire(Long.MAX_VALUE / 2));
+        assertEquals(MemoryBudget.estimate(0), budget.acquire(MemoryBudget.estimate(0)));
+        assertEquals(0, budget.getStalls());
+    }
+
+    @Test
+    void peakHeapLeavesJvmPeaksAlone() throws Exception {
+        long jvmPeak = heapPoolPeak();
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.release(budget.acquire(10));
+        assertTrue(budget.getPeakHeap() > 0);
+        //A new budget used to reset the pool peaks for the whole process
+        assertTrue(heapPoolPeak() >= jvmPeak);
+    }
+
+    private static long heapPoolPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    @Test
+    void oversizeAdmittedAlone() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        //Larger than the whole budget, reserves all of it rather than waiting forever
+        long reserved = budget.acquire(5000);
+        assertEquals(1000, reserved);
+        assertEquals(0, budget.getStalls());
+
+        Thread small = new Thread(() -> {
+            try {
+                budget.release(budget.acquire(10));
+            } catch (Exception e) {
+                fail(e);
+            }
+        });
+        small.start();
+        awaitWaiting(small);
+        budget.release(reserved);
+        small.join(5000);
+        assertFalse(small.isAlive());
+        assertEquals(1000, budget.getPeakInUse());
+        assertEquals(2, budget.getAdmitted());
+    }
+
+    @Test
+    void blocksUntilReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        long first = budget.acquire(40);
+        long second = budget.acquire(60);
+        assertEquals(100, budget.getPeakInUse());
+
+        CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.acquire(50);
+                admitted.countDown();
+            } catch (Exception e) {
+                fail(e);
+            }
+        });
+        waiter.start();
+        awaitWaiting(waiter);
+        Thread.sleep(50);
+        //Freeing too little keeps it waiting
+        budget.release(first);
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+        budget.release(second);
+        assertTrue(admitted.await(5000, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, budget.getStalls());
+        assertTrue(budget.getStallMillis() >= 100, "Stalled " + budget.getStallMillis() + " ms");
+        assertEquals(3, budget.getAdmitted());
+        assertEquals(100, budget.getPeakInUse());
+        assertTrue(budget.getReport().contains("admitted 3"));
+    }
+
+    @Test
+    void reservationsGrowWithoutDeadlock() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation a = budget.reserve(50);
+        MemoryBudget.Reservation b = budget.reserve(50);
+        a.ensure(20);
+        assertEquals(50, a.getReserved());
+
+        //Both turn out larger than expected, each gives back its share before waiting so one gets through
+        Thread other = new Thread(() -> {
+            try {
+                b.ensure(80);
+                b.close();
+            } catch (Exception e) {
+                fail(e);
+            }
+        });
+        other.start();
+        a.ensure(80);
+        assertEquals(80, a.getReserved());
+        a.close();
+        other.join(5000);
+        assertFalse(other.isAlive());
+        assertEquals(0, b.getReserved());
+        assertEquals(100, budget.reserve(100).getReserved());
+    }
+
+    @Test
+    void interruptedWhileWaiting() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(100);
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.acquire(1);
+                failure.complete(null);
+            } catch (Exception e) {
+                failure.complete(e);
+            }
+        });
+        waiter.start();
+        awaitWaiting(waiter);
+        waiter.interrupt();
+        assertTrue(failure.get(5, TimeUnit.SECONDS) instanceof java.io.InterruptedIOException);
+        assertEquals(1, budget.getAdmitted());
+    }
+
+    @Test
+    void forkJoinPoolCompensates() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        long held = budget.acquire(100);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            //The only worker blocks on the budget, the release can only run if the pool adds a worker
+            ForkJoinTask<Long> waiter = pool.submit(() -> budget.acquire(100));
+            ForkJoinTask<?> releaser = pool.submit(() -> {
+                sleepQuietly(50);
+                budget.release(held);
+            });
+            assertEquals(100, (long) waiter.get(5, TimeUnit.SECONDS));
+            releaser.get(5, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SearchHit;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+
+    @TempDir
+    File dir;
+
+    private static SvsValueSet valueSet(String id, String... codeAndDisplay) {
+        return TestValueSets.codes(id, TestValueSets.SNOMED, "2020-03", codeAndDisplay);
+    }
+
+    private static SearchIndex build(SearchIndexWriter writer) throws Exception {
+        return new SearchIndex(ByteBuffer.wrap(writer.toBytes()));
+    }
+
+    @Test
+    void tokenize() {
+        assertEquals(Arrays.asList("sjogren", "s", "syndrome", "type", "2"), SearchIndex.tokenize("Sjögren's syndrome, type-2"));
+        assertTrue(SearchIndex.tokenize(" -- ").isEmpty());
+    }
+
+    @Test
+    void prefixAndRanking() throws Exception {
+        SearchIndexWriter writer = new SearchIndexWriter();
+        writer.add("1.1", valueSet("1.1",
+                "61569007", "Agoraphobia without history of panic disorder (disorder)",
+                "70691001", "Agoraphobia (disorder)",
+                "35607004", "Panic disorder with agoraphobia (disorder)"));
+        writer.add("1.2", valueSet("1.2", "35489007", "Depressive disorder (disorder)"));
+        SearchIndex index = build(writer);
+        assertEquals(2, index.getValueSetCount());
+
+        List<SearchHit> hits = index.search("agora", 10);
+        assertEquals(3, hits.size());
+        assertEquals("70691001", hits.get(0).getCode());
+        assertEquals("http://snomed.info/sct", hits.get(0).getSystem());
+        assertEquals("1.1", hits.get(0).getOid());
+
+        //All words have to match, whole words beat prefixes
+        hits = index.search("panic agoraphobia", 10);
+        assertEquals(2, hits.size());
+        assertEquals("35607004", hits.get(0).getCode());
+        assertEquals(1, index.search("depress", 10).size());
+        assertEquals(0, index.search("agoraphobia depressive", 10).size());
+        assertEquals(1, index.search("disorder", 1).size());
+        //The total counts every match, not just the rows returned
+        hits = new ArrayList<>();
+        assertEquals(4, index.search("disorder", 1, hits));
+        assertEquals(1, hits.size());
+        assertEquals(0, index.search("zzz", 10).size());
+    }
+
+    @Test
+    void incrementalUpdate() throws Exception {
+        File file = new File(dir, "search.vsi");
+        SearchIndexWriter writer = SearchIndexWriter.load(file);
+        writer.add("1.1", valueSet("1.1", "70691001", "Agoraphobia (disorder)"));
+        writer.add("1.2", valueSet("1.2", "35489007", "Depressive disorder (disorder)"));
+        assertTrue(writer.isChanged());
+        writer.write(file);
+
+        //Replacing a value set with the same content leaves the index untouched
+        writer = SearchIndexWriter.load(file);
+        writer.add("1.1", valueSet("1.1", "70691001", "Agoraphobia (disorder)"));
+        assertFalse(writer.isChanged());
+        writer.add("1.2", valueSet("1.2", "191616006", "Recurrent depression (disorder)"));
+        assertTrue(writer.isChanged());
+        writer.write(file);
+
+        SearchIndex index = SearchIndex.open(file);
+        assertEquals(2, index.size());
+        assertEquals(0, index.search("depressive", 10).size());
+        assertEquals("191616006", index.search("depression", 10).get(0).getCode());
+        assertEquals("70691001", index.search("agoraphobia", 10).get(0).getCode());
+    }
+}
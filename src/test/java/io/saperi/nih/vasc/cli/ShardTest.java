@@ -0,0 +1,93 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.ShardManifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void stableAssignment() {
+        //Every key lands in exactly one shard and the split does not depend on the process
+        int[] counts = new int[5];
+        for (int i = 0; i < 1000; i++) {
+            String oid = "2.16.840.1.113762.1.4." + i;
+            int owners = 0;
+            for (int s = 1; s <= 4; s++) {
+                if (new Shard(s, 4).owns(oid)) {
+                    owners++;
+                    counts[s]++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+        for (int s = 1; s <= 4; s++) {
+            assertTrue(counts[s] > 200, "shard " + s + " got " + counts[s]);
+        }
+        assertEquals(Shard.shardOf("2.16.840.1.113762.1.4.1222.81", 7), Shard.shardOf("2.16.840.1.113762.1.4.1222.81", 7));
+        assertTrue(new Shard(1, 1).owns("anything"));
+    }
+
+    @Test
+    void parse() {
+        Shard shard = Shard.parse("2/3");
+        assertEquals(2, shard.getIndex());
+        assertEquals(3, shard.getCount());
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("0/3"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("4/3"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("2"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("a/b"));
+    }
+
+    @Test
+    void journalResumeAndMerge() throws Exception {
+        try (ShardJournal journal = ShardJournal.open(dir, new Shard(1, 3))) {
+            journal.recordSuccess("1.1", "1.1.csv", 10, 5);
+            journal.recordFailure("1.2", "timeout", 5);
+        }
+        try (ShardJournal journal = ShardJournal.open(dir, new Shard(1, 3))) {
+            assertTrue(journal.isCompleted("1.1"));
+            assertFalse(journal.isCompleted("1.2"));
+        }
+        try (ShardJournal journal = ShardJournal.open(dir, new Shard(3, 3))) {
+            journal.recordSuccess("1.3", "1.3.csv", 10, 5);
+        }
+
+        ShardManifest manifest = ShardJournal.merge(dir);
+        assertEquals(3, manifest.getShardCount());
+        assertEquals(2, manifest.getConverted());
+        assertEquals(1, manifest.getFailed());
+        assertEquals(Collections.singletonList(2), manifest.getMissingShards());
+        assertEquals("1.1", manifest.getValueSets().get(0).getOid());
+    }
+
+    @Test
+    void mergeValidationReports() throws Exception {
+        assertNull(ShardJournal.mergeValidationReports(dir, 3));
+        String header = "\uFEFFValueSet,System,Code,Display,Status";
+        write("validation-3-of-3.csv", header + "\n1.3,LOINC,3,\"Three\nlines\",unknown");
+        write("validation-1-of-3.csv", header + "\n1.1,LOINC,1,One,inactive\n1.1,LOINC,2,Two,unknown");
+        write("validation-2-of-3.csv", header);
+        write("validation-1-of-2.csv", header + "\n9.9,LOINC,9,Stale,unknown");
+
+        File merged = ShardJournal.mergeValidationReports(dir, 3);
+        assertEquals(new File(dir, "validation.csv"), merged);
+        assertEquals(header + "\n1.1,LOINC,1,One,inactive\n1.1,LOINC,2,Two,unknown\n1.3,LOINC,3,\"Three\nlines\",unknown",
+                new String(Files.readAllBytes(merged.toPath()), StandardCharsets.UTF_8));
+    }
+
+    private void write(String name, String content) throws Exception {
+        Files.write(new File(dir, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,74 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SvsArchiveReaderTest {
+
+    @TempDir
+    File dir;
+
+    private static final String[] NAMES = {"VSAC_1.2.3.xml", "notes.txt", "1.2.4.xml", "nested/1.2.5.xml"};
+    private static final String[] CONTENTS = {"<a/>", "skip", String.join("", Collections.nCopies(300, "<b/>")), "<c/>"};
+
+    /**
+     * Sizes seen before reading and the content of the one entry read, the others are left unread
+     */
+    private static List<String> read(File archive) throws Exception {
+        List<String> seen = new ArrayList<>();
+        int[] entries = {0};
+        SvsArchiveReader.readArchive(archive, (valueSetId, size, content) -> {
+            seen.add(valueSetId + " " + size);
+            if (entries[0]++ == 1) {
+                seen.add(new String(content.read(), StandardCharsets.UTF_8));
+            }
+        });
+        return seen;
+    }
+
+    private static void assertEntries(List<String> seen) {
+        assertEquals(4, seen.size(), seen.toString());
+        assertEquals("1.2.3 4", seen.get(0));
+        assertEquals("1.2.4 1200", seen.get(1));
+        assertEquals(CONTENTS[2], seen.get(2));
+        assertEquals("1.2.5 4", seen.get(3));
+    }
+
+    @Test
+    void tarSizesBeforeContent() throws Exception {
+        File archive = new File(dir, "raw.tar");
+        try (TarArchiveWriter tar = new TarArchiveWriter(Files.newOutputStream(archive.toPath()))) {
+            for (int i = 0; i < NAMES.length; i++) {
+                tar.addEntry(NAMES[i], CONTENTS[i].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEntries(read(archive));
+    }
+
+    @Test
+    void zipSizesBeforeContent() throws Exception {
+        //Deflated entries streamed out carry their size after the data, not in the local header
+        File archive = new File(dir, "raw.zip");
+        try (OutputStream file = Files.newOutputStream(archive.toPath()); ZipOutputStream zip = new ZipOutputStream(file)) {
+            for (int i = 0; i < NAMES.length; i++) {
+                zip.putNextEntry(new ZipEntry(NAMES[i]));
+                zip.write(CONTENTS[i].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        assertEntries(read(archive));
+    }
+}
@@ -0,0 +1,84 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TarArchiveWriterTest {
+
+    static String field(byte[] block, int off, int len) {
+        int end = off;
+        while (end < off + len && block[end] != 0) {
+            end++;
+        }
+        return new String(block, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    static long octal(byte[] block, int off, int len) {
+        return Long.parseLong(field(block, off, len).trim(), 8);
+    }
+
+    /**
+     * The header checksum is the byte sum with the checksum field read as spaces
+     */
+    static void assertUstarHeader(byte[] block) {
+        assertEquals("ustar", field(block, 257, 6));
+        assertEquals("00", new String(block, 263, 2, StandardCharsets.US_ASCII));
+        assertEquals('0', block[156]);
+        long sum = 0;
+        for (int i = 0; i < 512; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : block[i] & 0xff;
+        }
+        assertEquals(sum, octal(block, 148, 8));
+    }
+
+    @Test
+    void ustarEntries() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String longName = "package/" + String.join("", Collections.nCopies(20, "deep/")) + "ValueSet-1.2.3.json";
+        try (TarArchiveWriter tar = new TarArchiveWriter(out)) {
+            tar.addEntry("package/a.json", "{}".getBytes(StandardCharsets.UTF_8));
+            tar.addEntry(longName, new byte[512]);
+            tar.addEntry("package/empty", new byte[0]);
+        }
+        byte[] tar = out.toByteArray();
+        //Header and one padded block, header and exactly one block, header only, two end blocks
+        assertEquals(512 * (2 + 2 + 1 + 2), tar.length);
+
+        byte[] first = Arrays.copyOfRange(tar, 0, 512);
+        assertUstarHeader(first);
+        assertEquals("package/a.json", field(first, 0, 100));
+        assertEquals(2, octal(first, 124, 12));
+        assertEquals(0644, octal(first, 100, 8));
+        assertEquals("{}", new String(tar, 512, 2, StandardCharsets.UTF_8));
+        assertEquals(0, tar[514]);
+
+        //Names over 100 bytes are split into prefix and name at a slash
+        byte[] second = Arrays.copyOfRange(tar, 1024, 1536);
+        assertUstarHeader(second);
+        assertEquals(longName.substring(0, longName.lastIndexOf('/')), field(second, 345, 155));
+        assertEquals("ValueSet-1.2.3.json", field(second, 0, 100));
+        assertEquals(512, octal(second, 124, 12));
+
+        byte[] third = Arrays.copyOfRange(tar, 2048, 2560);
+        assertUstarHeader(third);
+        assertEquals(0, octal(third, 124, 12));
+        for (int i = 2560; i < tar.length; i++) {
+            assertEquals(0, tar[i]);
+        }
+    }
+
+    @Test
+    void nameTooLong() {
+        String name = String.join("", Collections.nCopies(120, "a"));
+        TarArchiveWriter tar = new TarArchiveWriter(new ByteArrayOutputStream());
+        assertThrows(IOException.class, () -> tar.addEntry(name, new byte[0]));
+    }
+}
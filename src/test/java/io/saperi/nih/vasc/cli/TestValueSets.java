@@ -0,0 +1,67 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import io.saperi.nih.vasc.cli.data.SvsConcept;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+
+import java.io.IOException;
+
+/**
+ * Value set fixtures shared by the tests, built directly or parsed from SVS XML like a fetched response
+ */
+final class TestValueSets {
+
+    static final String SNOMED = "2.16.840.1.113883.6.96";
+
+    private TestValueSets() {
+    }
+
+    /**
+     * Concepts given as system, system version, code and display in turn
+     */
+    static SvsValueSet valueSet(String id, String title, String version, String... rows) {
+        SvsValueSet vs = new SvsValueSet();
+        vs.setId(id);
+        vs.setDisplayName(title);
+        vs.setVersion(version);
+        for (int i = 0; i < rows.length; i += 4) {
+            vs.getConcepts().add(new SvsConcept(rows[i], rows[i + 1], rows[i + 2], rows[i + 3]));
+        }
+        return vs;
+    }
+
+    /**
+     * Concepts of one code system given as code and display in turn
+     */
+    static SvsValueSet codes(String id, String system, String systemVersion, String... codeAndDisplay) {
+        SvsValueSet vs = valueSet(id, null, null);
+        for (int i = 0; i < codeAndDisplay.length; i += 2) {
+            vs.getConcepts().add(new SvsConcept(system, systemVersion, codeAndDisplay[i], codeAndDisplay[i + 1]));
+        }
+        return vs;
+    }
+
+    /**
+     * SNOMED concepts from to to, coded 100000 up with the number formatted into the display
+     */
+    static SvsValueSet numbered(String id, String title, String version, int from, int to, String displayFormat) {
+        SvsValueSet vs = valueSet(id, title, version);
+        for (int i = from; i < to; i++) {
+            vs.getConcepts().add(new SvsConcept(SNOMED, "2020-09", Integer.toString(100000 + i), String.format(displayFormat, i)));
+        }
+        return vs;
+    }
+
+    /**
+     * Parsed from a RetrieveValueSet response holding the rows, system, system version, code and display in turn
+     */
+    static SvsValueSet parsed(String id, String title, String version, String... rows) throws IOException {
+        StringBuilder xml = new StringBuilder("<RetrieveValueSetResponse><ValueSet ID=\"").append(id)
+                .append("\" displayName=\"").append(title).append("\" version=\"").append(version).append("\"><ConceptList>");
+        for (int i = 0; i < rows.length; i += 4) {
+            xml.append("<Concept codeSystem=\"").append(rows[i]).append("\" codeSystemVersion=\"").append(rows[i + 1])
+                    .append("\" code=\"").append(rows[i + 2]).append("\" displayName=\"").append(rows[i + 3]).append("\"/>");
+        }
+        return ValueSetConverter.parse(xml.append("</ConceptList></ValueSet></RetrieveValueSetResponse>").toString());
+    }
+}
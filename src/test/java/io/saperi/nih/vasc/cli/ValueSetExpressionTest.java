@@ -0,0 +1,49 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueSetExpressionTest {
+
+    private static BitSet bits(int... ids) {
+        BitSet out = new BitSet();
+        for (int id : ids) {
+            out.set(id);
+        }
+        return out;
+    }
+
+    @Test
+    void evaluate() {
+        Map<String, BitSet> sets = new HashMap<>();
+        sets.put("1.1", bits(1, 2, 3));
+        sets.put("1.2", bits(3, 4));
+        sets.put("1.3", bits(2, 4));
+
+        assertEquals(bits(1, 3), ValueSetExpression.parse("1.1 | 1.2 - 1.3").evaluate(sets));
+        assertEquals(bits(1, 2, 3, 4), ValueSetExpression.parse("1.1 | 1.2 & 1.3").evaluate(sets));
+        assertEquals(bits(2, 4), ValueSetExpression.parse("(1.1 + 1.2) & 1.3").evaluate(sets));
+        //Inputs are not modified by evaluation
+        assertEquals(bits(1, 2, 3), sets.get("1.1"));
+    }
+
+    @Test
+    void normalize() {
+        ValueSetExpression.Normalized nf = ValueSetExpression.parse("(A | B) & C - D").normalize();
+        assertEquals(Arrays.asList(Arrays.asList("A", "C"), Arrays.asList("B", "C")), nf.includes);
+        assertEquals(Collections.singletonList(Collections.singletonList("D")), nf.excludes);
+
+        assertNull(ValueSetExpression.parse("(A - B) | C").normalize());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("A", "B", "C")), ValueSetExpression.parse("(A - B) | C").getOperands());
+    }
+
+    @Test
+    void invalid() {
+        assertThrows(IllegalArgumentException.class, () -> ValueSetExpression.parse("(A | B"));
+        assertThrows(IllegalArgumentException.class, () -> ValueSetExpression.parse("A | | B"));
+    }
+}
@@ -1,12 +1,27 @@
 /*Copyright 2021 Cognitive Medical Systems*/
 package io.saperi.nih.vasc.cli;
 
+import org.hl7.fhir.r4.model.ValueSet;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class VascCommandLineRunnerTest {
 
+    private static final String RAW = "output/VSAC_2.16.840.1.113762.1.4.1222.159.xml";
+
+    @TempDir
+    File dir;
+
     @Test
     void run() throws Exception {
         VascCommandLineRunner runner = new VascCommandLineRunner();
@@ -37,6 +52,95 @@ class VascCommandLineRunnerTest {
         runner.run(args);
     }
 
+    @Test
+    void runOffline() throws Exception {
+        VascCommandLineRunner runner = new VascCommandLineRunner();
+        runner.run(new String[]{"convert", "-fd", "output", "-f", "fhir+json", "-od", dir.getPath()});
+        File json = new File(dir, "2.16.840.1.113762.1.4.1222.159.json");
+        assertTrue(json.isFile());
+        ValueSet vs;
+        try (InputStream in = new FileInputStream(json)) {
+            vs = ValueSetConverter.getFhirContext().newJsonParser().parseResource(ValueSet.class, in);
+        }
+        int concepts = 0;
+        for (ValueSet.ConceptSetComponent include : vs.getCompose().getInclude()) {
+            concepts += include.getConcept().size();
+        }
+        assertEquals(91, concepts);
+    }
+
+    @Test
+    void runOfflineArchiveSingleOutput() throws Exception {
+        File zip = new File(dir, "raw.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            for (String id : new String[]{"1.2.3", "1.2.4"}) {
+                out.putNextEntry(new ZipEntry(id + ".xml"));
+                out.write(Files.readAllBytes(new File(RAW).toPath()));
+                out.closeEntry();
+            }
+        }
+        File single = new File(dir, "single.csv");
+        VascCommandLineRunner runner = new VascCommandLineRunner();
+        runner.run(new String[]{"convert", "-fd", zip.getPath(), "-o", single.getPath(), "-od", dir.getPath()});
+        assertFalse(single.exists());
+
+        //One entry picked out of the archive may go to the single file
+        runner = new VascCommandLineRunner();
+        runner.run(new String[]{"convert", "1.2.4", "-fd", zip.getPath(), "-o", single.getPath(), "-od", dir.getPath()});
+        assertEquals(92, Files.readAllLines(single.toPath()).size());
+    }
+
+    @Test
+    void runOfflineUnparsable() throws Exception {
+        File zip = new File(dir, "raw.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            out.putNextEntry(new ZipEntry("1.2.3.xml"));
+            out.write(Files.readAllBytes(new File(RAW).toPath()));
+            out.closeEntry();
+            //An error page served with a 200, well formed but not a valueset
+            out.putNextEntry(new ZipEntry("1.2.4.xml"));
+            out.write("<html><body>Service unavailable</body></html>".getBytes("UTF-8"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("1.2.5.xml"));
+            out.write("<RetrieveValueSetResponse><ValueSet ID=".getBytes("UTF-8"));
+            out.closeEntry();
+            //Our own fhir+xml output shares the ValueSet element name
+            out.putNextEntry(new ZipEntry("1.2.6.xml"));
+            out.write("<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"1.2.6\"/></ValueSet>".getBytes("UTF-8"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("1.2.7.xml"));
+            out.write("<RetrieveValueSetResponse><ValueSet displayName=\"No id\"><ConceptList/></ValueSet></RetrieveValueSetResponse>".getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        VascCommandLineRunner runner = new VascCommandLineRunner();
+        runner.run(new String[]{"convert", "-fd", zip.getPath(), "-od", dir.getPath()});
+        assertTrue(new File(dir, "1.2.3.csv").isFile());
+        assertFalse(new File(dir, "1.2.4.csv").exists());
+        assertFalse(new File(dir, "1.2.5.csv").exists());
+        assertFalse(new File(dir, "1.2.6.csv").exists());
+        assertFalse(new File(dir, "1.2.7.csv").exists());
+    }
+
+    @Test
+    void runOfflineShardRedo() throws Exception {
+        String[] args = {"convert", "-fd", "output", "-od", dir.getPath(), "--shard", "1/1"};
+        File csv = new File(dir, "2.16.840.1.113762.1.4.1222.159.csv");
+        new VascCommandLineRunner().run(args);
+        assertTrue(csv.delete());
+
+        //Completed in the journal, --force only rewrites unchanged files and does not reopen finished work
+        new VascCommandLineRunner().run(args);
+        new VascCommandLineRunner().run(concat(args, "--force"));
+        assertFalse(csv.exists());
+        new VascCommandLineRunner().run(concat(args, "--redo"));
+        assertTrue(csv.isFile());
+    }
+
+    private static String[] concat(String[] args, String... more) {
+        String[] out = Arrays.copyOf(args, args.length + more.length);
+        System.arraycopy(more, 0, out, args.length, more.length);
+        return out;
+    }
 
     @Test
     void process() {
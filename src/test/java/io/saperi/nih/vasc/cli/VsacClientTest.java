@@ -0,0 +1,357 @@
+/*Copyright 2021 Cognitive Medical Systems*/
+package io.saperi.nih.vasc.cli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.saperi.nih.vasc.cli.data.ApiCredential;
+import io.saperi.nih.vasc.cli.data.CredentialStats;
+import io.saperi.nih.vasc.cli.data.SvsValueSet;
+import io.saperi.nih.vasc.cli.data.TokenInfo;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VsacClientTest {
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger tgtRequests = new AtomicInteger();
+    private final AtomicInteger ticketRequests = new AtomicInteger();
+    // Ticket granting and unused service tickets to the API key they were issued for
+    private final Map<String, String> validTgts = new ConcurrentHashMap<>();
+    private final Map<String, String> unusedTickets = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> fetchesByKey = new ConcurrentHashMap<>();
+    private final Set<String> throttledKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger throttleOnce = new AtomicInteger();
+
+    /**
+     * Stub of the UTS api-key and ticket endpoints and of SVS, service tickets are single use like the real ones
+     */
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cas/v1/api-key", exchange -> {
+            String form = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+            String tgt = "TGT-" + tgtRequests.incrementAndGet() + "-cas";
+            validTgts.put(tgt, form.substring(form.indexOf('=') + 1));
+            respond(exchange, 201, "<html><form action=\"" + base + "/cas/v1/tickets/" + tgt + "\" method=\"POST\"></form></html>");
+        });
+        server.createContext("/cas/v1/tickets/", exchange -> {
+            String tgt = exchange.getRequestURI().getPath().substring("/cas/v1/tickets/".length());
+            if (!validTgts.containsKey(tgt)) {
+                respond(exchange, 404, "TGT not found");
+                return;
+            }
+            String ticket = "ST-" + ticketRequests.incrementAndGet() + "-cas";
+            unusedTickets.put(ticket, validTgts.get(tgt));
+            respond(exchange, 200, ticket);
+        });
+        server.createContext("/svs", exchange -> {
+            Map<String, String> query = new HashMap<>();
+            for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+                query.put(pair.substring(0, pair.indexOf('=')), pair.substring(pair.indexOf('=') + 1));
+            }
+            String apikey = unusedTickets.remove(query.get("ticket"));
+            if (apikey == null) {
+                respond(exchange, 401, "Invalid ticket");
+                return;
+            }
+            if (throttledKeys.contains(apikey)) {
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+            if (throttleOnce.getAndDecrement() > 0) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+            fetchesByKey.computeIfAbsent(apikey, k -> new AtomicInteger()).incrementAndGet();
+            String id = query.get("id");
+            if (id.startsWith("maintenance")) {
+                //Error pages sometimes come back as a success
+                respond(exchange, 200, "<html><body>Service temporarily unavailable</body></html>");
+                return;
+            }
+            respond(exchange, 200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                    + "<ns0:RetrieveValueSetResponse xmlns:ns0=\"urn:ihe:iti:svs:2008\">"
+                    + "<ns0:ValueSet ID=\"" + id + "\" displayName=\"Value set " + id + "\" version=\"Latest\"><ns0:ConceptList>"
+                    + "<ns0:Concept code=\"70691001\" codeSystem=\"2.16.840.1.113883.6.96\" codeSystemVersion=\"2020-09\" displayName=\"Agoraphobia\"/>"
+                    + "<ns0:Concept code=\"N18.3\" codeSystem=\"2.16.840.1.113883.6.90\" codeSystemVersion=\"2021\" displayName=\"Chronic kidney disease, stage 3\"/>"
+                    + "</ns0:ConceptList></ns0:ValueSet></ns0:RetrieveValueSetResponse>");
+        });
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        //Read the form posted so the connection stays open for the pool
+        IOUtils.copy(exchange.getRequestBody(), NullOutputStream.NULL_OUTPUT_STREAM);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private VsacClient client(TokenStore store) {
+        return VsacClient.builder()
+                .tokenStore(store)
+                .timeoutMillis(10000)
+                .hedgeFraction(0)
+                .throttleBackoffMillis(60000)
+                .endpoints(base + "/cas/v1/api-key", base + "/cas/v1/tickets/", base + "/svs")
+                .build();
+    }
+
+    @Test
+    void sharedAcrossThreads() throws Exception {
+        MemoryTokenStore store = new MemoryTokenStore("key");
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try (VsacClient client = client(store)) {
+            List<Future<SvsValueSet>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(client.fetchAsync("1.2." + i, pool));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                SvsValueSet svs = results.get(i).get(30, TimeUnit.SECONDS);
+                assertEquals("1.2." + i, svs.getId());
+                //Canonical order, by FHIR system rather than as served
+                assertEquals("N18.3", svs.getConcepts().get(0).getCode());
+            }
+            assertEquals(200, client.getRequests());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, tgtRequests.get());
+        assertEquals(200, ticketRequests.get());
+        assertEquals("TGT-1-cas", store.load().getTokenGrantingTicket());
+    }
+
+    @Test
+    void revokedTgtReplacedOnce() throws Exception {
+        TokenInfo tok = new TokenInfo();
+        tok.setApikey("key");
+        tok.setTokenGrantingTicket("TGT-revoked");
+        tok.setTokenGrantedOn(new Date());
+        File file = new File(dir, ".vsacTokens");
+        FileTokenStore store = new FileTokenStore(file);
+        store.save(tok);
+
+        try (VsacClient client = client(store)) {
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                ids.add("3.4." + i);
+            }
+            List<String> fetched = client.fetchAll(ids).parallel().map(SvsValueSet::getId).collect(Collectors.toList());
+            assertEquals(ids, fetched);
+        }
+        assertEquals(1, tgtRequests.get());
+        TokenInfo saved = new FileTokenStore(file).load();
+        assertEquals("TGT-1-cas", saved.getTokenGrantingTicket());
+        assertEquals("key", saved.getApikey());
+    }
+
+    @Test
+    void streamsFormats() throws Exception {
+        try (VsacClient client = client(new MemoryTokenStore("key"))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            client.fetch("5.6", "csv", out);
+            assertEquals("System,Version,Code,Display\n"
+                            + "http://hl7.org/fhir/sid/icd-10-cm,2021,N18.3,\"Chronic kidney disease, stage 3\"\n"
+                            + "http://snomed.info/sct,2020-09,70691001,Agoraphobia",
+                    new String(out.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals("Value set 5.6", client.fetchFhir("5.6").getTitle());
+            assertThrows(IllegalArgumentException.class, () -> client.fetch("5.6", "package", new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    void errorPageIsNotAValueSet() throws Exception {
+        try (VsacClient client = client(new MemoryTokenStore("key"))) {
+            IOException e = assertThrows(IOException.class, () -> client.fetch("maintenance.1"));
+            assertTrue(e.getMessage().contains("maintenance.1"), e.getMessage());
+            assertThrows(IOException.class, () -> client.fetchFhir("maintenance.1"));
+            for (String format : Arrays.asList("csv", "fhir+json", "xml")) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertThrows(IOException.class, () -> client.fetch("maintenance.1", format, out));
+                assertEquals(0, out.size());
+            }
+            assertEquals("5.6", client.fetch("5.6").getId());
+        }
+    }
+
+    @Test
+    void admittedFromContentLength() throws Exception {
+        try (VsacClient client = client(new MemoryTokenStore("key"))) {
+            List<Long> lengths = new ArrayList<>();
+            String vs = client.fetchRaw("5.6", contentLength -> {
+                lengths.add(contentLength);
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            });
+            assertEquals(Collections.singletonList((long) vs.getBytes(StandardCharsets.UTF_8).length), lengths);
+            //Waiting for admission is not fetch latency
+            String report = client.getLatencyReport();
+            assertTrue(Long.parseLong(report.replaceAll("(?s).*max (\\d+) ms.*", "$1")) < 500, report);
+            assertTrue(client.getCredentialStats().get(0).getAverageMillis() < 500);
+
+            //An error status is not admitted
+            lengths.clear();
+            throttledKeys.add("key");
+            assertThrows(IOException.class, () -> client.fetchRaw("5.7", lengths::add));
+            assertTrue(lengths.isEmpty());
+        }
+    }
+
+    @Test
+    void missingApiKey() {
+        try (VsacClient client = client(new MemoryTokenStore(""))) {
+            IOException e = assertThrows(IOException.class, () -> client.fetch("5.6"));
+            assertTrue(e.getMessage().contains("API key"));
+        } catch (IOException e) {
+            fail(e);
+        }
+        assertEquals(0, tgtRequests.get());
+        IOException e = assertThrows(IOException.class, () -> new FileTokenStore(new File(dir, "missing")).load());
+        assertTrue(e.getMessage().contains("init token"));
+    }
+
+    @Test
+    void tgtLifetime() {
+        long now = System.currentTimeMillis();
+        ApiCredential tok = new ApiCredential();
+        assertFalse(VsacClient.isTGTValid(tok, now));
+        tok.setTokenGrantingTicket("TGT-1");
+        assertFalse(VsacClient.isTGTValid(tok, now));
+        tok.setTokenGrantedOn(new Date(now - 1000));
+        assertTrue(VsacClient.isTGTValid(tok, now));
+        tok.setTokenGrantedOn(new Date(now - VsacClient.TGT_LIFETIME + VsacClient.TGT_LIFE_WINDOW));
+        assertFalse(VsacClient.isTGTValid(tok, now));
+        assertEquals("TGT-42-cas", VsacClient.getTGTFromResp("<form action=\"https://utslogin.nlm.nih.gov/cas/v1/tickets/TGT-42-cas\" method=\"POST\">"));
+        assertNull(VsacClient.getTGTFromResp("<html>no form</html>"));
+    }
+
+    @Test
+    void poolSpreadsFetches() throws Exception {
+        MemoryTokenStore store = new MemoryTokenStore("key-a", "key-b", "key-c");
+        ExecutorService pool = Executors.newFixedThreadPool(12);
+        try (VsacClient client = client(store)) {
+            List<Future<SvsValueSet>> results = new ArrayList<>();
+            for (int i = 0; i < 90; i++) {
+                results.add(client.fetchAsync("7.8." + i, pool));
+            }
+            for (Future<SvsValueSet> result : results) {
+                assertNotNull(result.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(3, client.getCredentialCount());
+            List<CredentialStats> stats = client.getCredentialStats();
+            assertEquals(Arrays.asList("key ...ey-a", "key ...ey-b", "key ...ey-c"),
+                    stats.stream().map(CredentialStats::getName).collect(Collectors.toList()));
+            assertEquals(90, stats.stream().mapToInt(CredentialStats::getFetches).sum());
+            assertTrue(client.getCredentialReport().startsWith("Fetches over 3 API keys:"));
+        } finally {
+            pool.shutdownNow();
+        }
+        //One TGT per key, every key used
+        assertEquals(3, tgtRequests.get());
+        for (String key : Arrays.asList("key-a", "key-b", "key-c")) {
+            assertTrue(fetchesByKey.get(key).get() > 0, key);
+        }
+        TokenInfo saved = store.load();
+        Set<String> tgts = new HashSet<>(Collections.singleton(saved.getTokenGrantingTicket()));
+        for (ApiCredential credential : saved.getCredentials()) {
+            tgts.add(credential.getTokenGrantingTicket());
+        }
+        assertEquals(validTgts.keySet(), tgts);
+    }
+
+    @Test
+    void throttledKeyRested() throws Exception {
+        throttledKeys.add("key-b");
+        try (VsacClient client = client(new MemoryTokenStore("key-a", "key-b"))) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals("9." + i, client.fetch("9." + i).getId());
+            }
+            List<CredentialStats> stats = client.getCredentialStats();
+            assertEquals(20, stats.get(0).getFetches());
+            //Refused once, then left alone for the rest of its back off
+            assertEquals(0, stats.get(1).getFetches());
+            assertEquals(1, stats.get(1).getThrottled());
+            assertEquals(0, stats.get(1).getFailed());
+        }
+
+        //A single key waits out Retry-After and tries again
+        throttleOnce.set(1);
+        try (VsacClient client = client(new MemoryTokenStore("key-a"))) {
+            long start = System.currentTimeMillis();
+            assertEquals("9.1", client.fetch("9.1").getId());
+            assertTrue(System.currentTimeMillis() - start >= 900);
+            assertEquals(1, client.getCredentialStats().get(0).getThrottled());
+        }
+
+        throttledKeys.add("key-a");
+        try (VsacClient client = client(new MemoryTokenStore("key-a", "key-b"))) {
+            IOException e = assertThrows(IOException.class, () -> client.fetch("9.2"));
+            assertTrue(e.getMessage().contains("429"));
+        }
+    }
+
+    @Test
+    void tokenFileFormats() throws Exception {
+        //A single key file as written before pooling stays in that shape
+        File file = new File(dir, ".vsacTokens");
+        Files.write(file.toPath(), "{\"apikey\":\"key\",\"tokenGrantingTicket\":\"\",\"tokenGrantedOn\":null}".getBytes(StandardCharsets.UTF_8));
+        try (VsacClient client = client(new FileTokenStore(file))) {
+            client.fetch("1.1");
+            assertEquals(1, client.getCredentialCount());
+        }
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertFalse(json.contains("credentials"));
+        assertEquals("TGT-1-cas", new FileTokenStore(file).load().getTokenGrantingTicket());
+
+        Files.write(file.toPath(), ("{\"apikey\":\"\",\"credentials\":["
+                + "{\"name\":\"research\",\"apikey\":\"key-r\"},{\"name\":\"quality\",\"apikey\":\"key-q\"}]}").getBytes(StandardCharsets.UTF_8));
+        try (VsacClient client = client(new FileTokenStore(file))) {
+            client.fetchAll(Arrays.asList("1.1", "1.2", "1.3", "1.4")).forEach(Assertions::assertNotNull);
+            assertEquals(Arrays.asList("research", "quality"),
+                    client.getCredentialStats().stream().map(CredentialStats::getName).collect(Collectors.toList()));
+        }
+        TokenInfo saved = new FileTokenStore(file).load();
+        assertEquals("", saved.getApikey());
+        assertNull(saved.getTokenGrantingTicket());
+        assertEquals("key-r", validTgts.get(saved.getCredentials().get(0).getTokenGrantingTicket()));
+        assertEquals("key-q", validTgts.get(saved.getCredentials().get(1).getTokenGrantingTicket()));
+    }
+}